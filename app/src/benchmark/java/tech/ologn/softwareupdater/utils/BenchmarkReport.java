@@ -0,0 +1,77 @@
+package tech.ologn.softwareupdater.utils;
+
+import static org.junit.Assume.assumeTrue;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Results of one benchmark, written as JSON to
+ * {@code build/reports/benchmark/<name>.json} so that runs can be compared by a script.
+ *
+ * <p>Benchmarks are JUnit classes of the {@code benchmark} source set, which is part of the
+ * unit tests. They are skipped unless the build is run with {@code -Pbenchmark}:</p>
+ * <pre>
+ * ./gradlew testDebugUnitTest -Pbenchmark --tests '*Benchmark'
+ * </pre>
+ */
+final class BenchmarkReport {
+
+    private final String mName;
+    private final JSONObject mReport = new JSONObject();
+    private final JSONArray mResults = new JSONArray();
+
+    BenchmarkReport(String name) throws Exception {
+        this.mName = name;
+        mReport.put("benchmark", name);
+        mReport.put("time", System.currentTimeMillis());
+        mReport.put("java", System.getProperty("java.version"));
+        mReport.put("cpus", Runtime.getRuntime().availableProcessors());
+        mReport.put("results", mResults);
+    }
+
+    /** Skips the calling benchmark unless benchmarks were requested. */
+    static void assumeEnabled() {
+        assumeTrue("Benchmarks only run with -Pbenchmark", Boolean.getBoolean("benchmark"));
+    }
+
+    /** @return value of the {@code benchmark.<name>} system property, or {@code def} */
+    static long getLong(String name, long def) {
+        return Long.getLong("benchmark." + name, def);
+    }
+
+    /** @return CPU time used by the whole process so far */
+    static long processCpuNanos() {
+        return ((com.sun.management.OperatingSystemMXBean)
+                ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+    }
+
+    /** Records a setting shared by all the results. */
+    void setParameter(String key, Object value) throws Exception {
+        mReport.put(key, value);
+    }
+
+    void addResult(JSONObject result) {
+        mResults.put(result);
+    }
+
+    /** Writes the report and prints it, for runs from an IDE. */
+    void write() throws IOException {
+        File dir = new File(System.getProperty("benchmark.reportDir", "build/reports/benchmark"));
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create " + dir);
+        }
+        File file = new File(dir, mName + ".json");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(mReport.toString(2).getBytes(StandardCharsets.UTF_8));
+        }
+        System.out.println(mName + " report written to " + file);
+        System.out.println(mReport.toString(2));
+    }
+}
@@ -0,0 +1,154 @@
+package tech.ologn.softwareupdater.utils;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the copy loop {@link FileDownloader} used to have, a {@code byte[]} written to
+ * a {@link FileOutputStream} after every read, with its current copy path: buffers filled
+ * completely and written by a {@link WriteBehindWriter} through a
+ * {@link java.nio.channels.FileChannel}. Both read from memory in pieces of at most
+ * {@link #READ_SIZE} bytes, like a socket, so only the copy itself is measured.
+ *
+ * <p>Settings are system properties: {@code benchmark.copyMb} (64) and
+ * {@code benchmark.runs} (5). The median run of each path and buffer size is reported.</p>
+ */
+public class CopyBenchmark {
+
+    private static final int[] BUFFER_SIZES =
+            {4 * 1024, 16 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024};
+
+    /** Most a socket read returns on a fast link. */
+    private static final int READ_SIZE = 64 * 1024;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private byte[] mContent;
+    private File mDestination;
+    private int mRuns;
+
+    @Before
+    public void setUp() {
+        BenchmarkReport.assumeEnabled();
+        mContent = new byte[(int) BenchmarkReport.getLong("copyMb", 64) * 1024 * 1024];
+        new Random(1).nextBytes(mContent);
+        mDestination = new File(mFolder.getRoot(), "update.zip");
+        mRuns = (int) BenchmarkReport.getLong("runs", 5);
+    }
+
+    @Test
+    public void copy() throws Exception {
+        BenchmarkReport report = new BenchmarkReport("copy");
+        report.setParameter("bytes", mContent.length);
+        report.setParameter("readSize", READ_SIZE);
+        report.setParameter("runs", mRuns);
+        for (int bufferSize : BUFFER_SIZES) {
+            report.addResult(measure("stream", bufferSize));
+            report.addResult(measure("channel", bufferSize));
+        }
+        report.write();
+    }
+
+    /** @return the median run of {@code path} with {@code bufferSize} */
+    private JSONObject measure(String path, int bufferSize) throws Exception {
+        run(path, bufferSize);
+        List<JSONObject> runs = new ArrayList<>();
+        for (int i = 0; i < mRuns; i++) {
+            runs.add(run(path, bufferSize));
+        }
+        runs.sort((a, b) -> Long.compare(
+                a.getLong("bytesPerSecond"), b.getLong("bytesPerSecond")));
+        return runs.get(runs.size() / 2);
+    }
+
+    private JSONObject run(String path, int bufferSize) throws Exception {
+        mDestination.delete();
+        long cpu = BenchmarkReport.processCpuNanos();
+        long start = System.nanoTime();
+        if (path.equals("stream")) {
+            copyWithStream(bufferSize);
+        } else {
+            copyWithDownloader(bufferSize);
+        }
+        long elapsed = System.nanoTime() - start;
+        cpu = BenchmarkReport.processCpuNanos() - cpu;
+        if (mDestination.length() != mContent.length) {
+            throw new IOException("Copied " + mDestination.length() + " of "
+                    + mContent.length + " bytes");
+        }
+
+        double mb = mContent.length / 1024.0 / 1024.0;
+        JSONObject result = new JSONObject();
+        result.put("path", path);
+        result.put("bufferSize", bufferSize);
+        result.put("durationMs", elapsed / 1_000_000);
+        result.put("bytesPerSecond", (long) (mContent.length * 1e9 / elapsed));
+        result.put("cpuMsPerMb", cpu / 1e6 / mb);
+        return result;
+    }
+
+    /** The copy loop before the NIO path: one write per read. */
+    private void copyWithStream(int bufferSize) throws IOException {
+        try (InputStream input = new SocketLikeInputStream(mContent);
+             FileOutputStream output = new FileOutputStream(mDestination)) {
+            byte[] buffer = new byte[bufferSize];
+            int count;
+            while ((count = input.read(buffer)) != -1) {
+                output.write(buffer, 0, count);
+            }
+        }
+    }
+
+    private void copyWithDownloader(int bufferSize) throws IOException {
+        FileDownloader downloader = new FileDownloader("memory:", 0, mContent.length,
+                mDestination);
+        downloader.setBufferSize(bufferSize);
+        downloader.setTransport(new DownloadTransport() {
+            @Override
+            public void setStallTimeout(int stallTimeoutMillis) {
+            }
+
+            @Override
+            public Stat probe(long offset) {
+                return null;
+            }
+
+            @Override
+            public Body open(long offset, long size, String validator, boolean rangeRequired) {
+                return new Body(new SocketLikeInputStream(mContent), mContent.length);
+            }
+
+            @Override
+            public Body openTail(long size) {
+                throw new UnsupportedOperationException();
+            }
+        });
+        downloader.download();
+    }
+
+    /** Returns at most {@link #READ_SIZE} bytes per read. */
+    private static final class SocketLikeInputStream extends ByteArrayInputStream {
+
+        SocketLikeInputStream(byte[] content) {
+            super(content);
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, READ_SIZE));
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package tech.ologn.softwareupdater.utils;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Throughput, time to first byte and CPU per MB of {@link FileDownloader} for each buffer
+ * size, connection count and transport, against a {@link RangeHttpServer} that adds
+ * latency and throttles each connection like a CDN seen from a device.
+ *
+ * <p>Settings are system properties: {@code benchmark.packageMb} (32),
+ * {@code benchmark.latencyMs} (20), {@code benchmark.throttleKbps} per connection (8192)
+ * and {@code benchmark.runs} (3). Each configuration is run once to warm up, then
+ * {@code runs} times; the median run is reported. CPU time of the in-process server is
+ * left out.</p>
+ */
+public class DownloadBenchmark {
+
+    private static final int[] BUFFER_SIZES = {16 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024};
+    private static final int[] CONNECTIONS = {1, 2, 4, 8};
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private RangeHttpServer mServer;
+    private File mSource;
+    private int mRuns;
+
+    @Before
+    public void setUp() throws Exception {
+        BenchmarkReport.assumeEnabled();
+        byte[] content = syntheticPackage(
+                (int) BenchmarkReport.getLong("packageMb", 32) * 1024 * 1024);
+        mServer = new RangeHttpServer(content);
+        mServer.setLatency(BenchmarkReport.getLong("latencyMs", 20));
+        mServer.setThrottle(BenchmarkReport.getLong("throttleKbps", 8192) * 1024);
+        mSource = mFolder.newFile("source.zip");
+        Files.write(mSource.toPath(), content);
+        mRuns = (int) BenchmarkReport.getLong("runs", 3);
+    }
+
+    @After
+    public void tearDown() {
+        if (mServer != null) {
+            mServer.close();
+        }
+    }
+
+    @Test
+    public void download() throws Exception {
+        BenchmarkReport report = new BenchmarkReport("download");
+        report.setParameter("packageBytes", mSource.length());
+        report.setParameter("latencyMs", BenchmarkReport.getLong("latencyMs", 20));
+        report.setParameter("throttleKbps", BenchmarkReport.getLong("throttleKbps", 8192));
+        report.setParameter("runs", mRuns);
+        for (int bufferSize : BUFFER_SIZES) {
+            for (int connections : CONNECTIONS) {
+                report.addResult(measure(mServer.getUrl("/update.zip"), bufferSize, connections));
+            }
+            // Local copies ignore the connection count.
+            report.addResult(measure(mSource.toURI().toString(), bufferSize, 1));
+        }
+        report.write();
+    }
+
+    /** @return the median run of downloading {@code url} with the given settings */
+    private JSONObject measure(String url, int bufferSize, int connections) throws Exception {
+        run(url, bufferSize, connections);
+        List<JSONObject> runs = new ArrayList<>();
+        for (int i = 0; i < mRuns; i++) {
+            runs.add(run(url, bufferSize, connections));
+        }
+        runs.sort((a, b) -> Long.compare(
+                a.getLong("bytesPerSecond"), b.getLong("bytesPerSecond")));
+        return runs.get(runs.size() / 2);
+    }
+
+    private JSONObject run(String url, int bufferSize, int connections) throws Exception {
+        File destination = new File(mFolder.getRoot(), "update.zip");
+        Files.deleteIfExists(destination.toPath());
+        FileDownloader downloader = new FileDownloader(url, 0, -1, destination);
+        downloader.setBufferSize(bufferSize);
+        downloader.setSegmentCount(connections);
+
+        long serverCpu = mServer.getCpuNanos();
+        long cpu = BenchmarkReport.processCpuNanos();
+        downloader.download();
+        long clientCpu = BenchmarkReport.processCpuNanos() - cpu
+                - (mServer.getCpuNanos() - serverCpu);
+
+        DownloadMetrics metrics = downloader.getMetrics();
+        double mb = metrics.getBytesDownloaded() / 1024.0 / 1024.0;
+        JSONObject result = new JSONObject();
+        result.put("transport", DownloadTransport.forUrl(url).getClass().getSimpleName());
+        result.put("bufferSize", bufferSize);
+        result.put("connections", connections);
+        result.put("bytes", metrics.getBytesDownloaded());
+        result.put("durationMs", metrics.getDurationMillis());
+        result.put("bytesPerSecond", metrics.getBytesPerSecond());
+        result.put("timeToFirstByteMs", metrics.getTimeToFirstByteMillis());
+        result.put("cpuMsPerMb", mb > 0 ? clientCpu / 1e6 / mb : 0);
+        return result;
+    }
+
+    /**
+     * @return a non-streaming OTA package of about {@code size} bytes: a stored
+     *         payload.bin of random bytes, which don't compress, and its properties
+     */
+    static byte[] syntheticPackage(int size) throws IOException {
+        byte[] payload = new byte[size];
+        new Random(size).nextBytes(payload);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(size + 4096);
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            putStored(zip, "META-INF/com/android/metadata",
+                    "ota-type=AB\n".getBytes(StandardCharsets.UTF_8));
+            putStored(zip, PackageFiles.PAYLOAD_BINARY_FILE_NAME, payload);
+            putStored(zip, PackageFiles.PAYLOAD_PROPERTIES_FILE_NAME,
+                    ("FILE_SIZE=" + size + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void putStored(ZipOutputStream zip, String name, byte[] data)
+            throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(data.length);
+        entry.setCompressedSize(data.length);
+        entry.setCrc(crc.getValue());
+        zip.putNextEntry(entry);
+        zip.write(data);
+        zip.closeEntry();
+    }
+}
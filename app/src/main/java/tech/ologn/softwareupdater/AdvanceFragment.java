@@ -17,6 +17,7 @@ import android.widget.TextView;
 import java.util.List;
 
 import tech.ologn.softwareupdater.utils.DialogHelper;
+import tech.ologn.softwareupdater.utils.UpdateConfigCatalog;
 import tech.ologn.softwareupdater.utils.UpdateConfigs;
 
 public class AdvanceFragment extends Fragment implements UpdateListener {
@@ -50,7 +51,8 @@ public class AdvanceFragment extends Fragment implements UpdateListener {
             }
 
             @Override
-            public void onDownloadSuccess(String downloadId, String filename) {
+            public void onDownloadSuccess(String downloadId, String filename,
+                    boolean fallbackUsed) {
                 // Reload configs when download succeeds
                 if (getView() != null) {
                     loadUpdateConfigs();
@@ -153,8 +155,13 @@ public class AdvanceFragment extends Fragment implements UpdateListener {
      * loads json configurations from configs dir that is defined in {@link UpdateConfigs}.
      */
     private void loadUpdateConfigs() {
-        mConfigs = UpdateConfigs.getUpdateConfigs(requireContext());
-        loadConfigsToSpinner(mConfigs);
+        UpdateConfigCatalog.getInstance(requireContext()).load(configs -> {
+            if (getView() == null) {
+                return;
+            }
+            mConfigs = configs;
+            loadConfigsToSpinner(configs);
+        });
     }
 
     private void loadConfigsToSpinner(List<UpdateConfig> configs) {
@@ -41,7 +41,8 @@ public class EasyFragment extends Fragment implements UpdateListener{
             }
 
                 @Override
-                public void onDownloadSuccess(String downloadId, String filename) {
+                public void onDownloadSuccess(String downloadId, String filename,
+                        boolean fallbackUsed) {
                     mButtonCheckStatus.setText("Check for new version");
                     mButtonCheckStatus.setEnabled(true);
                 }
@@ -30,8 +30,10 @@ import java.util.List;
 
 import tech.ologn.softwareupdater.services.ForegroundConfigDownloadService;
 import tech.ologn.softwareupdater.services.ForegroundPrepareUpdateService;
+import tech.ologn.softwareupdater.services.UpdateCheckJobService;
 import tech.ologn.softwareupdater.utils.DialogHelper;
 import tech.ologn.softwareupdater.utils.SystemPropertiesHelper;
+import tech.ologn.softwareupdater.utils.UpdateConfigCatalog;
 import tech.ologn.softwareupdater.utils.UpdateConfigs;
 import tech.ologn.softwareupdater.utils.UpdateEngineErrorCodes;
 import tech.ologn.softwareupdater.utils.UpdateEngineStatuses;
@@ -42,6 +44,11 @@ public class MainActivity extends AppCompatActivity implements ModeActionListene
     private static final String TAG = "SoftwareUpdateSettings";
     private static final String CONFIG_URL_INCREMENTAL = "https://s3.eu-central-1.amazonaws.com/arvicom.cartp.ota/update/ota_config_incremental.json";
     private static final String CONFIG_URL_FULL = "https://s3.eu-central-1.amazonaws.com/arvicom.cartp.ota/update/ota_config_full.json";
+    /**
+     * Configs of all models; the per-model configs above are used if it's missing, and
+     * it's requested again once a day.
+     */
+    private static final String CONFIG_MANIFEST_URL = "https://s3.eu-central-1.amazonaws.com/arvicom.cartp.ota/update/ota_manifest.json";
     // Mode constants
     private static final String PREF_NAME = "software_update_prefs";
     private static final String PREF_MODE = "software_update_mode";
@@ -111,6 +118,9 @@ public class MainActivity extends AppCompatActivity implements ModeActionListene
         mUpdateManager.setUpdateStateManager(mUpdateStateManager);
 
         restoreActiveOperations();
+
+        UpdateCheckJobService.schedule(this, CONFIG_URL_INCREMENTAL, CONFIG_URL_FULL,
+                CONFIG_MANIFEST_URL);
     }
 
     @Override
@@ -331,7 +341,21 @@ public class MainActivity extends AppCompatActivity implements ModeActionListene
      * loads json configurations from configs dir that is defined in {@link UpdateConfigs}.
      */
     private void loadUpdateConfigs() {
-        mConfigs = UpdateConfigs.getUpdateConfigs(this);
+        loadUpdateConfigs(null);
+    }
+
+    /**
+     * Loads the configs in the background, see {@link UpdateConfigCatalog}.
+     *
+     * @param then run on the main thread once {@link #mConfigs} is set; may be null
+     */
+    private void loadUpdateConfigs(Runnable then) {
+        UpdateConfigCatalog.getInstance(this).load(configs -> {
+            mConfigs = configs;
+            if (then != null && !isDestroyed()) {
+                then.run();
+            }
+        });
     }
 
     private void applyUpdate(UpdateConfig config) {
@@ -386,8 +410,14 @@ public class MainActivity extends AppCompatActivity implements ModeActionListene
 
     /**
      * download config button is clicked
+     *
+     * @param fallbackConfigUrl full config fetched at the same time, used by the service if
+     *                          the config at {@code configUrl} doesn't apply; may be null
+     * @param manifestUrl       manifest of all models, tried before {@code configUrl}; may
+     *                          be null
      */
-    public void onDownloadConfigClick(String configUrl) {
+    public void onDownloadConfigClick(String configUrl, String fallbackConfigUrl,
+            String manifestUrl) {
 
         if (mButtonReboot != null) {
             mButtonReboot.setVisibility(View.GONE);
@@ -401,6 +431,9 @@ public class MainActivity extends AppCompatActivity implements ModeActionListene
 
         Intent intent = new Intent(this, ForegroundConfigDownloadService.class);
         intent.putExtra(ForegroundConfigDownloadService.EXTRA_CONFIG_URL, configUrl);
+        intent.putExtra(ForegroundConfigDownloadService.EXTRA_FALLBACK_CONFIG_URL,
+                fallbackConfigUrl);
+        intent.putExtra(ForegroundConfigDownloadService.EXTRA_MANIFEST_URL, manifestUrl);
         intent.putExtra(ForegroundConfigDownloadService.EXTRA_DOWNLOAD_ID, downloadId);
         startService(intent);
 
@@ -483,26 +516,33 @@ public class MainActivity extends AppCompatActivity implements ModeActionListene
             }
 
             @Override
-            public void onDownloadSuccess(String downloadId, String filename) {
-                runOnUiThread(() -> {
-                    loadUpdateConfigs(); // Reload configs to show the new one
-
+            public void onDownloadSuccess(String downloadId, String filename,
+                    boolean fallbackUsed) {
+                // Reload configs to show the new one
+                runOnUiThread(() -> loadUpdateConfigs(() -> {
                     mUpdateStateManager.removeAllDownloads();
 
+                    // The service already chose between the incremental and full config.
+                    if (fallbackUsed) {
+                        Log.i(TAG, "Incremental config doesn't apply, full config was used.");
+                        mIsIncrementalUpdate = false;
+                        mHasTriedFullUpdate = true;
+                    }
+
+                    UpdateConfig config = getSelectedConfig();
+                    if (config == null) {
+                        DialogHelper.show(MainActivity.this, DialogHelper.Type.ERROR,
+                                "Download Failed", "The downloaded config can't be read.");
+                        return;
+                    }
                     String versionStr = SystemPropertiesHelper.getVersion();
-                    String nameConfig = mConfigs.get(mConfigs.size() - 1).getName();
+                    String nameConfig = config.getName();
                     String configVersionStr = nameConfig.split("_Ver")[1];
 
                     int result = compareVersion(configVersionStr, versionStr);
 
                     Log.i(TAG, "Current=" + versionStr + " Config=" + configVersionStr);
-                    if (result >= 1 && nameConfig.contains("Incremental")) {
-                        Log.i(TAG, "New version found, but it is not compatible with the current version.");
-                        mIsIncrementalUpdate = false;
-                        mHasTriedFullUpdate = true;
-                        onDownloadConfigClick(CONFIG_URL_FULL);
-                        return;
-                    } else if (result > 0) {
+                    if (result > 0) {
                         uiStateIdle();
                         mIsNewVersion = true;
                         triggerOnValidUpdate(true);
@@ -527,7 +567,7 @@ public class MainActivity extends AppCompatActivity implements ModeActionListene
                         DialogHelper.show(MainActivity.this, DialogHelper.Type.SUCCESS,"Success", "Config file downloaded successfully");
                     }
 
-                });
+                }));
             }
 
             @Override
@@ -660,7 +700,7 @@ public class MainActivity extends AppCompatActivity implements ModeActionListene
     public void onCheckStatus() {
         mIsIncrementalUpdate = true;
         mHasTriedFullUpdate = false;
-        onDownloadConfigClick(CONFIG_URL_INCREMENTAL);
+        onDownloadConfigClick(CONFIG_URL_INCREMENTAL, CONFIG_URL_FULL, CONFIG_MANIFEST_URL);
     }
 
     @Override
@@ -0,0 +1,158 @@
+package tech.ologn.softwareupdater;
+
+import android.os.UpdateEngine;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Content of payload_properties.txt: {@code KEY=VALUE} lines that are passed to
+ * {@link UpdateEngine#applyPayload} as they are. The values update_engine checks the
+ * payload against are also available typed; other lines are kept as extras.
+ *
+ * <p>Parsed once, immutable. The array given to update_engine is built at parse time and
+ * shared, so applying the same payload again doesn't copy anything.</p>
+ */
+public final class PayloadProperties implements Serializable {
+
+    private static final long serialVersionUID = 41044L;
+
+    public static final String FILE_HASH = "FILE_HASH";
+    public static final String FILE_SIZE = "FILE_SIZE";
+    public static final String METADATA_HASH = "METADATA_HASH";
+    public static final String METADATA_SIZE = "METADATA_SIZE";
+
+    private static final PayloadProperties EMPTY = new PayloadProperties(new String[0]);
+
+    /** All lines, in file order; never modified. */
+    private final String[] mLines;
+    /** Lines other than the typed ones, in file order; unmodifiable. */
+    private final List<String> mExtras;
+    private final String mFileHash;
+    private final long mFileSize;
+    private final String mMetadataHash;
+    private final long mMetadataSize;
+
+    private PayloadProperties(String[] lines) {
+        String fileHash = null;
+        long fileSize = -1;
+        String metadataHash = null;
+        long metadataSize = -1;
+        List<String> extras = new ArrayList<>();
+        for (String line : lines) {
+            int separator = line.indexOf('=');
+            if (separator < 0) {
+                extras.add(line);
+                continue;
+            }
+            String key = line.substring(0, separator);
+            String value = line.substring(separator + 1);
+            switch (key) {
+                case FILE_HASH:
+                    fileHash = value;
+                    break;
+                case FILE_SIZE:
+                    fileSize = parseSize(value);
+                    break;
+                case METADATA_HASH:
+                    metadataHash = value;
+                    break;
+                case METADATA_SIZE:
+                    metadataSize = parseSize(value);
+                    break;
+                default:
+                    extras.add(line);
+                    break;
+            }
+        }
+        this.mLines = lines;
+        this.mExtras = Collections.unmodifiableList(extras);
+        this.mFileHash = fileHash;
+        this.mFileSize = fileSize;
+        this.mMetadataHash = metadataHash;
+        this.mMetadataSize = metadataSize;
+    }
+
+    /** @return properties without any line */
+    public static PayloadProperties empty() {
+        return EMPTY;
+    }
+
+    /** Parses the lines of payload_properties.txt; blank lines are dropped. */
+    public static PayloadProperties parse(List<String> lines) {
+        List<String> kept = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            if (!line.trim().isEmpty()) {
+                kept.add(line);
+            }
+        }
+        return kept.isEmpty() ? EMPTY : new PayloadProperties(kept.toArray(new String[0]));
+    }
+
+    /** Parses the content of payload_properties.txt. */
+    public static PayloadProperties parse(String content) {
+        return parse(Arrays.asList(content.split("\r?\n")));
+    }
+
+    private static long parseSize(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** @return SHA-256 of payload.bin, base64 encoded; null if missing */
+    public String getFileHash() {
+        return mFileHash;
+    }
+
+    /** @return size of payload.bin, or -1 if missing */
+    public long getFileSize() {
+        return mFileSize;
+    }
+
+    /** @return SHA-256 of the payload metadata, base64 encoded; null if missing */
+    public String getMetadataHash() {
+        return mMetadataHash;
+    }
+
+    /** @return size of the payload metadata, or -1 if missing */
+    public long getMetadataSize() {
+        return mMetadataSize;
+    }
+
+    /** @return lines other than the typed ones, in file order; unmodifiable */
+    public List<String> getExtras() {
+        return mExtras;
+    }
+
+    /** @return all lines, in file order */
+    public List<String> getLines() {
+        return Collections.unmodifiableList(Arrays.asList(mLines));
+    }
+
+    /**
+     * Returns the lines followed by {@code extraProperties}, as expected by
+     * {@link UpdateEngine#applyPayload}. Without extra properties, it's the array built at
+     * parse time and must not be modified.
+     */
+    public String[] toArray(List<String> extraProperties) {
+        if (extraProperties.isEmpty()) {
+            return mLines;
+        }
+        String[] array = Arrays.copyOf(mLines, mLines.length + extraProperties.size());
+        for (int i = 0; i < extraProperties.size(); i++) {
+            array[mLines.length + i] = extraProperties.get(i);
+        }
+        return array;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(mLines);
+    }
+}
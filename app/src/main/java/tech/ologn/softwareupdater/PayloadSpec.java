@@ -2,7 +2,12 @@ package tech.ologn.softwareupdater;
 
 import android.os.UpdateEngine;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -10,7 +15,7 @@ import java.util.List;
  */
 public class PayloadSpec implements Serializable {
 
-    private static final long serialVersionUID = 41043L;
+    private static final long serialVersionUID = 41045L;
 
     /**
      * Creates a payload spec {@link Builder}
@@ -22,7 +27,7 @@ public class PayloadSpec implements Serializable {
     private String mUrl;
     private long mOffset;
     private long mSize;
-    private List<String> mProperties;
+    private PayloadProperties mProperties;
 
     public PayloadSpec(Builder b) {
         this.mUrl = b.mUrl;
@@ -43,10 +48,40 @@ public class PayloadSpec implements Serializable {
         return mSize;
     }
 
+    /** @return lines of payload_properties.txt, see {@link #getPayloadProperties} */
     public List<String> getProperties() {
+        return mProperties.getLines();
+    }
+
+    public PayloadProperties getPayloadProperties() {
         return mProperties;
     }
 
+    /** @return this spec as JSON, see {@link #fromJson} */
+    public JSONObject toJson() throws JSONException {
+        JSONObject o = new JSONObject();
+        o.put("url", mUrl);
+        o.put("offset", mOffset);
+        o.put("size", mSize);
+        o.put("properties", new JSONArray(mProperties.getLines()));
+        return o;
+    }
+
+    /** parse payload spec from json written by {@link #toJson} */
+    public static PayloadSpec fromJson(JSONObject o) throws JSONException {
+        JSONArray propertiesJson = o.getJSONArray("properties");
+        List<String> properties = new ArrayList<>(propertiesJson.length());
+        for (int i = 0; i < propertiesJson.length(); i++) {
+            properties.add(propertiesJson.getString(i));
+        }
+        return newBuilder()
+                .url(o.getString("url"))
+                .offset(o.getLong("offset"))
+                .size(o.getLong("size"))
+                .properties(properties)
+                .build();
+    }
+
     /**
      * payload spec builder.
      *
@@ -62,7 +97,7 @@ public class PayloadSpec implements Serializable {
         private String mUrl;
         private long mOffset;
         private long mSize;
-        private List<String> mProperties;
+        private PayloadProperties mProperties = PayloadProperties.empty();
 
         public Builder() {
         }
@@ -92,9 +127,17 @@ public class PayloadSpec implements Serializable {
         }
 
         /**
-         * set properties
+         * set properties from the lines of payload_properties.txt
          */
         public Builder properties(List<String> properties) {
+            this.mProperties = PayloadProperties.parse(properties);
+            return this;
+        }
+
+        /**
+         * set properties
+         */
+        public Builder properties(PayloadProperties properties) {
             this.mProperties = properties;
             return this;
         }
@@ -22,7 +22,11 @@ public class UpdateBroadcastReceiver extends BroadcastReceiver {
 
     public interface UpdateListener {
         void onDownloadStarted(String downloadId);
-        void onDownloadSuccess(String downloadId, String filename);
+        /**
+         * @param fallbackUsed true if the fallback config was saved instead of the
+         *                     requested one
+         */
+        void onDownloadSuccess(String downloadId, String filename, boolean fallbackUsed);
         void onDownloadError(String downloadId, String errorMessage);
         void onDownloadProgress(String downloadId, int progress);
 
@@ -97,10 +101,13 @@ public class UpdateBroadcastReceiver extends BroadcastReceiver {
     private void handleDownloadSuccess(Intent intent) {
         String downloadId = intent.getStringExtra(ForegroundConfigDownloadService.EXTRA_DOWNLOAD_ID);
         String filename = intent.getStringExtra(ForegroundConfigDownloadService.EXTRA_FILENAME);
-        Log.d(TAG, "Download success: " + downloadId + ", filename: " + filename);
+        boolean fallbackUsed = intent.getBooleanExtra(
+                ForegroundConfigDownloadService.EXTRA_FALLBACK_USED, false);
+        Log.d(TAG, "Download success: " + downloadId + ", filename: " + filename
+                + ", fallbackUsed: " + fallbackUsed);
         for (UpdateListener listener : mListeners) {
             if (listener != null) {
-                listener.onDownloadSuccess(downloadId, filename);
+                listener.onDownloadSuccess(downloadId, filename, fallbackUsed);
             }
         }
     }
@@ -41,6 +41,7 @@ public class UpdateConfig implements Parcelable {
         JSONObject o = new JSONObject(json);
         c.mName = o.getString("name");
         c.mUrl = o.getString("url");
+        c.mSha256 = o.optString("sha256", null);
         switch (o.getString("ab_install_type")) {
             case AB_INSTALL_TYPE_NON_STREAMING_JSON:
                 c.mAbInstallType = AB_INSTALL_TYPE_NON_STREAMING;
@@ -91,6 +92,9 @@ public class UpdateConfig implements Parcelable {
     /** update zip file URI, can be https:// or file:// */
     private String mUrl;
 
+    /** optional hex encoded SHA-256 of the whole update zip file */
+    private String mSha256;
+
     /** non-streaming (first saves locally) OR streaming (on the fly) */
     private int mAbInstallType;
 
@@ -105,6 +109,7 @@ public class UpdateConfig implements Parcelable {
     protected UpdateConfig(Parcel in) {
         this.mName = in.readString();
         this.mUrl = in.readString();
+        this.mSha256 = in.readString();
         this.mAbInstallType = in.readInt();
         this.mAbConfig = (AbConfig) in.readSerializable();
         this.mRawJson = in.readString();
@@ -124,6 +129,13 @@ public class UpdateConfig implements Parcelable {
         return mUrl;
     }
 
+    /**
+     * @return hex encoded SHA-256 of the update zip file, if the config publishes it
+     */
+    public Optional<String> getSha256() {
+        return mSha256 == null ? Optional.empty() : Optional.of(mSha256);
+    }
+
     public String getRawJson() {
         return mRawJson;
     }
@@ -160,6 +172,7 @@ public class UpdateConfig implements Parcelable {
     public void writeToParcel(Parcel dest, int flags) {
         dest.writeString(mName);
         dest.writeString(mUrl);
+        dest.writeString(mSha256);
         dest.writeInt(mAbInstallType);
         dest.writeSerializable(mAbConfig);
         dest.writeString(mRawJson);
@@ -1,7 +1,11 @@
 package tech.ologn.softwareupdater;
 
+import android.content.ComponentName;
 import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.UpdateEngine;
 import android.os.UpdateEngineCallback;
 import android.util.Log;
@@ -70,6 +74,10 @@ public class UpdateManager {
     private final Handler mHandler;
     private UpdateStateManager mUpdateStateManager;
 
+    /** Bound while {@link ForegroundPrepareUpdateService} prepares an update. */
+    private final PrepareServiceConnection mPrepareServiceConnection =
+            new PrepareServiceConnection();
+
     /**
      * @param updateEngine UpdateEngine instance.
      * @param handler      Handler for {@link ForegroundPrepareUpdateService} intent service.
@@ -205,6 +213,12 @@ public class UpdateManager {
     public synchronized void suspend() throws UpdaterState.InvalidTransitionException {
         Log.d(TAG, "suspend invoked");
         setUpdaterState(UpdaterState.PAUSED);
+        Optional<ForegroundPrepareUpdateService> preparing = getPreparingService();
+        if (preparing.isPresent()) {
+            // Still downloading, update_engine hasn't been given anything yet.
+            preparing.get().pauseDownload();
+            return;
+        }
         mUpdateEngine.cancel();
     }
 
@@ -214,6 +228,22 @@ public class UpdateManager {
     public synchronized void resume() throws UpdaterState.InvalidTransitionException {
         Log.d(TAG, "resume invoked");
         setUpdaterState(UpdaterState.RUNNING);
+        Optional<ForegroundPrepareUpdateService> preparing = getPreparingService();
+        if (preparing.isPresent()) {
+            // update_engine hasn't been given anything yet, the preparation applies the
+            // payload once it's done.
+            if (preparing.get().isDownloadPaused()) {
+                preparing.get().resumeDownload();
+            }
+            return;
+        }
+        synchronized (mLock) {
+            if (mLastUpdateData == null) {
+                // The preparation ended and its result is on its way, it's applied when
+                // it arrives since the state is RUNNING again.
+                return;
+            }
+        }
         updateEngineReApplyPayload();
     }
 
@@ -261,6 +291,7 @@ public class UpdateManager {
     public synchronized void cancelRunningUpdate() throws UpdaterState.InvalidTransitionException {
         Log.d(TAG, "cancelRunningUpdate invoked");
         setUpdaterState(UpdaterState.IDLE);
+        getPreparingService().ifPresent(ForegroundPrepareUpdateService::cancelPreparation);
         mUpdateEngine.cancel();
     }
 
@@ -305,7 +336,17 @@ public class UpdateManager {
             mUpdateStateManager.addActiveUpdate(activeUpdate);
         }
         
+        Context appContext = context.getApplicationContext();
         ForegroundPrepareUpdateService.startService(context, config, mHandler, (code, payloadSpec) -> {
+            mPrepareServiceConnection.unbind(appContext);
+            if (code != ForegroundPrepareUpdateService.RESULT_CODE_SUCCESS
+                    && mUpdaterState.get() == UpdaterState.IDLE) {
+                Log.i(TAG, "Update preparation was cancelled");
+                if (mUpdateStateManager != null) {
+                    mUpdateStateManager.removeActiveUpdate(updateId);
+                }
+                return;
+            }
             if (code != ForegroundPrepareUpdateService.RESULT_CODE_SUCCESS) {
                 Log.e(TAG, "ForegroundPrepareUpdateService failed, result code is " + code);
                 setUpdaterStateSilent(UpdaterState.ERROR);
@@ -315,11 +356,42 @@ public class UpdateManager {
                 }
                 return;
             }
-            updateEngineApplyPayload(UpdateData.builder()
+            UpdateData update = UpdateData.builder()
                     .setExtraProperties(prepareExtraProperties(config))
                     .setPayload(payloadSpec)
-                    .build());
+                    .build();
+            // A cancel or suspend may land after the last byte was downloaded.
+            synchronized (UpdateManager.this) {
+                int state = mUpdaterState.get();
+                if (state == UpdaterState.IDLE) {
+                    Log.i(TAG, "Update was cancelled while it was prepared, not applying it");
+                    if (mUpdateStateManager != null) {
+                        mUpdateStateManager.removeActiveUpdate(updateId);
+                    }
+                    return;
+                }
+                if (state == UpdaterState.PAUSED) {
+                    Log.i(TAG, "Update was suspended while it was prepared, applying on resume");
+                    synchronized (mLock) {
+                        mLastUpdateData = update;
+                    }
+                    return;
+                }
+                updateEngineApplyPayload(update);
+            }
         }, updateId);
+        mPrepareServiceConnection.bind(appContext);
+    }
+
+    /**
+     * @return the prepare service if it's bound and preparing an update, i.e. the update
+     *         is still being downloaded
+     */
+    private Optional<ForegroundPrepareUpdateService> getPreparingService() {
+        ForegroundPrepareUpdateService service = mPrepareServiceConnection.mService;
+        return service != null && service.isPreparing()
+                ? Optional.of(service)
+                : Optional.empty();
     }
 
     private List<String> prepareExtraProperties(UpdateConfig config) {
@@ -356,21 +428,53 @@ public class UpdateManager {
             mLastUpdateData = update;
         }
 
-        ArrayList<String> properties = new ArrayList<>(update.getPayload().getProperties());
-        properties.addAll(update.getExtraProperties());
-
         try {
             mUpdateEngine.applyPayload(
                     update.getPayload().getUrl(),
                     update.getPayload().getOffset(),
                     update.getPayload().getSize(),
-                    properties.toArray(new String[0]));
+                    update.getApplyProperties());
         } catch (Exception e) {
             Log.e(TAG, "UpdateEngine failed to apply the update", e);
             setUpdaterStateSilent(UpdaterState.ERROR);
         }
     }
 
+    /**
+     * Keeps a reference to {@link ForegroundPrepareUpdateService} through its local binder,
+     * so that {@link #suspend} and {@link #cancelRunningUpdate} reach its downloads.
+     */
+    private static class PrepareServiceConnection implements ServiceConnection {
+
+        private volatile ForegroundPrepareUpdateService mService;
+        private boolean mBound;
+
+        synchronized void bind(Context context) {
+            if (!mBound) {
+                mBound = context.bindService(
+                        new Intent(context, ForegroundPrepareUpdateService.class), this, 0);
+            }
+        }
+
+        synchronized void unbind(Context context) {
+            if (mBound) {
+                context.unbindService(this);
+                mBound = false;
+            }
+            mService = null;
+        }
+
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            mService = ((ForegroundPrepareUpdateService.LocalBinder) binder).getService();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mService = null;
+        }
+    }
+
     /**
      * Re-applies {@link this.mLastUpdateData} to update_engine.
      */
@@ -557,6 +661,8 @@ public class UpdateManager {
     private static class UpdateData {
         private final PayloadSpec mPayload;
         private final ImmutableList<String> mExtraProperties;
+        /** Payload and extra properties, built once and reused when applied again. */
+        private final String[] mApplyProperties;
 
         public static Builder builder() {
             return new Builder();
@@ -565,6 +671,8 @@ public class UpdateManager {
         UpdateData(Builder builder) {
             this.mPayload = builder.mPayload;
             this.mExtraProperties = ImmutableList.copyOf(builder.mExtraProperties);
+            this.mApplyProperties =
+                    mPayload.getPayloadProperties().toArray(mExtraProperties);
         }
 
         public PayloadSpec getPayload() {
@@ -575,6 +683,11 @@ public class UpdateManager {
             return mExtraProperties;
         }
 
+        /** @return properties for {@link UpdateEngine#applyPayload}; must not be modified */
+        public String[] getApplyProperties() {
+            return mApplyProperties;
+        }
+
         public Builder toBuilder() {
             return builder()
                     .setPayload(mPayload)
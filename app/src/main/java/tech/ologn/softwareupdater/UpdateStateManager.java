@@ -65,6 +65,7 @@ public class UpdateStateManager {
         public int progress;
         public String status; // "preparing", "applying", "completed", "error"
         public String errorMessage;
+        public long resumeOffset; // bytes of the update package already downloaded
 
         public ActiveUpdate() {}
 
@@ -192,6 +193,18 @@ public class UpdateStateManager {
         saveActiveUpdates(updates);
     }
 
+    public void updateUpdateResumeOffset(String updateId, long resumeOffset) {
+        List<ActiveUpdate> updates = getActiveUpdates();
+        for (ActiveUpdate update : updates) {
+            if (update.updateId.equals(updateId)) {
+                update.resumeOffset = resumeOffset;
+                break;
+            }
+        }
+        saveActiveUpdates(updates);
+        Log.d(TAG, "Updated update resume offset: " + updateId + " -> " + resumeOffset);
+    }
+
     public void updateUpdateStatus(String updateId, String status, String errorMessage) {
         List<ActiveUpdate> updates = getActiveUpdates();
         for (ActiveUpdate update : updates) {
@@ -228,6 +241,7 @@ public class UpdateStateManager {
                 update.progress = jsonObject.optInt("progress", 0);
                 update.status = jsonObject.optString("status", "preparing");
                 update.errorMessage = jsonObject.optString("errorMessage", null);
+                update.resumeOffset = jsonObject.optLong("resumeOffset", 0);
                 updates.add(update);
             }
         } catch (JSONException e) {
@@ -249,6 +263,7 @@ public class UpdateStateManager {
                 if (update.errorMessage != null) {
                     jsonObject.put("errorMessage", update.errorMessage);
                 }
+                jsonObject.put("resumeOffset", update.resumeOffset);
                 jsonArray.put(jsonObject);
             }
             mPrefs.edit().putString(KEY_ACTIVE_UPDATES, jsonArray.toString()).apply();
@@ -0,0 +1,655 @@
+package tech.ologn.softwareupdater.services;
+
+import android.content.Context;
+import android.util.Log;
+
+import tech.ologn.softwareupdater.MainActivity;
+import tech.ologn.softwareupdater.utils.ConfigHttpCache;
+import tech.ologn.softwareupdater.utils.ConfigManifest;
+import tech.ologn.softwareupdater.utils.ConfigStreamReader;
+import tech.ologn.softwareupdater.utils.DownloadTransport;
+import tech.ologn.softwareupdater.utils.ProgressPublisher;
+import tech.ologn.softwareupdater.utils.SystemPropertiesHelper;
+import tech.ologn.softwareupdater.utils.UpdateConfigs;
+
+import org.json.JSONException;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks for an update: downloads the config, and the fallback config or the configs a
+ * manifest lists for the device, then saves the one that applies to the configs directory.
+ *
+ * <p>Shared by {@link ForegroundConfigDownloadService} and {@link UpdateCheckJobService},
+ * which call {@link #check} on their own worker threads, so that both use the same
+ * validators and manifest.</p>
+ */
+final class ConfigChecker {
+
+    private static final String TAG = "ConfigChecker";
+
+    private static final int CONNECT_TIMEOUT = 10000; // 10 seconds
+    private static final int READ_TIMEOUT = 30000; // 30 seconds
+    private static final int MAX_FILE_SIZE = 1024 * 1024; // 1MB max config file size
+    /** Time for a whole check, shared by the config and fallback config requests. */
+    private static final int CHECK_TIMEOUT = CONNECT_TIMEOUT + READ_TIMEOUT;
+    /** Minimum time between two progress updates, in milliseconds. */
+    private static final long PROGRESS_INTERVAL = 250;
+
+    /** Validators of saved configs and cache counters, in the app files directory. */
+    private static final String HTTP_CACHE_FILE = "config_http_cache.json";
+    /** Last manifest downloaded, in the app files directory. */
+    private static final String MANIFEST_FILE = "config_manifest.json";
+    /**
+     * Time a manifest url that doesn't exist isn't requested again, so that a server
+     * without manifest costs one request a day rather than one per check.
+     */
+    private static final long MISSING_MANIFEST_RECHECK = TimeUnit.DAYS.toMillis(1);
+    /**
+     * Last config downloaded from each url, in the app files directory, so that the
+     * requests of every url stay conditional. Only the config that applies is copied to
+     * the configs directory.
+     */
+    private static final String CONFIG_BODIES_DIR = "config_bodies";
+    /** Name of the saved config in the configs directory. */
+    static final String CONFIG_FILENAME = "ota_config.json";
+
+    private static ConfigChecker sInstance;
+
+    private final Context mContext;
+    private final ConfigHttpCache mHttpCache;
+    /** Runs the fallback config request of each check while the check runs the first one. */
+    private final ExecutorService mFallbackExecutor = Executors.newCachedThreadPool();
+    /** Numbers the temporary files of checks. */
+    private final AtomicInteger mNextCheckId = new AtomicInteger();
+    /**
+     * Held by a request of a url while it downloads and saves the body file of the url,
+     * and reads it back: checks of different urls run concurrently.
+     */
+    private final ConcurrentHashMap<String, Object> mUrlLocks = new ConcurrentHashMap<>();
+    /** Held while a check compares and replaces the saved config. */
+    private final Object mCommitLock = new Object();
+    /** Last manifest parsed, kept between checks; guarded by {@link #loadManifest}. */
+    private ConfigManifest mManifest;
+    private String mManifestUrl;
+    private long mManifestModified;
+
+    /** Use {@link #getInstance}; tests make their own instance. */
+    ConfigChecker(Context context) {
+        this.mContext = context;
+        this.mHttpCache = new ConfigHttpCache(new File(context.getFilesDir(), HTTP_CACHE_FILE));
+    }
+
+    static synchronized ConfigChecker getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ConfigChecker(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    ConfigHttpCache getHttpCache() {
+        return mHttpCache;
+    }
+
+    /**
+     * @return {@code configUrl} with the product model inserted after "update", or null if
+     *         it has no "update" path segment
+     */
+    static String getModelConfigUrl(String configUrl) {
+        String productModel = SystemPropertiesHelper.getProductModel().toLowerCase();
+        //find the first occurrence of the update in configUrl
+        int updateIndex = configUrl.indexOf("update");
+        if (updateIndex == -1) {
+            return null;
+        }
+        return configUrl.substring(0, updateIndex + 6) + "/" + productModel  + configUrl.substring(updateIndex + 6);
+    }
+
+    /**
+     * Runs a check. {@code configUrl} and {@code fallbackConfigUrl} are the per-model urls,
+     * replaced by the ones of the manifest when it lists the device.
+     *
+     * @param configUrl   config to download; may be null if {@code manifestUrl} isn't
+     * @param manifestUrl manifest tried first; may be null
+     * @param progress    receives the download progress, 0 to 80; may be null
+     * @throws ServerBusyException if the server is overloaded
+     * @throws IOException         if no config could be downloaded
+     * @throws JSONException       if the config is invalid
+     */
+    Result check(String configUrl, String fallbackConfigUrl, String manifestUrl,
+            ProgressPublisher.Sink progress) throws IOException, JSONException {
+        long deadline = System.currentTimeMillis() + CHECK_TIMEOUT;
+        String[] manifestUrls =
+                manifestUrl != null ? resolveFromManifest(manifestUrl, deadline) : null;
+        if (manifestUrls != null) {
+            configUrl = manifestUrls[0];
+            fallbackConfigUrl = manifestUrls[1];
+        } else if (configUrl == null) {
+            throw new IOException("No config for this model in " + manifestUrl);
+        }
+        Log.i(TAG, "Starting config download from: " + configUrl);
+
+        String filename = CONFIG_FILENAME;
+        int checkId = mNextCheckId.incrementAndGet();
+        File savedFile = getConfigFile(filename);
+        File savedTempFile = getConfigFile(filename + "." + checkId + ".tmp");
+        ConfigFetch fetch = new ConfigFetch(configUrl, checkId, progress, deadline);
+        ConfigFetch fallback = fallbackConfigUrl != null
+                ? new ConfigFetch(fallbackConfigUrl, checkId, null, deadline) : null;
+        try {
+            Future<ConfigResponse> fallbackResult = null;
+            if (fallback != null) {
+                fallbackResult = mFallbackExecutor.submit(fallback);
+            }
+
+            ConfigResponse response;
+            String responseUrl = configUrl;
+            try {
+                response = fetch.call();
+                if (fallback != null && needsFallback(response)) {
+                    Log.i(TAG, "Incremental config doesn't apply, using "
+                            + fallbackConfigUrl);
+                    response = awaitFallback(fallbackResult, deadline);
+                    responseUrl = fallbackConfigUrl;
+                }
+            } finally {
+                // Stops the fallback request if it's not needed or too late.
+                if (fallback != null) {
+                    fallback.cancel();
+                }
+            }
+            boolean fallbackUsed = !responseUrl.equals(configUrl);
+            Log.i(TAG, "Config cache hits=" + mHttpCache.getHits()
+                    + " misses=" + mHttpCache.getMisses());
+            synchronized (mCommitLock) {
+                if (savedFile.isFile() && Arrays.equals(response.mBody,
+                        Files.readAllBytes(savedFile.toPath()))) {
+                    Log.i(TAG, "Config not modified, keeping " + filename);
+                    return new Result(filename, true, fallbackUsed);
+                }
+
+                // The config was checked while downloading.
+                File configsDir = savedFile.getParentFile();
+                if (!configsDir.exists() && !configsDir.mkdirs()) {
+                    throw new IOException("Failed to create configs directory");
+                }
+                try (FileOutputStream out = new FileOutputStream(savedTempFile)) {
+                    out.write(response.mBody);
+                }
+                commitConfigFile(savedTempFile, savedFile);
+                return new Result(filename, false, fallbackUsed);
+            }
+        } finally {
+            deleteTempFile(fetch.mTempFile);
+            if (fallback != null) {
+                deleteTempFile(fallback.mTempFile);
+            }
+            deleteTempFile(savedTempFile);
+        }
+    }
+
+    /**
+     * Decides from the first config of a check whether the fallback config is needed: an
+     * incremental config newer than the current version doesn't apply to it.
+     *
+     * @param response first config; if not modified, its body is parsed
+     */
+    private static boolean needsFallback(ConfigResponse response)
+            throws IOException, JSONException {
+        String name;
+        if (response.mConfig != null) {
+            name = response.mConfig.getName();
+        } else {
+            try (InputStream in = new ByteArrayInputStream(response.mBody)) {
+                name = ConfigStreamReader.read(in, null, MAX_FILE_SIZE, null).getName();
+            }
+        }
+        String[] nameParts = name.split("_Ver");
+        if (nameParts.length < 2) {
+            Log.w(TAG, "No version in config name " + name);
+            return false;
+        }
+        String versionStr = SystemPropertiesHelper.getVersion();
+        return MainActivity.compareVersion(nameParts[1], versionStr) >= 1
+                && name.contains("Incremental");
+    }
+
+    /** Waits for the fallback config until the shared {@code deadline} of the check. */
+    private static ConfigResponse awaitFallback(Future<ConfigResponse> result, long deadline)
+            throws IOException, JSONException {
+        try {
+            return result.get(Math.max(0, deadline - System.currentTimeMillis()),
+                    TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof JSONException) {
+                throw (JSONException) e.getCause();
+            }
+            throw new IOException("Fallback config request failed", e.getCause());
+        } catch (TimeoutException e) {
+            throw new SocketTimeoutException("Timed out waiting for the fallback config");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the fallback config");
+        }
+    }
+
+    /**
+     * Looks the device up in the manifest at {@code manifestUrl}. Failures are logged only,
+     * the per-model config urls are used instead, unless the server is overloaded. A
+     * manifest that doesn't exist is only requested again after
+     * {@link #MISSING_MANIFEST_RECHECK}.
+     *
+     * @return config url and fallback config url, which may be null; null if the manifest
+     *         can't be read or doesn't list the model of the device
+     */
+    private String[] resolveFromManifest(String manifestUrl, long deadline)
+            throws ServerBusyException {
+        if (!DownloadTransport.isLocal(manifestUrl)
+                && mHttpCache.isMissing(manifestUrl, MISSING_MANIFEST_RECHECK)) {
+            Log.d(TAG, "Config manifest " + manifestUrl + " was missing, not requested");
+            return null;
+        }
+        ConfigManifest manifest;
+        try {
+            manifest = loadManifest(manifestUrl, deadline);
+        } catch (ServerBusyException e) {
+            // The per-model configs are on the same server.
+            throw e;
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Can't read config manifest " + manifestUrl, e);
+            return null;
+        }
+        String model = SystemPropertiesHelper.getProductModel();
+        String fullUrl = manifest.getFullConfigUrl(model);
+        String incrementalUrl =
+                manifest.getIncrementalConfigUrl(model, SystemPropertiesHelper.getVersion());
+        if (incrementalUrl != null) {
+            return new String[] {incrementalUrl, fullUrl};
+        }
+        if (fullUrl != null) {
+            return new String[] {fullUrl, null};
+        }
+        Log.w(TAG, "Model " + model + " isn't in config manifest " + manifestUrl);
+        return null;
+    }
+
+    /**
+     * Returns the manifest at {@code manifestUrl}. Over http(s) the request is conditional,
+     * and when the manifest hasn't changed the index parsed by the previous check is kept.
+     */
+    private synchronized ConfigManifest loadManifest(String manifestUrl, long deadline)
+            throws IOException, JSONException {
+        if (DownloadTransport.isLocal(manifestUrl)) {
+            DownloadTransport.Body body =
+                    DownloadTransport.forUrl(manifestUrl).open(0, -1, null, false);
+            try (InputStream in = body.getInput()) {
+                return ConfigManifest.parse(readManifest(in), manifestUrl);
+            }
+        }
+
+        File manifestFile = new File(mContext.getFilesDir(), MANIFEST_FILE);
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            throw new SocketTimeoutException("Config check timed out before " + manifestUrl);
+        }
+        HttpURLConnection connection = (HttpURLConnection) new URL(manifestUrl).openConnection();
+        try {
+            connection.setConnectTimeout((int) Math.min(CONNECT_TIMEOUT, remaining));
+            connection.setReadTimeout((int) Math.min(READ_TIMEOUT, remaining));
+            connection.setRequestProperty("User-Agent", "SystemUpdaterSample/1.0");
+            connection.setRequestProperty("Accept", "application/json, text/plain, */*");
+            boolean conditional =
+                    mHttpCache.addConditionalHeaders(connection, manifestUrl, manifestFile);
+
+            int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && conditional) {
+                mHttpCache.recordHit();
+                if (mManifest == null || !manifestUrl.equals(mManifestUrl)
+                        || mManifestModified != manifestFile.lastModified()) {
+                    try (InputStream in = new FileInputStream(manifestFile)) {
+                        mManifest = ConfigManifest.parse(readManifest(in), manifestUrl);
+                    }
+                    mManifestUrl = manifestUrl;
+                    mManifestModified = manifestFile.lastModified();
+                }
+                return mManifest;
+            }
+            checkServerBusy(connection, responseCode);
+            if (responseCode == HttpURLConnection.HTTP_NOT_FOUND
+                    || responseCode == HttpURLConnection.HTTP_GONE) {
+                mHttpCache.putMissing(manifestUrl);
+                throw new FileNotFoundException("HTTP error: " + responseCode
+                        + ", not requested again for "
+                        + TimeUnit.MILLISECONDS.toHours(MISSING_MANIFEST_RECHECK) + " h");
+            }
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP error: " + responseCode);
+            }
+
+            mHttpCache.recordMiss();
+            String json;
+            try (InputStream in = connection.getInputStream()) {
+                json = readManifest(in);
+            }
+            ConfigManifest manifest = ConfigManifest.parse(json, manifestUrl);
+            File tempFile = new File(mContext.getFilesDir(), MANIFEST_FILE + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(tempFile)) {
+                out.write(json.getBytes(StandardCharsets.UTF_8));
+            }
+            commitConfigFile(tempFile, manifestFile);
+            mHttpCache.put(manifestUrl, connection.getHeaderField("ETag"),
+                    connection.getHeaderField("Last-Modified"), manifestFile);
+            mManifest = manifest;
+            mManifestUrl = manifestUrl;
+            mManifestModified = manifestFile.lastModified();
+            Log.i(TAG, "Config manifest has " + manifest.size() + " entries");
+            return manifest;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Throws if the server answered it's overloaded, with the delay it asked for: checks
+     * must not be retried right away, by this device or others.
+     */
+    private static void checkServerBusy(HttpURLConnection connection, int responseCode)
+            throws ServerBusyException {
+        if (responseCode != 429 && responseCode != HttpURLConnection.HTTP_UNAVAILABLE) {
+            return;
+        }
+        long retryAfter = 0;
+        String value = connection.getHeaderField("Retry-After");
+        if (value != null) {
+            try {
+                retryAfter = Math.max(0, Long.parseLong(value.trim()) * 1000);
+            } catch (NumberFormatException e) {
+                // Otherwise it's an HTTP date.
+                long date = connection.getHeaderFieldDate("Retry-After", 0);
+                retryAfter = Math.max(0, date - System.currentTimeMillis());
+            }
+        }
+        throw new ServerBusyException(
+                "HTTP error: " + responseCode + ", retry after " + retryAfter + " ms",
+                retryAfter);
+    }
+
+    /** Reads a manifest, up to {@link #MAX_FILE_SIZE} bytes. */
+    private static String readManifest(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+            if (out.size() > MAX_FILE_SIZE) {
+                throw new IOException("Manifest too large, more than " + MAX_FILE_SIZE
+                        + " bytes");
+            }
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Downloads the config of {@code fetch} to the body file of its url. Over http(s), the
+     * request is conditional when that file holds the config previously downloaded from
+     * the url, see {@link ConfigHttpCache}. Called with the lock of the url held.
+     *
+     * @return the config, or null if the body file is still current
+     */
+    private ConfigStreamReader.Config downloadFromUrl(ConfigFetch fetch)
+            throws IOException, JSONException {
+        String urlString = fetch.mUrl;
+        if (DownloadTransport.isLocal(urlString)) {
+            // Configs on USB storage or the sdcard are read directly from the file.
+            DownloadTransport.Body body =
+                    DownloadTransport.forUrl(urlString).open(0, -1, null, false);
+            try (InputStream inputStream = body.getInput()) {
+                if (body.getLength() > MAX_FILE_SIZE) {
+                    throw new IOException("File too large: " + body.getLength() + " bytes");
+                }
+                ConfigStreamReader.Config config =
+                        readConfig(inputStream, (int) body.getLength(), fetch);
+                commitConfigFile(fetch.mTempFile, fetch.mBodyFile);
+                return config;
+            }
+        }
+
+        long remaining = fetch.mDeadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            throw new SocketTimeoutException("Config check timed out before " + urlString);
+        }
+        URL url = new URL(urlString);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        fetch.mConnection = connection;
+
+        try {
+            if (fetch.mCancelled) {
+                throw new InterruptedIOException("Config request cancelled: " + urlString);
+            }
+            connection.setRequestMethod("GET");
+            connection.setConnectTimeout((int) Math.min(CONNECT_TIMEOUT, remaining));
+            connection.setReadTimeout((int) Math.min(READ_TIMEOUT, remaining));
+            connection.setRequestProperty("User-Agent", "SystemUpdaterSample/1.0");
+            connection.setRequestProperty("Accept", "application/json, text/plain, */*");
+            boolean conditional =
+                    mHttpCache.addConditionalHeaders(connection, urlString, fetch.mBodyFile);
+
+            int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && conditional) {
+                mHttpCache.recordHit();
+                return null;
+            }
+            checkServerBusy(connection, responseCode);
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                String errorMessage = "HTTP error: " + responseCode;
+                try {
+                    InputStream errorStream = connection.getErrorStream();
+                    if (errorStream != null) {
+                        BufferedReader errorReader = new BufferedReader(
+                                new InputStreamReader(errorStream, StandardCharsets.UTF_8));
+                        StringBuilder errorContent = new StringBuilder();
+                        String errorLine;
+                        while ((errorLine = errorReader.readLine()) != null && errorContent.length() < 200) {
+                            errorContent.append(errorLine).append("\n");
+                        }
+                        if (errorContent.length() > 0) {
+                            errorMessage += " - " + errorContent.toString().trim();
+                        }
+                    }
+                } catch (Exception e) {
+                    // Ignore error reading error stream
+                }
+                throw new IOException(errorMessage);
+            }
+
+            // Check content length
+            int contentLength = connection.getContentLength();
+            if (contentLength > MAX_FILE_SIZE) {
+                throw new IOException("File too large: " + contentLength + " bytes");
+            }
+
+            mHttpCache.recordMiss();
+            ConfigStreamReader.Config config =
+                    readConfig(connection.getInputStream(), contentLength, fetch);
+            // Kept even if the check ends up using another config.
+            commitConfigFile(fetch.mTempFile, fetch.mBodyFile);
+            mHttpCache.put(urlString, connection.getHeaderField("ETag"),
+                    connection.getHeaderField("Last-Modified"), fetch.mBodyFile);
+            return config;
+
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Reads the config from {@code inputStream} with {@link ConfigStreamReader}, checking it
+     * and writing it to the temporary file of {@code fetch} in the same pass. Reports
+     * progress when the fetch does and {@code contentLength} is known.
+     */
+    private ConfigStreamReader.Config readConfig(InputStream inputStream, int contentLength,
+            ConfigFetch fetch) throws IOException, JSONException {
+        File bodiesDir = fetch.mTempFile.getParentFile();
+        if (!bodiesDir.exists()) {
+            if (!bodiesDir.mkdirs()) {
+                throw new IOException("Failed to create config bodies directory");
+            }
+        }
+
+        ConfigStreamReader.ProgressListener listener = null;
+        ProgressPublisher publisher = null;
+        if (fetch.mProgress != null && contentLength > 0) {
+            publisher = new ProgressPublisher(PROGRESS_INTERVAL, fetch.mProgress);
+            ProgressPublisher progressPublisher = publisher;
+            listener = bytesRead -> progressPublisher.publish(
+                    (int) (bytesRead * 80 / contentLength)); // 80% for download
+        }
+        ConfigStreamReader.Config config;
+        try (FileOutputStream out = new FileOutputStream(fetch.mTempFile)) {
+            config = ConfigStreamReader.read(inputStream, out, MAX_FILE_SIZE, listener);
+        }
+        if (publisher != null) {
+            publisher.flush();
+            Log.d(TAG, "Published " + publisher.getPublishCount() + " progress updates");
+        }
+        return config;
+    }
+
+    private File getConfigFile(String filename) {
+        return new File(UpdateConfigs.getConfigsRoot(mContext), filename);
+    }
+
+    /** @return file holding the last config downloaded from {@code url} */
+    File getBodyFile(String url) {
+        String name = UUID.nameUUIDFromBytes(url.getBytes(StandardCharsets.UTF_8)) + ".json";
+        return new File(new File(mContext.getFilesDir(), CONFIG_BODIES_DIR), name);
+    }
+
+    private static void deleteTempFile(File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Failed to delete " + file);
+        }
+    }
+
+    /** Replaces {@code configFile} with the downloaded and checked {@code tempFile}. */
+    private void commitConfigFile(File tempFile, File configFile) throws IOException {
+        if (!tempFile.renameTo(configFile)) {
+            throw new IOException("Failed to save config file " + configFile);
+        }
+
+        Log.i(TAG, "Config file saved: " + configFile.getAbsolutePath());
+    }
+
+
+    /**
+     * A config request of a check. {@link #cancel} disconnects it, which also unblocks a
+     * read in progress, so a fallback request that isn't needed stops right away.
+     */
+    private final class ConfigFetch implements Callable<ConfigResponse> {
+        final String mUrl;
+        /** Last config downloaded from the url, see {@link #getBodyFile}. */
+        final File mBodyFile;
+        /** Where the response is written while it's read; not a .json file. */
+        final File mTempFile;
+        /** Receives the progress of the request; null to not report it. */
+        final ProgressPublisher.Sink mProgress;
+        /** Shared by the requests of a check. */
+        final long mDeadline;
+        volatile HttpURLConnection mConnection;
+        volatile boolean mCancelled;
+
+        ConfigFetch(String url, int checkId, ProgressPublisher.Sink progress, long deadline) {
+            this.mUrl = url;
+            this.mBodyFile = getBodyFile(url);
+            this.mTempFile = new File(mBodyFile.getParentFile(),
+                    mBodyFile.getName() + "." + checkId + ".tmp");
+            this.mProgress = progress;
+            this.mDeadline = deadline;
+        }
+
+        @Override
+        public ConfigResponse call() throws IOException, JSONException {
+            synchronized (mUrlLocks.computeIfAbsent(mUrl, url -> new Object())) {
+                ConfigStreamReader.Config config = downloadFromUrl(this);
+                return new ConfigResponse(Files.readAllBytes(mBodyFile.toPath()), config);
+            }
+        }
+
+        void cancel() {
+            mCancelled = true;
+            HttpURLConnection connection = mConnection;
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /** The server answered HTTP 429 or 503. */
+    static final class ServerBusyException extends IOException {
+        /** Delay asked for by the server in milliseconds, 0 if unknown. */
+        final long mRetryAfter;
+
+        ServerBusyException(String message, long retryAfter) {
+            super(message);
+            this.mRetryAfter = retryAfter;
+        }
+    }
+
+    /** Config of a response. */
+    private static final class ConfigResponse {
+        /** Content of the body file of the url, downloaded or still current. */
+        final byte[] mBody;
+        /** Fields of the config; null if it wasn't downloaded again. */
+        final ConfigStreamReader.Config mConfig;
+
+        ConfigResponse(byte[] body, ConfigStreamReader.Config config) {
+            this.mBody = body;
+            this.mConfig = config;
+        }
+    }
+
+    /** Outcome of a successful {@link #check}. */
+    static final class Result {
+        /** Name of the saved config in the configs directory. */
+        final String mFilename;
+        /** True if the saved config was already current. */
+        final boolean mNotModified;
+        /** True if the fallback config was saved instead of the requested one. */
+        final boolean mFallbackUsed;
+
+        Result(String filename, boolean notModified, boolean fallbackUsed) {
+            this.mFilename = filename;
+            this.mNotModified = notModified;
+            this.mFallbackUsed = fallbackUsed;
+        }
+    }
+}
@@ -32,23 +32,18 @@ import androidx.core.app.NotificationCompat;
 
 import tech.ologn.softwareupdater.MainActivity;
 import tech.ologn.softwareupdater.R;
-import tech.ologn.softwareupdater.UpdateConfig;
-import tech.ologn.softwareupdater.utils.SystemPropertiesHelper;
-import tech.ologn.softwareupdater.utils.UpdateConfigs;
+import tech.ologn.softwareupdater.utils.ConfigManifest;
 
 import org.json.JSONException;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
  * Foreground service for downloading config files that continues running even when app is destroyed.
@@ -58,13 +53,23 @@ public class ForegroundConfigDownloadService extends Service {
     private static final String TAG = "ForegroundConfigDownload";
     private static final String CHANNEL_ID = "config_download_channel";
     private static final int NOTIFICATION_ID = 1001;
-    private static final int CONNECT_TIMEOUT = 10000; // 10 seconds
-    private static final int READ_TIMEOUT = 30000; // 30 seconds
-    private static final int MAX_FILE_SIZE = 1024 * 1024; // 1MB max config file size
+    /** Checks, i.e. config and manifest requests, run at the same time. */
+    private static final int MAX_CONCURRENT_CHECKS = 2;
 
     // Intent extras
     public static final String EXTRA_CONFIG_URL = "config_url";
     public static final String EXTRA_DOWNLOAD_ID = "download_id";
+    /**
+     * Optional full config, used when the incremental config at {@link #EXTRA_CONFIG_URL}
+     * doesn't apply to the current version. Both are fetched at the same time.
+     */
+    public static final String EXTRA_FALLBACK_CONFIG_URL = "fallback_config_url";
+    /**
+     * Optional {@link ConfigManifest} of all models. When it lists the model of the device,
+     * the configs it maps the model and current version to replace the ones at
+     * {@link #EXTRA_CONFIG_URL} and {@link #EXTRA_FALLBACK_CONFIG_URL}.
+     */
+    public static final String EXTRA_MANIFEST_URL = "manifest_url";
 
     // Broadcast actions
     public static final String ACTION_DOWNLOAD_STARTED = "com.android.settings.DOWNLOAD_STARTED";
@@ -76,11 +81,26 @@ public class ForegroundConfigDownloadService extends Service {
     public static final String EXTRA_FILENAME = "filename";
     public static final String EXTRA_ERROR_MESSAGE = "error_message";
     public static final String EXTRA_PROGRESS = "progress";
-
-    private final ExecutorService executorService = Executors.newSingleThreadExecutor();
+    /** Set on {@link #ACTION_DOWNLOAD_SUCCESS} when the saved config was already current. */
+    public static final String EXTRA_NOT_MODIFIED = "not_modified";
+    /** Set on {@link #ACTION_DOWNLOAD_SUCCESS} when the fallback config was saved. */
+    public static final String EXTRA_FALLBACK_USED = "fallback_used";
+    /**
+     * Set on {@link #ACTION_DOWNLOAD_ERROR} when the server is overloaded (HTTP 429 or 503):
+     * milliseconds it asked to wait before the next request, from its Retry-After header,
+     * or 0 if it didn't say.
+     */
+    public static final String EXTRA_RETRY_AFTER = "retry_after";
+
+    /** Runs checks, at most {@link #MAX_CONCURRENT_CHECKS} at a time; others are queued. */
+    private final ExecutorService executorService =
+            Executors.newFixedThreadPool(MAX_CONCURRENT_CHECKS);
     private final IBinder binder = new LocalBinder();
-    private boolean isDownloading = false;
-    private String currentDownloadId;
+    /** Checks queued or running, by the urls they were requested with. */
+    private final ConcurrentHashMap<String, ConfigCheck> mChecks = new ConcurrentHashMap<>();
+    /** Task of the check answering each download id, until it ends. */
+    private final ConcurrentHashMap<String, Future<?>> mDownloads = new ConcurrentHashMap<>();
+    private ConfigChecker mChecker;
 
     public class LocalBinder extends Binder {
         public ForegroundConfigDownloadService getService() {
@@ -91,6 +111,7 @@ public class ForegroundConfigDownloadService extends Service {
     @Override
     public void onCreate() {
         super.onCreate();
+        mChecker = ConfigChecker.getInstance(this);
         createNotificationChannel();
     }
 
@@ -98,19 +119,20 @@ public class ForegroundConfigDownloadService extends Service {
     public int onStartCommand(Intent intent, int flags, int startId) {
         if (intent != null) {
             String configUrl = intent.getStringExtra(EXTRA_CONFIG_URL);
+            String fallbackConfigUrl = intent.getStringExtra(EXTRA_FALLBACK_CONFIG_URL);
+            String manifestUrl = intent.getStringExtra(EXTRA_MANIFEST_URL);
             String downloadId = intent.getStringExtra(EXTRA_DOWNLOAD_ID);
 
-            String productModel = SystemPropertiesHelper.getProductModel().toLowerCase();
-            //find the first occurrence of the update in configUrl
-            int updateIndex = configUrl.indexOf("update");
-            String newConfigUrl = null;
-            if (updateIndex != -1) {
-                newConfigUrl = configUrl.substring(0, updateIndex + 6) + "/" + productModel  + configUrl.substring(updateIndex + 6);
-            }
-            Log.i(TAG, "newConfigUrl: " + newConfigUrl);
+            String newConfigUrl =
+                    configUrl != null ? ConfigChecker.getModelConfigUrl(configUrl) : null;
+            String newFallbackConfigUrl = fallbackConfigUrl != null
+                    ? ConfigChecker.getModelConfigUrl(fallbackConfigUrl) : null;
+            Log.i(TAG, "newConfigUrl: " + newConfigUrl
+                    + " newFallbackConfigUrl: " + newFallbackConfigUrl
+                    + " manifestUrl: " + manifestUrl);
 
-            if (newConfigUrl != null && !isDownloading) {
-                startDownload(newConfigUrl, downloadId);
+            if (newConfigUrl != null || manifestUrl != null) {
+                startDownload(newConfigUrl, newFallbackConfigUrl, manifestUrl, downloadId);
             }
         }
 
@@ -192,8 +214,10 @@ public class ForegroundConfigDownloadService extends Service {
     }
 
     private void showFinalNotification(String title, String content, boolean isSuccess) {
-        // Cancel the ongoing notification first
-        stopForeground(true);
+        // Cancel the ongoing notification first, unless other checks are still running
+        if (mChecks.isEmpty()) {
+            stopForeground(true);
+        }
 
         Intent notificationIntent = new Intent(this, MainActivity.class);
         PendingIntent pendingIntent = PendingIntent.getActivity(
@@ -217,70 +241,132 @@ public class ForegroundConfigDownloadService extends Service {
         }
     }
 
-    private void startDownload(String configUrl, String downloadId) {
-        if (isDownloading) {
-            Log.w(TAG, "Download already in progress");
-            return;
-        }
-
-        isDownloading = true;
-        currentDownloadId = downloadId;
-
-        startForegroundService();
+    /**
+     * Queues a check of the given configs, or joins the check of the same configs already
+     * queued or running: it then also answers {@code downloadId}.
+     *
+     * @param modelConfigUrl config to download; may be null if {@code manifestUrl} isn't
+     * @param manifestUrl    manifest tried first, see {@link #EXTRA_MANIFEST_URL}; may be null
+     */
+    private void startDownload(String modelConfigUrl, String modelFallbackConfigUrl,
+            String manifestUrl, String downloadId) {
+        // Sent first, so it can't follow the result of a check that ends right away.
         sendBroadcast(ACTION_DOWNLOAD_STARTED, downloadId, null, 0);
 
-        executorService.execute(() -> {
-            try {
-                Log.i(TAG, "Starting config download from: " + configUrl);
-                updateNotification("Downloading Config", "Connecting to server...", -1);
+        String key = modelConfigUrl + "\n" + modelFallbackConfigUrl + "\n" + manifestUrl;
+        boolean[] created = {false};
+        // Atomic with the removal of a check that ends, so that no request is lost.
+        ConfigCheck check = mChecks.compute(key, (k, existing) -> {
+            ConfigCheck c = existing;
+            if (c == null) {
+                c = new ConfigCheck(k);
+                ConfigCheck newCheck = c;
+                c.mTask = new FutureTask<>(() -> runCheck(newCheck, modelConfigUrl,
+                        modelFallbackConfigUrl, manifestUrl), null);
+                created[0] = true;
+            }
+            c.mDownloadIds.add(downloadId);
+            mDownloads.put(downloadId, c.mTask);
+            return c;
+        });
 
-                String configContent = downloadFromUrl(configUrl);
-                String filename = generateFilename();
+        if (created[0]) {
+            startForegroundService();
+            executorService.execute(check.mTask);
+        } else {
+            Log.i(TAG, "Download " + downloadId + " joins the check of the same configs");
+        }
+    }
 
-                updateNotification("Downloading Config", "Saving file...", 90);
-                saveConfigFile(filename, configContent);
+    private void runCheck(ConfigCheck check, String modelConfigUrl,
+            String modelFallbackConfigUrl, String manifestUrl) {
+        try {
+            updateNotification("Downloading Config", "Connecting to server...", -1);
+            ConfigChecker.Result result = mChecker.check(modelConfigUrl, modelFallbackConfigUrl,
+                    manifestUrl, progress -> {
+                        updateNotification("Downloading Config", "Downloading... " + progress + "%", progress);
+                        for (String downloadId : check.mDownloadIds) {
+                            sendBroadcast(ACTION_DOWNLOAD_PROGRESS, downloadId, null, progress);
+                        }
+                    });
+
+            Intent broadcast =
+                    createBroadcast(ACTION_DOWNLOAD_SUCCESS, null, result.mFilename, 100);
+            broadcast.putExtra(EXTRA_FALLBACK_USED, result.mFallbackUsed);
+            if (result.mNotModified) {
+                broadcast.putExtra(EXTRA_NOT_MODIFIED, true);
+                finishCheck(check, broadcast);
+                showFinalNotification("Check Complete", "Config is up to date", true);
+                return;
+            }
+            finishCheck(check, broadcast);
 
-                // Validate the downloaded config
-                UpdateConfig config = UpdateConfig.fromJson(configContent);
+            Log.i(TAG, "Config download completed successfully: " + result.mFilename);
 
-                sendBroadcast(ACTION_DOWNLOAD_SUCCESS, downloadId, filename, 100);
+            // Show final success notification that can be dismissed
+            showFinalNotification("Download Complete", "Config downloaded successfully", true);
 
-                Log.i(TAG, "Config download completed successfully: " + filename);
+        } catch (ConfigChecker.ServerBusyException e) {
+            Log.w(TAG, "Config server overloaded", e);
+            String errorMessage = "The update server is busy, please try again later.";
+            Intent broadcast = createBroadcast(ACTION_DOWNLOAD_ERROR, null, errorMessage, 0);
+            broadcast.putExtra(EXTRA_RETRY_AFTER, e.mRetryAfter);
+            finishCheck(check, broadcast);
 
-                // Show final success notification that can be dismissed
-                showFinalNotification("Download Complete", "Config downloaded successfully", true);
+            showFinalNotification("Download Failed", errorMessage, false);
 
-            } catch (IOException e) {
-                Log.e(TAG, "Network error downloading config", e);
-                String errorMessage = "Please check your network connection and try again.";
-                sendBroadcast(ACTION_DOWNLOAD_ERROR, downloadId, errorMessage, 0);
+        } catch (IOException e) {
+            Log.e(TAG, "Network error downloading config", e);
+            String errorMessage = "Please check your network connection and try again.";
+            finishCheck(check, createBroadcast(ACTION_DOWNLOAD_ERROR, null, errorMessage, 0));
 
-                // Show final error notification that can be dismissed
-                showFinalNotification("Download Failed", errorMessage, false);
+            // Show final error notification that can be dismissed
+            showFinalNotification("Download Failed", errorMessage, false);
 
-            } catch (JSONException e) {
-                Log.e(TAG, "Invalid JSON in downloaded config", e);
-                String errorMessage = "No new version found.";
-                sendBroadcast(ACTION_DOWNLOAD_ERROR, downloadId, errorMessage, 0);
+        } catch (JSONException e) {
+            Log.e(TAG, "Invalid JSON in downloaded config", e);
+            String errorMessage = "No new version found.";
+            finishCheck(check, createBroadcast(ACTION_DOWNLOAD_ERROR, null, errorMessage, 0));
 
-                // Show final error notification that can be dismissed
-                showFinalNotification("Download Failed", errorMessage, false);
+            // Show final error notification that can be dismissed
+            showFinalNotification("Download Failed", errorMessage, false);
 
-            } catch (Exception e) {
-                Log.e(TAG, "Unexpected error downloading config", e);
-                String errorMessage = "No new version found.";
-                sendBroadcast(ACTION_DOWNLOAD_ERROR, downloadId, errorMessage, 0);
+        } catch (Exception e) {
+            Log.e(TAG, "Unexpected error downloading config", e);
+            String errorMessage = "No new version found.";
+            finishCheck(check, createBroadcast(ACTION_DOWNLOAD_ERROR, null, errorMessage, 0));
 
-                // Show final error notification that can be dismissed
-                showFinalNotification("Download Failed", errorMessage, false);
+            // Show final error notification that can be dismissed
+            showFinalNotification("Download Failed", errorMessage, false);
 
-            } finally {
-                isDownloading = false;
-                // Keep service running for potential future downloads
-                // stopForeground(true);
-                // stopSelf();
-            }
-        });
+        } finally {
+            // Answers the requests even if the result couldn't be sent above.
+            finishCheck(check, null);
+            // Keep service running for potential future downloads
+            // stopForeground(true);
+            // stopSelf();
+        }
+    }
+
+    /**
+     * Ends {@code check} and sends {@code result} to every request it answers; later
+     * requests for the same configs start a new check. Does nothing if already ended.
+     *
+     * @param result broadcast without download id; null to send a generic error
+     */
+    private void finishCheck(ConfigCheck check, Intent result) {
+        if (!mChecks.remove(check.mKey, check)) {
+            return;
+        }
+        if (result == null) {
+            result = createBroadcast(ACTION_DOWNLOAD_ERROR, null, "No new version found.", 0);
+        }
+        for (String downloadId : check.mDownloadIds) {
+            mDownloads.remove(downloadId);
+            Intent broadcast = new Intent(result);
+            broadcast.putExtra(EXTRA_DOWNLOAD_ID, downloadId);
+            sendBroadcast(broadcast);
+        }
     }
 
     private String getErrorMessage(IOException e) {
@@ -295,6 +381,11 @@ public class ForegroundConfigDownloadService extends Service {
     }
 
     private void sendBroadcast(String action, String downloadId, String extra, int progress) {
+        sendBroadcast(createBroadcast(action, downloadId, extra, progress));
+    }
+
+    private Intent createBroadcast(String action, String downloadId, String extra,
+            int progress) {
         Intent broadcast = new Intent(action);
         broadcast.putExtra(EXTRA_DOWNLOAD_ID, downloadId);
         if (extra != null) {
@@ -307,114 +398,37 @@ public class ForegroundConfigDownloadService extends Service {
         if (action.equals(ACTION_DOWNLOAD_PROGRESS)) {
             broadcast.putExtra(EXTRA_PROGRESS, progress);
         }
-        sendBroadcast(broadcast);
+        return broadcast;
     }
 
-    private String downloadFromUrl(String urlString) throws IOException {
-        URL url = new URL(urlString);
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-
-        try {
-            connection.setRequestMethod("GET");
-            connection.setConnectTimeout(CONNECT_TIMEOUT);
-            connection.setReadTimeout(READ_TIMEOUT);
-            connection.setRequestProperty("User-Agent", "SystemUpdaterSample/1.0");
-            connection.setRequestProperty("Accept", "application/json, text/plain, */*");
-
-            int responseCode = connection.getResponseCode();
-            if (responseCode != HttpURLConnection.HTTP_OK) {
-                String errorMessage = "HTTP error: " + responseCode;
-                try {
-                    InputStream errorStream = connection.getErrorStream();
-                    if (errorStream != null) {
-                        BufferedReader errorReader = new BufferedReader(
-                                new InputStreamReader(errorStream, StandardCharsets.UTF_8));
-                        StringBuilder errorContent = new StringBuilder();
-                        String errorLine;
-                        while ((errorLine = errorReader.readLine()) != null && errorContent.length() < 200) {
-                            errorContent.append(errorLine).append("\n");
-                        }
-                        if (errorContent.length() > 0) {
-                            errorMessage += " - " + errorContent.toString().trim();
-                        }
-                    }
-                } catch (Exception e) {
-                    // Ignore error reading error stream
-                }
-                throw new IOException(errorMessage);
-            }
-
-            // Check content length
-            int contentLength = connection.getContentLength();
-            if (contentLength > MAX_FILE_SIZE) {
-                throw new IOException("File too large: " + contentLength + " bytes");
-            }
-
-            InputStream inputStream = connection.getInputStream();
-            StringBuilder content = new StringBuilder();
-            BufferedReader reader = new BufferedReader(
-                    new InputStreamReader(inputStream, StandardCharsets.UTF_8));
-
-            String line;
-            int totalRead = 0;
-            while ((line = reader.readLine()) != null) {
-                content.append(line).append("\n");
-                totalRead += line.length();
-
-                // Check accumulated size
-                if (content.length() > MAX_FILE_SIZE) {
-                    throw new IOException("File too large during download");
-                }
-
-                // Update progress if we know content length
-                if (contentLength > 0) {
-                    int progress = (int) ((totalRead * 80) / contentLength); // 80% for download
-                    updateNotification("Downloading Config", "Downloading... " + progress + "%", progress);
-                    sendBroadcast(ACTION_DOWNLOAD_PROGRESS, currentDownloadId, null, progress);
-                }
-            }
-
-            String downloadedContent = content.toString().trim();
-
-            // Check if content looks like HTML instead of JSON
-            if (downloadedContent.startsWith("<!DOCTYPE") ||
-                downloadedContent.startsWith("<html") ||
-                downloadedContent.startsWith("<HTML")) {
-                throw new IOException("Downloaded content appears to be HTML, not JSON. The URL may be incorrect or the server returned an error page.");
-            }
-
-            return downloadedContent;
-
-        } finally {
-            connection.disconnect();
-        }
+    public boolean isDownloading() {
+        return !mChecks.isEmpty();
     }
 
-    private void saveConfigFile(String filename, String content) throws IOException {
-        File configsDir = new File(UpdateConfigs.getConfigsRoot(this));
-        if (!configsDir.exists()) {
-            if (!configsDir.mkdirs()) {
-                throw new IOException("Failed to create configs directory");
-            }
-        }
-
-        File configFile = new File(configsDir, filename);
-        try (FileOutputStream fos = new FileOutputStream(configFile)) {
-            fos.write(content.getBytes(StandardCharsets.UTF_8));
-        }
-
-        Log.i(TAG, "Config file saved: " + configFile.getAbsolutePath());
+    /** @return true if the check answering {@code downloadId} is queued or running */
+    public boolean isDownloading(String downloadId) {
+        return mDownloads.containsKey(downloadId);
     }
 
-    private String generateFilename() {
-        return "ota_config.json";
+    /** @return number of checks answered with 304, the saved config being current */
+    public long getConfigCacheHits() {
+        return mChecker.getHttpCache().getHits();
     }
 
-    public boolean isDownloading() {
-        return isDownloading;
+    /** @return number of checks that downloaded the whole config */
+    public long getConfigCacheMisses() {
+        return mChecker.getHttpCache().getMisses();
     }
 
-    public String getCurrentDownloadId() {
-        return currentDownloadId;
+    /** Check of a config, answering every request made for it while it's queued or running. */
+    private static final class ConfigCheck {
+        final String mKey;
+        /** Requests answered by the check; more join until it ends. */
+        final List<String> mDownloadIds = new CopyOnWriteArrayList<>();
+        FutureTask<Void> mTask;
+
+        ConfigCheck(String key) {
+            this.mKey = key;
+        }
     }
 }
@@ -28,10 +28,16 @@ import tech.ologn.softwareupdater.MainActivity;
 import tech.ologn.softwareupdater.PayloadSpec;
 import tech.ologn.softwareupdater.R;
 import tech.ologn.softwareupdater.UpdateConfig;
+import tech.ologn.softwareupdater.UpdateStateManager;
+import tech.ologn.softwareupdater.utils.DownloadControl;
+import tech.ologn.softwareupdater.utils.DownloadJournal;
+import tech.ologn.softwareupdater.utils.DownloadTransport;
 import tech.ologn.softwareupdater.utils.FileDownloader;
 import tech.ologn.softwareupdater.utils.PackageFiles;
+import tech.ologn.softwareupdater.utils.PackageVerifier;
+import tech.ologn.softwareupdater.utils.PayloadManifest;
+import tech.ologn.softwareupdater.utils.PayloadSpecCache;
 import tech.ologn.softwareupdater.utils.PayloadSpecs;
-import tech.ologn.softwareupdater.utils.UpdateConfigs;
 import com.google.common.collect.ImmutableSet;
 
 import java.io.File;
@@ -40,7 +46,13 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
 import java.lang.Runtime;
 import java.lang.Process;
@@ -54,6 +66,25 @@ public class ForegroundPrepareUpdateService extends Service {
     private static final String CHANNEL_ID = "prepare_update_channel";
     private static final int NOTIFICATION_ID = 1002;
 
+    /** Number of parallel connections used to download a non-streaming update package. */
+    private static final int UPDATE_PACKAGE_DOWNLOAD_SEGMENTS = 4;
+
+    /**
+     * Metrics of every update package download are appended to this file in the app files
+     * directory, one JSON object per line, so that download settings can be compared.
+     */
+    private static final String DOWNLOAD_METRICS_FILE = "download_metrics.jsonl";
+
+    /** Payload specs of staged packages, in the app files directory. */
+    private static final String PAYLOAD_SPEC_CACHE_FILE = "payload_specs.json";
+
+    /** Minimum time between two download progress notifications. */
+    private static final long DOWNLOAD_PROGRESS_INTERVAL_MS = 1000;
+
+    /** Overall progress range covered by the update package download. */
+    private static final int DOWNLOAD_PROGRESS_START = 30;
+    private static final int DOWNLOAD_PROGRESS_END = 60;
+
     // Intent extras
     public static final String EXTRA_PARAM_CONFIG = "config";
     public static final String EXTRA_PARAM_RESULT_RECEIVER = "result-receiver";
@@ -104,8 +135,10 @@ public class ForegroundPrepareUpdateService extends Service {
     private final PayloadSpecs mPayloadSpecs = new PayloadSpecs();
     private final UpdateEngine mUpdateEngine = new UpdateEngine();
     private final IBinder binder = new LocalBinder();
-    private boolean isPreparing = false;
+    private UpdateStateManager mUpdateStateManager;
+    private volatile boolean isPreparing = false;
     private String currentUpdateId;
+    private volatile DownloadControl mDownloadControl = new DownloadControl();
 
     public class LocalBinder extends Binder {
         public ForegroundPrepareUpdateService getService() {
@@ -137,6 +170,9 @@ public class ForegroundPrepareUpdateService extends Service {
     @Override
     public void onCreate() {
         super.onCreate();
+        mUpdateStateManager = new UpdateStateManager(this);
+        mPayloadSpecs.setCache(
+                new PayloadSpecCache(new File(getFilesDir(), PAYLOAD_SPEC_CACHE_FILE)));
         createNotificationChannel();
     }
 
@@ -262,6 +298,7 @@ public class ForegroundPrepareUpdateService extends Service {
 
         isPreparing = true;
         currentUpdateId = updateId;
+        mDownloadControl = new DownloadControl();
         
         startForegroundService();
         sendBroadcast(ACTION_PREPARE_STARTED, updateId, null, 0);
@@ -280,6 +317,17 @@ public class ForegroundPrepareUpdateService extends Service {
                 // Show final success notification that can be dismissed
                 showFinalNotification("Update Ready", "Update preparation completed successfully", true);
                 
+            } catch (DownloadControl.DownloadCancelledException e) {
+                Log.i(TAG, "Update preparation cancelled");
+                sendBroadcast(ACTION_PREPARE_ERROR, updateId, "Update preparation cancelled", 0);
+
+                if (resultReceiver != null) {
+                    resultReceiver.send(RESULT_CODE_ERROR, null);
+                }
+                // Partial downloads and their journals are kept, so the next attempt
+                // continues from where this one stopped.
+                stopForeground(true);
+
             } catch (Exception e) {
                 Log.e(TAG, "Failed to prepare streaming update", e);
                 String errorMessage = "Update preparation failed: " + e.getMessage();
@@ -327,9 +375,17 @@ public class ForegroundPrepareUpdateService extends Service {
         updateNotification("Preparing Update", "Verifying payload metadata...", 10);
         sendBroadcast(ACTION_PREPARE_PROGRESS, currentUpdateId, null, 10);
 
+        // Resolved once per preparation: without property_files in the config, each
+        // resolution reads the end of the remote package.
+        Map<String, UpdateConfig.PackageFile> packageFiles = null;
         if (config.getAbConfig().getVerifyPayloadMetadata()) {
             Log.i(TAG, "Verifying payload metadata with UpdateEngine.");
-            if (!verifyPayloadMetadata(config)) {
+            try {
+                packageFiles = getPackageFiles(config);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to read the package files of " + config.getUrl(), e);
+            }
+            if (packageFiles != null && !verifyPayloadMetadata(config, packageFiles)) {
                 throw new PreparationFailedException("Payload metadata is not compatible");
             }
         }
@@ -340,7 +396,9 @@ public class ForegroundPrepareUpdateService extends Service {
         if (config.getInstallType() == UpdateConfig.AB_INSTALL_TYPE_NON_STREAMING) {
             try {
                 File updatePackageFile = config.getUpdatePackageFile();
-                return mPayloadSpecs.forNonStreaming(updatePackageFile);
+                PayloadSpec spec = mPayloadSpecs.forNonStreaming(updatePackageFile);
+                logPayloadManifest(updatePackageFile, spec);
+                return spec;
             } catch (Exception e) {
                 if (e instanceof RuntimeException) {
                     if (e.getMessage().contains("http")) {
@@ -350,6 +408,20 @@ public class ForegroundPrepareUpdateService extends Service {
                         
                         File updateOTA = Paths.get(OTA_PACKAGE_DIR, "update.zip").toFile();
 
+                        // A previous attempt may have downloaded and verified the package
+                        // already, e.g. before a resume or a re-apply, if it's still the
+                        // version on the server. Asking the server for the version is only
+                        // worth it when such a package is staged.
+                        PayloadSpec cachedSpec = null;
+                        if (mPayloadSpecs.hasCached(updateOTA, config.getUrl())) {
+                            cachedSpec = mPayloadSpecs.getCached(updateOTA,
+                                    config.getUrl(), getPackageVersion(config, null));
+                        }
+                        if (cachedSpec != null) {
+                            Log.i(TAG, "Update package " + updateOTA + " is already downloaded");
+                            return cachedSpec;
+                        }
+
                         // Ensure directory exists and has proper permissions
                         File otaDir = new File(OTA_PACKAGE_DIR);
                         if (!otaDir.exists()) {
@@ -358,13 +430,56 @@ public class ForegroundPrepareUpdateService extends Service {
                             }
                         }
 
+                        // A previous attempt might have been interrupted, continue from
+                        // the bytes recorded in the download journal.
+                        long resumeOffset = FileDownloader.getResumeOffset(config.getUrl(), updateOTA);
+                        if (resumeOffset > 0) {
+                            Log.i(TAG, "Resuming update package download at " + resumeOffset);
+                        }
+                        mUpdateStateManager.updateUpdateResumeOffset(currentUpdateId, resumeOffset);
+
                         FileDownloader downloader = new FileDownloader(
                                 config.getUrl(),
                                 0,
                                 -1,
                                 updateOTA);
+                        downloader.setSegmentCount(UPDATE_PACKAGE_DOWNLOAD_SEGMENTS);
+                        downloader.setResumable(true);
+                        downloader.setProgressListener(this::onPackageDownloadProgress,
+                                DOWNLOAD_PROGRESS_INTERVAL_MS);
+                        downloader.setControl(mDownloadControl);
+                        if (packageFiles == null) {
+                            try {
+                                packageFiles = getPackageFiles(config);
+                            } catch (IOException error) {
+                                Log.w(TAG, "Can't locate payload.bin in " + config.getUrl()
+                                        + ", only the whole package will be verified", error);
+                            }
+                        }
+                        PackageVerifier verifier = new PackageVerifier(config, packageFiles);
+                        verifier.attach(downloader);
 
-                        downloader.download();
+                        try {
+                            downloader.download();
+                        } finally {
+                            Log.i(TAG, "Update package download metrics: "
+                                    + downloader.getMetrics());
+                            downloader.getMetrics().appendTo(
+                                    new File(getFilesDir(), DOWNLOAD_METRICS_FILE));
+                        }
+
+                        updateNotification("Preparing Update", "Verifying update package...", 65);
+                        sendBroadcast(ACTION_PREPARE_PROGRESS, currentUpdateId, null, 65);
+                        try {
+                            verifier.verify(updateOTA);
+                        } catch (IOException error) {
+                            // Don't resume into a corrupt package next time.
+                            Files.deleteIfExists(updateOTA.toPath());
+                            DownloadJournal.delete(updateOTA);
+                            mPayloadSpecs.forget(updateOTA);
+                            throw new PreparationFailedException(
+                                    "Update package verification failed: " + error.getMessage());
+                        }
 
                         updateNotification("Preparing Update", "Setting permissions...", 70);
                         sendBroadcast(ACTION_PREPARE_PROGRESS, currentUpdateId, null, 70);
@@ -399,7 +514,10 @@ public class ForegroundPrepareUpdateService extends Service {
                         sendBroadcast(ACTION_PREPARE_PROGRESS, currentUpdateId, null, 80);
 
                         Log.i(TAG, "Downloaded update package from http to " + updateOTA.getAbsolutePath());
-                        return mPayloadSpecs.forNonStreaming(updateOTA);
+                        PayloadSpec spec = mPayloadSpecs.forNonStreaming(updateOTA,
+                                config.getUrl(), getPackageVersion(config, downloader));
+                        logPayloadManifest(updateOTA, spec);
+                        return spec;
                     }
                 }
                 throw new PreparationFailedException("Failed to download update package");
@@ -408,20 +526,23 @@ public class ForegroundPrepareUpdateService extends Service {
 
         updateNotification("Preparing Update", "Downloading pre-streaming files...", 40);
         sendBroadcast(ACTION_PREPARE_PROGRESS, currentUpdateId, null, 40);
-        downloadPreStreamingFiles(config, OTA_PACKAGE_DIR);
+        if (packageFiles == null) {
+            packageFiles = getPackageFiles(config);
+        }
+        downloadPreStreamingFiles(config, packageFiles, OTA_PACKAGE_DIR);
 
         updateNotification("Preparing Update", "Processing payload binary...", 70);
         sendBroadcast(ACTION_PREPARE_PROGRESS, currentUpdateId, null, 70);
 
         Optional<UpdateConfig.PackageFile> payloadBinary =
-                UpdateConfigs.getPropertyFile(PAYLOAD_BINARY_FILE_NAME, config);
+                Optional.ofNullable(packageFiles.get(PAYLOAD_BINARY_FILE_NAME));
 
         if (!payloadBinary.isPresent()) {
             throw new PreparationFailedException(
                     "Failed to find " + PAYLOAD_BINARY_FILE_NAME + " in config");
         }
 
-        if (!UpdateConfigs.getPropertyFile(PAYLOAD_PROPERTIES_FILE_NAME, config).isPresent()
+        if (!packageFiles.containsKey(PAYLOAD_PROPERTIES_FILE_NAME)
                 || !Paths.get(OTA_PACKAGE_DIR, PAYLOAD_PROPERTIES_FILE_NAME).toFile().exists()) {
             throw new IOException(PAYLOAD_PROPERTIES_FILE_NAME + " not found");
         }
@@ -441,22 +562,131 @@ public class ForegroundPrepareUpdateService extends Service {
         updateNotification("Preparing Update", "Finalizing payload spec...", 90);
         sendBroadcast(ACTION_PREPARE_PROGRESS, currentUpdateId, null, 90);
 
-        return mPayloadSpecs.forStreaming(config.getUrl(),
+        PayloadSpec spec = mPayloadSpecs.forStreaming(config.getUrl(),
                 payloadBinary.get().getOffset(),
                 payloadBinary.get().getSize(),
                 Paths.get(OTA_PACKAGE_DIR, PAYLOAD_PROPERTIES_FILE_NAME).toFile());
+        logPayloadManifest(null, spec);
+        return spec;
+    }
+
+    /**
+     * Logs the partitions the payload of {@code spec} updates, with their operation counts
+     * and sizes, read from its manifest without update_engine.
+     *
+     * <p>Reading a local package only maps its manifest. Reading it from the url costs
+     * range requests that nothing else needs, so that's only done when debug logging is
+     * enabled: {@code adb shell setprop log.tag.ForegroundPrepareUpdate DEBUG}.</p>
+     *
+     * @param packageFile the downloaded package, or null to read the manifest from the url
+     *                    of {@code spec} with range requests
+     */
+    private void logPayloadManifest(File packageFile, PayloadSpec spec) {
+        if (packageFile == null && !Log.isLoggable(TAG, Log.DEBUG)) {
+            return;
+        }
+        try {
+            PayloadManifest manifest = packageFile != null
+                    ? PayloadManifest.read(packageFile, spec.getOffset())
+                    : PayloadManifest.readRemote(spec.getUrl(), spec.getOffset());
+            Log.i(TAG, "Payload: " + manifest);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read the payload manifest of "
+                    + (packageFile != null ? packageFile : spec.getUrl()), e);
+        }
+    }
+
+    /**
+     * Identifies the content of the update package of {@code config}, so that a package
+     * downloaded earlier is only reused if it's still the one published: its SHA-256 if
+     * the config has one, otherwise the validator of the server.
+     *
+     * @param downloader the download of the package, whose validator is used; null to ask
+     *                   the server
+     * @return the version, or null if it can't be known
+     */
+    private static String getPackageVersion(UpdateConfig config, FileDownloader downloader) {
+        if (config.getSha256().isPresent()) {
+            return "sha256:" + config.getSha256().get();
+        }
+        String validator;
+        if (downloader != null) {
+            validator = downloader.getValidator();
+        } else {
+            try {
+                DownloadTransport.Stat stat = DownloadTransport.forUrl(config.getUrl()).probe(0);
+                validator = stat != null ? stat.getValidator() : null;
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to probe " + config.getUrl(), e);
+                validator = null;
+            }
+        }
+        return validator != null ? "validator:" + validator : null;
+    }
+
+    /**
+     * Maps update package download progress to the overall preparation progress and
+     * publishes it to the notification and to {@link MainActivity}.
+     */
+    private void onPackageDownloadProgress(long bytesDone, long bytesTotal,
+            long bytesPerSecond, long avgBytesPerSecond, long etaMillis) {
+        int progress = DOWNLOAD_PROGRESS_START;
+        if (bytesTotal > 0) {
+            progress += (int) ((DOWNLOAD_PROGRESS_END - DOWNLOAD_PROGRESS_START)
+                    * bytesDone / bytesTotal);
+        }
+        String content = String.format(Locale.US, "Downloading update package... %.1f MB/s",
+                avgBytesPerSecond / 1024.0 / 1024.0);
+        if (etaMillis >= 0) {
+            content += ", " + formatEta(etaMillis) + " left";
+        }
+        updateNotification("Preparing Update", content, progress);
+        sendBroadcast(ACTION_PREPARE_PROGRESS, currentUpdateId, null, progress);
+    }
+
+    private static String formatEta(long etaMillis) {
+        long seconds = etaMillis / 1000;
+        if (seconds < 60) {
+            return seconds + " s";
+        }
+        return (seconds / 60) + " min " + (seconds % 60) + " s";
+    }
+
+    /**
+     * Returns the files of the update package by name: {@code ab_config.property_files} of
+     * the config if it has them, otherwise they are read from the package itself with a few
+     * range requests, see {@link PayloadSpecs#getRemotePackageFiles}.
+     */
+    private Map<String, UpdateConfig.PackageFile> getPackageFiles(UpdateConfig config)
+            throws IOException {
+        List<UpdateConfig.PackageFile> files;
+        UpdateConfig.PackageFile[] propertyFiles = config.getAbConfig().getPropertyFiles();
+        if (propertyFiles != null && propertyFiles.length > 0) {
+            files = Arrays.asList(propertyFiles);
+        } else {
+            Log.i(TAG, "Config has no property_files, reading them from " + config.getUrl());
+            files = mPayloadSpecs.getRemotePackageFiles(config.getUrl());
+        }
+        Map<String, UpdateConfig.PackageFile> byName = new LinkedHashMap<>();
+        for (UpdateConfig.PackageFile file : files) {
+            byName.putIfAbsent(file.getFilename(), file);
+        }
+        return byName;
     }
 
     /**
      * Downloads only payload_metadata.bin and verifies with
      * {@link UpdateEngine#verifyPayloadMetadata}.
+     *
+     * @param packageFiles files of the update package, see {@link #getPackageFiles}
+     * @throws DownloadControl.DownloadCancelledException if the preparation was cancelled
+     *         while downloading the metadata
      */
-    private boolean verifyPayloadMetadata(UpdateConfig config) {
-        Optional<UpdateConfig.PackageFile> metadataPackageFile =
-                Arrays.stream(config.getAbConfig().getPropertyFiles())
-                        .filter(p -> p.getFilename().equals(
-                                PackageFiles.PAYLOAD_METADATA_FILE_NAME))
-                        .findFirst();
+    private boolean verifyPayloadMetadata(UpdateConfig config,
+            Map<String, UpdateConfig.PackageFile> packageFiles)
+            throws DownloadControl.DownloadCancelledException {
+        Optional<UpdateConfig.PackageFile> metadataPackageFile = Optional.ofNullable(
+                packageFiles.get(PackageFiles.PAYLOAD_METADATA_FILE_NAME));
         if (!metadataPackageFile.isPresent()) {
             Log.w(TAG, String.format("ab_config.property_files doesn't contain %s",
                     PackageFiles.PAYLOAD_METADATA_FILE_NAME));
@@ -466,15 +696,17 @@ public class ForegroundPrepareUpdateService extends Service {
         try {
             Files.deleteIfExists(metadataPath);
             File metadataFile = metadataPath.toFile();
-            FileDownloader d = new FileDownloader(
-                    config.getUrl(),
-                    metadataPackageFile.get().getOffset(),
-                    metadataPackageFile.get().getSize(),
-                    metadataFile);
-            d.download();
+            FileDownloader.downloadAll(config.getUrl(), Collections.singletonList(
+                    new FileDownloader.Part(
+                            metadataPackageFile.get().getOffset(),
+                            metadataPackageFile.get().getSize(),
+                            metadataFile)),
+                    mDownloadControl);
             
             // Set permissions for update_engine access
             setFilePermissionsForUpdateEngine(metadataFile.getAbsolutePath());
+        } catch (DownloadControl.DownloadCancelledException e) {
+            throw e;
         } catch (IOException e) {
             Log.w(TAG, String.format("Downloading %s from %s failed",
                     PackageFiles.PAYLOAD_METADATA_FILE_NAME,
@@ -524,40 +756,39 @@ public class ForegroundPrepareUpdateService extends Service {
      * Downloads files defined in {@link UpdateConfig#getAbConfig()}
      * and exists in {@code PRE_STREAMING_FILES_SET}, and put them
      * in directory {@code dir}.
+     *
+     * @param packageFiles files of the update package, see {@link #getPackageFiles}
      */
-    private void downloadPreStreamingFiles(UpdateConfig config, String dir)
+    private void downloadPreStreamingFiles(UpdateConfig config,
+            Map<String, UpdateConfig.PackageFile> packageFiles, String dir)
             throws IOException {
         Log.d(TAG, "Deleting existing files from " + dir);
         for (String file : PRE_STREAMING_FILES_SET) {
             Files.deleteIfExists(Paths.get(OTA_PACKAGE_DIR, file));
         }
         Log.d(TAG, "Downloading files to " + dir);
-        
-        int totalFiles = config.getAbConfig().getPropertyFiles().length;
-        int currentFile = 0;
-        
-        for (UpdateConfig.PackageFile file : config.getAbConfig().getPropertyFiles()) {
+
+        // The files are usually next to each other in the package, so they are fetched
+        // together with as few range requests as possible over a kept-alive connection.
+        List<FileDownloader.Part> parts = new ArrayList<>();
+        List<File> downloadedFiles = new ArrayList<>();
+        for (UpdateConfig.PackageFile file : packageFiles.values()) {
             if (PRE_STREAMING_FILES_SET.contains(file.getFilename())) {
                 Log.d(TAG, "Downloading file " + file.getFilename());
-                updateNotification("Preparing Update", "Downloading " + file.getFilename() + "...", 
-                        40 + (currentFile * 30 / totalFiles));
-                sendBroadcast(ACTION_PREPARE_PROGRESS, currentUpdateId, null, 
-                        40 + (currentFile * 30 / totalFiles));
-                
                 File downloadedFile = Paths.get(dir, file.getFilename()).toFile();
-                FileDownloader downloader = new FileDownloader(
-                        config.getUrl(),
+                parts.add(new FileDownloader.Part(
                         file.getOffset(),
                         file.getSize(),
-                        downloadedFile);
-                downloader.download();
-                
-                // Set permissions for update_engine access
-                setFilePermissionsForUpdateEngine(downloadedFile.getAbsolutePath());
-                
-                currentFile++;
+                        downloadedFile));
+                downloadedFiles.add(downloadedFile);
             }
         }
+        FileDownloader.downloadAll(config.getUrl(), parts, mDownloadControl);
+
+        for (File downloadedFile : downloadedFiles) {
+            // Set permissions for update_engine access
+            setFilePermissionsForUpdateEngine(downloadedFile.getAbsolutePath());
+        }
     }
 
     /**
@@ -584,6 +815,34 @@ public class ForegroundPrepareUpdateService extends Service {
         return currentUpdateId;
     }
 
+    /**
+     * Pauses the downloads of the running preparation. Connections are closed right away;
+     * {@link #resumeDownload} continues from the last byte written.
+     */
+    public void pauseDownload() {
+        if (isPreparing) {
+            mDownloadControl.pause();
+            updateNotification("Preparing Update", "Download paused", DOWNLOAD_PROGRESS_START);
+        }
+    }
+
+    /** Resumes downloads paused with {@link #pauseDownload}. */
+    public void resumeDownload() {
+        mDownloadControl.resume();
+    }
+
+    public boolean isDownloadPaused() {
+        return isPreparing && mDownloadControl.isPaused();
+    }
+
+    /**
+     * Cancels the running preparation. The preparation thread stops within a few
+     * milliseconds and reports {@link #RESULT_CODE_ERROR}.
+     */
+    public void cancelPreparation() {
+        mDownloadControl.cancel();
+    }
+
     /**
      * Used by ForegroundPrepareUpdateService to pass {@link PayloadSpec}
      * to {@link UpdateResultCallback#onReceiveResult}.
@@ -0,0 +1,229 @@
+package tech.ologn.softwareupdater.services;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.PersistableBundle;
+import android.provider.Settings;
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks for updates in the background, once per {@link #CHECK_INTERVAL}. The check runs
+ * on a worker thread of the job with the {@link ConfigChecker} of
+ * {@link ForegroundConfigDownloadService}: an app in the background can't start that
+ * service. Since config requests are conditional, a check that finds nothing new costs a
+ * 304 response.
+ *
+ * <p>Each device checks at its own time of the interval, derived from its Android id, so
+ * that a fleet started at the same time doesn't hit the config server at the same time.
+ * When the server answers it's overloaded, checks back off exponentially, no sooner than
+ * it asked. Checks only run on a non-roaming network while charging.</p>
+ *
+ * <p>The next check is scheduled when a check ends, also when the job was stopped,
+ * alternating between two job ids: scheduling a job with the id of the running one would
+ * stop it.</p>
+ */
+public class UpdateCheckJobService extends JobService {
+
+    private static final String TAG = "UpdateCheckJobService";
+
+    private static final int JOB_ID = 1101;
+    private static final long CHECK_INTERVAL = TimeUnit.DAYS.toMillis(1);
+    private static final long MIN_BACKOFF = TimeUnit.MINUTES.toMillis(15);
+
+    private static final String PREFS_NAME = "update_check_job";
+    /** Consecutive checks the server answered overloaded. */
+    private static final String PREF_BUSY_COUNT = "busy_count";
+
+    // Job extras
+    private static final String EXTRA_CONFIG_URL = "config_url";
+    private static final String EXTRA_FALLBACK_CONFIG_URL = "fallback_config_url";
+    private static final String EXTRA_MANIFEST_URL = "manifest_url";
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    /**
+     * The running job; null once it ended or was stopped. A stopped job still schedules
+     * the next check when its check ends. Guarded by this.
+     */
+    private JobParameters mParams;
+
+    /**
+     * Schedules background checks of the given configs, unless they are already scheduled.
+     * The urls are the ones of {@link ForegroundConfigDownloadService}.
+     */
+    public static void schedule(Context context, String configUrl, String fallbackConfigUrl,
+            String manifestUrl) {
+        JobScheduler scheduler = context.getSystemService(JobScheduler.class);
+        if (scheduler == null) {
+            Log.w(TAG, "No job scheduler, background checks disabled");
+            return;
+        }
+        if (scheduler.getPendingJob(JOB_ID) != null
+                || scheduler.getPendingJob(JOB_ID + 1) != null) {
+            return;
+        }
+        PersistableBundle extras = new PersistableBundle();
+        extras.putString(EXTRA_CONFIG_URL, configUrl);
+        extras.putString(EXTRA_FALLBACK_CONFIG_URL, fallbackConfigUrl);
+        extras.putString(EXTRA_MANIFEST_URL, manifestUrl);
+        scheduleCheck(context, JOB_ID, extras,
+                getDelayToNextSlot(System.currentTimeMillis(), getSlotOffset(context)));
+    }
+
+    private static void scheduleCheck(Context context, int jobId, PersistableBundle extras,
+            long delay) {
+        JobInfo job = new JobInfo.Builder(jobId,
+                new ComponentName(context, UpdateCheckJobService.class))
+                .setMinimumLatency(delay)
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_NOT_ROAMING)
+                .setRequiresCharging(true)
+                .setPersisted(true)
+                .setExtras(extras)
+                .build();
+        JobScheduler scheduler = context.getSystemService(JobScheduler.class);
+        if (scheduler == null || scheduler.schedule(job) != JobScheduler.RESULT_SUCCESS) {
+            Log.e(TAG, "Failed to schedule update check");
+            return;
+        }
+        Log.i(TAG, "Next update check in " + TimeUnit.MILLISECONDS.toMinutes(delay) + " min");
+    }
+
+    /**
+     * @return offset of the checks of this device in {@link #CHECK_INTERVAL}: the same on
+     *         every run, evenly spread over devices
+     */
+    private static long getSlotOffset(Context context) {
+        String androidId = Settings.Secure.getString(context.getContentResolver(),
+                Settings.Secure.ANDROID_ID);
+        if (androidId == null) {
+            androidId = "";
+        }
+        long hash = UUID.nameUUIDFromBytes(androidId.getBytes(StandardCharsets.UTF_8))
+                .getMostSignificantBits();
+        return Math.floorMod(hash, CHECK_INTERVAL);
+    }
+
+    /** @return delay to the next time {@code offset} in the interval, in (0, interval] */
+    private static long getDelayToNextSlot(long now, long offset) {
+        return CHECK_INTERVAL - Math.floorMod(now - offset, CHECK_INTERVAL);
+    }
+
+    /**
+     * @return delay before retrying after {@code busyCount} overloaded answers: doubles
+     *         from {@link #MIN_BACKOFF} up to {@link #CHECK_INTERVAL}, at least
+     *         {@code retryAfter}, plus up to half of it again depending on the device
+     */
+    private static long getBackoff(int busyCount, long retryAfter, long slotOffset) {
+        long backoff = Math.min(CHECK_INTERVAL,
+                MIN_BACKOFF << Math.min(Math.max(busyCount - 1, 0), 10));
+        backoff = Math.max(backoff, retryAfter);
+        return backoff + Math.floorMod(slotOffset, backoff / 2 + 1);
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        synchronized (this) {
+            mParams = params;
+        }
+        mExecutor.execute(() -> runCheck(params));
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // Constraints no longer met. Rescheduling this job would retry with the default
+        // backoff of the scheduler, ignoring the slot of the device and the backoff of a
+        // busy server. The check can't be interrupted: it goes on and schedules the next
+        // one with its result. Until then the next check is scheduled from the results of
+        // the previous ones, in case the process is killed meanwhile.
+        synchronized (this) {
+            mParams = null;
+        }
+        int busyCount = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .getInt(PREF_BUSY_COUNT, 0);
+        scheduleNextCheck(params, busyCount, 0);
+        return false;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mExecutor.shutdown();
+    }
+
+    /** Runs the check of {@code params}, on {@link #mExecutor}. */
+    private void runCheck(JobParameters params) {
+        PersistableBundle extras = params.getExtras();
+        String configUrl = extras.getString(EXTRA_CONFIG_URL);
+        String fallbackConfigUrl = extras.getString(EXTRA_FALLBACK_CONFIG_URL);
+        boolean busy = false;
+        long retryAfter = 0;
+        try {
+            ConfigChecker.Result result = ConfigChecker.getInstance(this).check(
+                    configUrl != null ? ConfigChecker.getModelConfigUrl(configUrl) : null,
+                    fallbackConfigUrl != null
+                            ? ConfigChecker.getModelConfigUrl(fallbackConfigUrl) : null,
+                    extras.getString(EXTRA_MANIFEST_URL), null);
+            Log.i(TAG, result.mNotModified ? "Config is up to date"
+                    : "Config saved to " + result.mFilename);
+        } catch (ConfigChecker.ServerBusyException e) {
+            Log.w(TAG, "Config server overloaded", e);
+            busy = true;
+            retryAfter = e.mRetryAfter;
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Background update check failed", e);
+        }
+        finishCheck(params, busy, retryAfter);
+    }
+
+    /**
+     * Records the result of the check, schedules the next one and ends the job, unless it
+     * was stopped meanwhile.
+     */
+    private void finishCheck(JobParameters params, boolean busy, long retryAfter) {
+        boolean stopped;
+        synchronized (this) {
+            stopped = mParams != params;
+            if (!stopped) {
+                mParams = null;
+            }
+        }
+
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        int busyCount = busy ? prefs.getInt(PREF_BUSY_COUNT, 0) + 1 : 0;
+        prefs.edit().putInt(PREF_BUSY_COUNT, busyCount).apply();
+        if (busy) {
+            Log.w(TAG, "Config server busy " + busyCount + " time(s) in a row, backing off");
+        }
+        if (!stopped) {
+            jobFinished(params, false);
+        }
+        scheduleNextCheck(params, busyCount, retryAfter);
+    }
+
+    /**
+     * Schedules the check after the one of {@code params}, with the other job id: at the
+     * next slot, or after a backoff if the server was busy {@code busyCount} times in a row.
+     */
+    private void scheduleNextCheck(JobParameters params, int busyCount, long retryAfter) {
+        long slotOffset = getSlotOffset(this);
+        long delay = busyCount > 0
+                ? getBackoff(busyCount, retryAfter, slotOffset)
+                : getDelayToNextSlot(System.currentTimeMillis(), slotOffset);
+        scheduleCheck(this, params.getJobId() == JOB_ID ? JOB_ID + 1 : JOB_ID,
+                params.getExtras(), delay);
+    }
+}
@@ -0,0 +1,213 @@
+package tech.ologn.softwareupdater.utils;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Validators (ETag, Last-Modified) of the configs saved from each url, so that checking
+ * for an update again is a conditional GET: when the config hasn't changed, the server
+ * answers 304 with headers only and the saved config is kept as it is.
+ *
+ * <p>Also remembers urls the server answered don't exist, and counts hits (304) and misses
+ * (full responses). Everything is stored as JSON in a single file.</p>
+ */
+public final class ConfigHttpCache {
+
+    private static final String TAG = "ConfigHttpCache";
+
+    private final File mFile;
+    /**
+     * {"entries": {url: {etag, lastModified, file}}, "missing": {url: time}, "hits": n,
+     * "misses": n}
+     */
+    private JSONObject mState;
+
+    public ConfigHttpCache(File file) {
+        this.mFile = file;
+    }
+
+    /**
+     * Makes {@code connection} conditional if a config was saved from {@code url} to
+     * {@code savedFile} and still exists there.
+     *
+     * @return true if validators were added, i.e. a 304 response is expected when the
+     *         config hasn't changed
+     */
+    public synchronized boolean addConditionalHeaders(HttpURLConnection connection, String url,
+            File savedFile) {
+        JSONObject entries = getState().optJSONObject("entries");
+        JSONObject entry = entries != null ? entries.optJSONObject(url) : null;
+        if (entry == null || !savedFile.isFile()
+                || !savedFile.getAbsolutePath().equals(entry.optString("file"))) {
+            return false;
+        }
+        boolean added = false;
+        if (entry.has("etag")) {
+            connection.setRequestProperty("If-None-Match", entry.optString("etag"));
+            added = true;
+        }
+        if (entry.has("lastModified")) {
+            connection.setRequestProperty("If-Modified-Since",
+                    entry.optString("lastModified"));
+            added = true;
+        }
+        return added;
+    }
+
+    /**
+     * Remembers the validators of the config from {@code url}, once it was saved to
+     * {@code savedFile}. Without validators, the entry of {@code url} is removed. Entries
+     * of other urls saved to the same file are removed, their config was overwritten.
+     *
+     * @param etag         ETag header of the response, or null
+     * @param lastModified Last-Modified header of the response, or null
+     */
+    public synchronized void put(String url, String etag, String lastModified,
+            File savedFile) {
+        try {
+            JSONObject entries = getState().optJSONObject("entries");
+            if (entries == null) {
+                entries = new JSONObject();
+                getState().put("entries", entries);
+            }
+            List<String> overwritten = new ArrayList<>();
+            for (Iterator<String> keys = entries.keys(); keys.hasNext(); ) {
+                String key = keys.next();
+                JSONObject entry = entries.optJSONObject(key);
+                if (!key.equals(url) && entry != null
+                        && savedFile.getAbsolutePath().equals(entry.optString("file"))) {
+                    overwritten.add(key);
+                }
+            }
+            for (String key : overwritten) {
+                entries.remove(key);
+            }
+            JSONObject missing = getState().optJSONObject("missing");
+            if (missing != null) {
+                missing.remove(url);
+            }
+            if (etag == null && lastModified == null) {
+                entries.remove(url);
+            } else {
+                JSONObject entry = new JSONObject();
+                if (etag != null) {
+                    entry.put("etag", etag);
+                }
+                if (lastModified != null) {
+                    entry.put("lastModified", lastModified);
+                }
+                entry.put("file", savedFile.getAbsolutePath());
+                entries.put(url, entry);
+            }
+        } catch (JSONException e) {
+            Log.w(TAG, "Failed to store validators of " + url, e);
+            return;
+        }
+        save();
+    }
+
+    /**
+     * Remembers that {@code url} answered 404 or 410 now, until a config is saved from it
+     * with {@link #put}.
+     */
+    public synchronized void putMissing(String url) {
+        try {
+            JSONObject missing = getState().optJSONObject("missing");
+            if (missing == null) {
+                missing = new JSONObject();
+                getState().put("missing", missing);
+            }
+            missing.put(url, System.currentTimeMillis());
+        } catch (JSONException e) {
+            Log.w(TAG, "Failed to store missing " + url, e);
+            return;
+        }
+        save();
+    }
+
+    /**
+     * @return true if {@code url} answered 404 or 410 less than {@code maxAgeMillis} ago,
+     *         so requesting it again is likely a waste
+     */
+    public synchronized boolean isMissing(String url, long maxAgeMillis) {
+        JSONObject missing = getState().optJSONObject("missing");
+        long time = missing != null ? missing.optLong(url, -1) : -1;
+        long age = System.currentTimeMillis() - time;
+        // A negative age means the clock was set back, the time can't be trusted.
+        return time >= 0 && age >= 0 && age < maxAgeMillis;
+    }
+
+    /** Counts a 304 response. */
+    public synchronized void recordHit() {
+        increment("hits");
+    }
+
+    /** Counts a full response. */
+    public synchronized void recordMiss() {
+        increment("misses");
+    }
+
+    public synchronized long getHits() {
+        return getState().optLong("hits", 0);
+    }
+
+    public synchronized long getMisses() {
+        return getState().optLong("misses", 0);
+    }
+
+    private void increment(String counter) {
+        try {
+            getState().put(counter, getState().optLong(counter, 0) + 1);
+        } catch (JSONException e) {
+            Log.w(TAG, "Failed to count " + counter, e);
+            return;
+        }
+        save();
+    }
+
+    private JSONObject getState() {
+        if (mState == null) {
+            mState = new JSONObject();
+            if (mFile.isFile()) {
+                try {
+                    mState = new JSONObject(new String(
+                            Files.readAllBytes(mFile.toPath()), StandardCharsets.UTF_8));
+                } catch (IOException | JSONException e) {
+                    Log.w(TAG, "Ignoring unreadable config cache " + mFile, e);
+                }
+            }
+        }
+        return mState;
+    }
+
+    /**
+     * Writes the state to a temporary file, then renames it. Failures are only logged,
+     * without the cache the next check is a full download.
+     */
+    private void save() {
+        File tmp = new File(mFile.getParentFile(), mFile.getName() + ".tmp");
+        try {
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                out.write(mState.toString().getBytes(StandardCharsets.UTF_8));
+                out.getFD().sync();
+            }
+            if (!tmp.renameTo(mFile)) {
+                throw new IOException("Can't rename " + tmp + " to " + mFile);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write config cache " + mFile, e);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package tech.ologn.softwareupdater.utils;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Arrays;
+
+/**
+ * Index of the update configs of all models, read from a single manifest:
+ *
+ * <pre>
+ * {"configs": [
+ *   {"model": "cartp", "from": "1.0.3", "url": "cartp/ota_config_incremental.json"},
+ *   {"model": "cartp", "url": "cartp/ota_config_full.json"}
+ * ]}
+ * </pre>
+ *
+ * <p>An entry with {@code from} is an incremental config that applies to that version
+ * only; an entry without is the full config of the model. Relative urls are resolved
+ * against the url of the manifest.</p>
+ *
+ * <p>Entries are kept sorted by model and version, and looked up by binary search.</p>
+ */
+public final class ConfigManifest {
+
+    /** Separates model and version in a key; can't appear in either. */
+    private static final char KEY_SEPARATOR = '\n';
+
+    /** Sorted "model\nfrom" keys, "model\n" for full configs. */
+    private final String[] mKeys;
+    /** Config url of each key. */
+    private final String[] mUrls;
+
+    private ConfigManifest(String[] keys, String[] urls) {
+        this.mKeys = keys;
+        this.mUrls = urls;
+    }
+
+    /**
+     * @param json        content of the manifest
+     * @param manifestUrl url the manifest was read from, relative urls are resolved against it
+     * @throws JSONException if the manifest is invalid or has the same entry twice
+     */
+    public static ConfigManifest parse(String json, String manifestUrl) throws JSONException {
+        JSONArray configs = new JSONObject(json).getJSONArray("configs");
+        String[][] entries = new String[configs.length()][];
+        for (int i = 0; i < configs.length(); i++) {
+            JSONObject config = configs.getJSONObject(i);
+            String model = config.getString("model");
+            String from = config.optString("from", "");
+            if (model.indexOf(KEY_SEPARATOR) >= 0 || from.indexOf(KEY_SEPARATOR) >= 0) {
+                throw new JSONException("Invalid manifest entry " + config);
+            }
+            entries[i] = new String[] {
+                    key(model, from), resolve(manifestUrl, config.getString("url"))};
+        }
+        Arrays.sort(entries, (a, b) -> a[0].compareTo(b[0]));
+
+        String[] keys = new String[entries.length];
+        String[] urls = new String[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            if (i > 0 && entries[i][0].equals(entries[i - 1][0])) {
+                throw new JSONException("Duplicate manifest entry for "
+                        + entries[i][0].replace(KEY_SEPARATOR, ' '));
+            }
+            keys[i] = entries[i][0];
+            urls[i] = entries[i][1];
+        }
+        return new ConfigManifest(keys, urls);
+    }
+
+    /** @return url of the incremental config from {@code version}, or null if there's none */
+    public String getIncrementalConfigUrl(String model, String version) {
+        return version.isEmpty() ? null : find(key(model, version));
+    }
+
+    /** @return url of the full config of {@code model}, or null if there's none */
+    public String getFullConfigUrl(String model) {
+        return find(key(model, ""));
+    }
+
+    /** @return number of entries */
+    public int size() {
+        return mKeys.length;
+    }
+
+    private String find(String key) {
+        int index = Arrays.binarySearch(mKeys, key);
+        return index >= 0 ? mUrls[index] : null;
+    }
+
+    /** Models are matched ignoring case, like the per-model paths they replace. */
+    private static String key(String model, String from) {
+        return model.toLowerCase() + KEY_SEPARATOR + from;
+    }
+
+    private static String resolve(String manifestUrl, String url) throws JSONException {
+        try {
+            return new URL(new URL(manifestUrl), url).toString();
+        } catch (MalformedURLException e) {
+            throw new JSONException("Invalid config url " + url + " in manifest");
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package tech.ologn.softwareupdater.utils;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
+
+import org.json.JSONException;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads an update config straight from a stream with {@link JsonReader}, without
+ * building the whole JSON tree: only the fields needed to check that it's a valid config
+ * are kept, the rest is skipped.
+ *
+ * <p>In the same pass, every byte is copied to an output stream, usually the file the
+ * config is saved to, and counted against a byte limit. The first bytes are sniffed, so an
+ * HTML error page is rejected before it's parsed.</p>
+ */
+public final class ConfigStreamReader {
+
+    /** Bytes looked at to tell JSON from HTML. */
+    private static final int SNIFF_SIZE = 64;
+
+    /** Receives the number of bytes read so far. */
+    public interface ProgressListener {
+        void onProgress(long bytesRead);
+    }
+
+    /**
+     * Reads and checks the config in {@code in}, which is read to its end but not closed.
+     *
+     * @param copy     receives every byte read; may be null
+     * @param maxBytes the read fails once more bytes than this are read
+     * @param listener notified after every read; may be null
+     * @throws IOException   if {@code in} can't be read, is too large or is HTML
+     * @throws JSONException if the content isn't a valid update config
+     */
+    public static Config read(InputStream in, OutputStream copy, long maxBytes,
+            ProgressListener listener) throws IOException, JSONException {
+        BufferedInputStream input = new BufferedInputStream(
+                new BoundedTeeInputStream(in, copy, maxBytes, listener));
+        sniff(input);
+        JsonReader reader = new JsonReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+        try {
+            return readConfig(reader);
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            throw new JSONException("Invalid config: " + e.getMessage());
+        }
+    }
+
+    /** Rejects content that doesn't start with a JSON object, HTML in particular. */
+    private static void sniff(BufferedInputStream input) throws IOException, JSONException {
+        input.mark(SNIFF_SIZE);
+        byte[] head = new byte[SNIFF_SIZE];
+        int count = 0;
+        int read;
+        while (count < head.length && (read = input.read(head, count, head.length - count)) > 0) {
+            count += read;
+        }
+        input.reset();
+
+        int i = 0;
+        if (count >= 3 && (head[0] & 0xff) == 0xef && (head[1] & 0xff) == 0xbb
+                && (head[2] & 0xff) == 0xbf) {
+            i = 3; // UTF-8 byte order mark
+        }
+        while (i < count && Character.isWhitespace(head[i])) {
+            i++;
+        }
+        if (i < count && head[i] == '<') {
+            throw new IOException("Downloaded content appears to be HTML, not JSON. The URL may be incorrect or the server returned an error page.");
+        }
+        if (i == count || head[i] != '{') {
+            throw new JSONException("Config isn't a JSON object");
+        }
+    }
+
+    private static Config readConfig(JsonReader reader) throws IOException, JSONException {
+        String name = null;
+        String url = null;
+        String installType = null;
+        boolean hasAbConfig = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "name":
+                    name = reader.nextString();
+                    break;
+                case "url":
+                    url = reader.nextString();
+                    break;
+                case "ab_install_type":
+                    installType = reader.nextString();
+                    break;
+                case "ab_config":
+                    readAbConfig(reader);
+                    hasAbConfig = true;
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        if (reader.peek() != JsonToken.END_DOCUMENT) {
+            throw new JSONException("Unexpected content after the config");
+        }
+
+        // Same requirements as UpdateConfig#fromJson.
+        if (name == null || url == null || !hasAbConfig) {
+            throw new JSONException("Config lacks name, url or ab_config");
+        }
+        if (!"NON_STREAMING".equals(installType) && !"STREAMING".equals(installType)) {
+            throw new JSONException("Invalid type, expected either "
+                    + "NON_STREAMING or STREAMING, got " + installType);
+        }
+        return new Config(name, url);
+    }
+
+    private static void readAbConfig(JsonReader reader) throws IOException, JSONException {
+        boolean hasForceSwitchSlot = false;
+        boolean hasVerifyPayloadMetadata = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "force_switch_slot":
+                    reader.nextBoolean();
+                    hasForceSwitchSlot = true;
+                    break;
+                case "verify_payload_metadata":
+                    reader.nextBoolean();
+                    hasVerifyPayloadMetadata = true;
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        if (!hasForceSwitchSlot || !hasVerifyPayloadMetadata) {
+            throw new JSONException(
+                    "ab_config lacks force_switch_slot or verify_payload_metadata");
+        }
+    }
+
+    /** Fields of a config read by {@link #read}. */
+    public static final class Config {
+        private final String mName;
+        private final String mUrl;
+
+        Config(String name, String url) {
+            this.mName = name;
+            this.mUrl = url;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public String getUrl() {
+            return mUrl;
+        }
+    }
+
+    /** Copies what is read to {@code copy} and fails past {@code maxBytes}. */
+    private static final class BoundedTeeInputStream extends FilterInputStream {
+        private final OutputStream mCopy;
+        private final long mMaxBytes;
+        private final ProgressListener mListener;
+        private long mRead;
+
+        BoundedTeeInputStream(InputStream in, OutputStream copy, long maxBytes,
+                ProgressListener listener) {
+            super(in);
+            this.mCopy = copy;
+            this.mMaxBytes = maxBytes;
+            this.mListener = listener;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = in.read(b, off, len);
+            if (count <= 0) {
+                return count;
+            }
+            mRead += count;
+            if (mRead > mMaxBytes) {
+                throw new IOException("File too large, more than " + mMaxBytes + " bytes");
+            }
+            if (mCopy != null) {
+                mCopy.write(b, off, count);
+            }
+            if (mListener != null) {
+                mListener.onProgress(mRead);
+            }
+            return count;
+        }
+
+        /** Reads instead of skipping, so that skipped bytes are copied and counted too. */
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            int count = read(buffer, 0, buffer.length);
+            return Math.max(0, count);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package tech.ologn.softwareupdater.utils;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Lets another thread cancel, pause and resume a running {@link FileDownloader}.
+ *
+ * <p>Cancelling or pausing closes the streams the download is reading, so a worker
+ * blocked in a socket read wakes up right away instead of after the stall timeout.
+ * A paused download waits without holding any connection; on resume it continues from
+ * the last byte written. A cancelled download fails with
+ * {@link DownloadCancelledException}.</p>
+ *
+ * <p>One control may be shared by several downloads, e.g. all the downloads of an
+ * update preparation.</p>
+ */
+public final class DownloadControl {
+
+    private static final String TAG = "DownloadControl";
+
+    private final Set<Closeable> mActive = new HashSet<>();
+    private boolean mCancelled;
+    private boolean mPaused;
+    private long mPausedSince;
+    private long mPausedMillis;
+
+    /** Stops the download for good. */
+    public synchronized void cancel() {
+        if (mCancelled) {
+            return;
+        }
+        Log.i(TAG, "Download cancelled");
+        mCancelled = true;
+        notifyAll();
+        closeActive();
+    }
+
+    /** Stops transferring data until {@link #resume} or {@link #cancel}. */
+    public synchronized void pause() {
+        if (mCancelled || mPaused) {
+            return;
+        }
+        Log.i(TAG, "Download paused");
+        mPaused = true;
+        mPausedSince = System.currentTimeMillis();
+        closeActive();
+    }
+
+    /** Continues a paused download from where it stopped. */
+    public synchronized void resume() {
+        if (!mPaused) {
+            return;
+        }
+        Log.i(TAG, "Download resumed");
+        mPaused = false;
+        mPausedMillis += System.currentTimeMillis() - mPausedSince;
+        notifyAll();
+    }
+
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    public synchronized boolean isPaused() {
+        return mPaused;
+    }
+
+    /** @return total time spent paused, including the current pause */
+    synchronized long getPausedMillis() {
+        return mPausedMillis + (mPaused ? System.currentTimeMillis() - mPausedSince : 0);
+    }
+
+    /**
+     * Throws if the download was cancelled or paused. Called by the copy loop between
+     * two reads.
+     *
+     * @throws DownloadCancelledException if cancelled
+     * @throws IOException                if paused; the caller retries after
+     *                                    {@link #awaitResumed}
+     */
+    synchronized void checkpoint() throws IOException {
+        if (mCancelled) {
+            throw new DownloadCancelledException();
+        }
+        if (mPaused) {
+            throw new IOException("Download paused");
+        }
+    }
+
+    /**
+     * Blocks while the download is paused.
+     *
+     * @return true if it had to wait
+     * @throws DownloadCancelledException if cancelled, before or while waiting
+     */
+    synchronized boolean awaitResumed() throws InterruptedIOException {
+        boolean waited = false;
+        while (mPaused && !mCancelled) {
+            waited = true;
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Download was interrupted");
+            }
+        }
+        if (mCancelled) {
+            throw new DownloadCancelledException();
+        }
+        return waited;
+    }
+
+    /**
+     * Sleeps for {@code millis}, waking up early if the download is cancelled.
+     *
+     * @throws DownloadCancelledException if cancelled
+     */
+    synchronized void sleep(long millis) throws InterruptedIOException {
+        long end = System.currentTimeMillis() + millis;
+        long remaining = millis;
+        while (remaining > 0 && !mCancelled) {
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Download was interrupted");
+            }
+            remaining = end - System.currentTimeMillis();
+        }
+        if (mCancelled) {
+            throw new DownloadCancelledException();
+        }
+    }
+
+    /**
+     * Registers a stream to close on cancel or pause.
+     *
+     * @throws IOException if already cancelled or paused, see {@link #checkpoint}
+     */
+    synchronized void register(Closeable stream) throws IOException {
+        checkpoint();
+        mActive.add(stream);
+    }
+
+    synchronized void unregister(Closeable stream) {
+        mActive.remove(stream);
+    }
+
+    private void closeActive() {
+        for (Closeable stream : mActive) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close download stream", e);
+            }
+        }
+        mActive.clear();
+    }
+
+    /** Thrown by a download stopped with {@link #cancel}. */
+    public static final class DownloadCancelledException extends InterruptedIOException {
+        DownloadCancelledException() {
+            super("Download was cancelled");
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package tech.ologn.softwareupdater.utils;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Persisted progress of a download, stored beside the downloaded file as
+ * {@code <file>.journal}. It records the url, the validator returned by the server
+ * (ETag or Last-Modified) and the byte ranges of the file that are already written,
+ * so an interrupted download can continue with range requests.
+ *
+ * <p>Ranges are half-open {@code [start, end)} offsets in the destination file, kept
+ * sorted and merged.</p>
+ */
+public final class DownloadJournal {
+
+    private static final String TAG = "DownloadJournal";
+    private static final String SUFFIX = ".journal";
+
+    private final File mFile;
+    private final String mUrl;
+    private final String mValidator;
+    private final long mLength;
+    private final List<long[]> mCompleted = new ArrayList<>();
+
+    private DownloadJournal(File file, String url, String validator, long length) {
+        this.mFile = file;
+        this.mUrl = url;
+        this.mValidator = validator;
+        this.mLength = length;
+    }
+
+    /**
+     * Creates an empty journal for {@code destination}. It's not written until {@link #save}.
+     */
+    public static DownloadJournal create(File destination, String url, String validator,
+            long length) {
+        return new DownloadJournal(journalFile(destination), url, validator, length);
+    }
+
+    /**
+     * @return journal of {@code destination}, or null if there is none or it can't be parsed
+     */
+    public static DownloadJournal load(File destination) {
+        File file = journalFile(destination);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            JSONObject o = new JSONObject(
+                    new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+            DownloadJournal journal = new DownloadJournal(file,
+                    o.getString("url"),
+                    o.optString("validator", null),
+                    o.getLong("length"));
+            JSONArray ranges = o.getJSONArray("ranges");
+            for (int i = 0; i < ranges.length(); i++) {
+                JSONArray r = ranges.getJSONArray(i);
+                journal.addCompleted(r.getLong(0), r.getLong(1));
+            }
+            return journal;
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Ignoring unreadable journal " + file, e);
+            return null;
+        }
+    }
+
+    /** Removes the journal of {@code destination}, if any. */
+    public static void delete(File destination) {
+        File file = journalFile(destination);
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Failed to delete " + file);
+        }
+    }
+
+    private static File journalFile(File destination) {
+        return new File(destination.getParentFile(), destination.getName() + SUFFIX);
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    public String getValidator() {
+        return mValidator;
+    }
+
+    public long getLength() {
+        return mLength;
+    }
+
+    /**
+     * Returns true if this journal describes the same remote file. A journal without
+     * validator never matches, because the server can't confirm the file is unchanged.
+     */
+    public boolean matches(String url, String validator, long length) {
+        return mUrl.equals(url)
+                && mValidator != null
+                && mValidator.equals(validator)
+                && mLength == length;
+    }
+
+    /** Marks {@code [start, end)} as written. */
+    public synchronized void addCompleted(long start, long end) {
+        if (start >= end) {
+            return;
+        }
+        int i = 0;
+        while (i < mCompleted.size() && mCompleted.get(i)[1] < start) {
+            i++;
+        }
+        long newStart = start;
+        long newEnd = end;
+        while (i < mCompleted.size() && mCompleted.get(i)[0] <= newEnd) {
+            long[] r = mCompleted.remove(i);
+            newStart = Math.min(newStart, r[0]);
+            newEnd = Math.max(newEnd, r[1]);
+        }
+        mCompleted.add(i, new long[] {newStart, newEnd});
+    }
+
+    /** @return number of bytes already written */
+    public synchronized long getCompletedBytes() {
+        long total = 0;
+        for (long[] r : mCompleted) {
+            total += r[1] - r[0];
+        }
+        return total;
+    }
+
+    /** @return ranges of the file that still have to be downloaded */
+    public synchronized List<long[]> getMissingRanges() {
+        List<long[]> missing = new ArrayList<>();
+        long position = 0;
+        for (long[] r : mCompleted) {
+            if (r[0] > position) {
+                missing.add(new long[] {position, r[0]});
+            }
+            position = Math.max(position, r[1]);
+        }
+        if (position < mLength) {
+            missing.add(new long[] {position, mLength});
+        }
+        return missing;
+    }
+
+    public boolean isComplete() {
+        return getMissingRanges().isEmpty();
+    }
+
+    /**
+     * Writes the journal to disk. The content is written to a temporary file first and
+     * then renamed, so a crash never leaves a truncated journal behind.
+     */
+    public synchronized void save() throws IOException {
+        String json;
+        try {
+            JSONArray ranges = new JSONArray();
+            for (long[] r : mCompleted) {
+                ranges.put(new JSONArray().put(r[0]).put(r[1]));
+            }
+            JSONObject o = new JSONObject();
+            o.put("url", mUrl);
+            if (mValidator != null) {
+                o.put("validator", mValidator);
+            }
+            o.put("length", mLength);
+            o.put("ranges", ranges);
+            json = o.toString();
+        } catch (JSONException e) {
+            throw new IOException("Can't serialize journal " + mFile, e);
+        }
+        File tmp = new File(mFile.getParentFile(), mFile.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(json.getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(mFile)) {
+            throw new IOException("Can't write journal " + mFile);
+        }
+    }
+}
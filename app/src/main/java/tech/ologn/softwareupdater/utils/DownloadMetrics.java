@@ -0,0 +1,166 @@
+package tech.ologn.softwareupdater.utils;
+
+import android.os.Process;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing how a download went, see {@link FileDownloader#getMetrics}.
+ * Updated concurrently by the download workers.
+ *
+ * <p>{@link #appendTo} writes them as one JSON object per line, together with the
+ * settings the download used, so that runs with different buffer sizes, connection
+ * counts and transports can be compared from the report file.</p>
+ */
+public final class DownloadMetrics {
+
+    private static final String TAG = "DownloadMetrics";
+
+    /** The report is started over once it grows past this size. */
+    private static final long MAX_REPORT_SIZE = 1024 * 1024;
+
+    private final AtomicLong mBytes = new AtomicLong();
+    private final AtomicInteger mRetries = new AtomicInteger();
+    private final AtomicInteger mStalls = new AtomicInteger();
+    private final AtomicLong mFirstByteMillis = new AtomicLong(-1);
+    private volatile long mStartMillis;
+    private volatile long mEndMillis;
+    private volatile long mStartCpuMillis;
+    private volatile long mEndCpuMillis;
+    private volatile String mTransport;
+    private volatile int mBufferSize;
+    private volatile int mConnections;
+    private volatile boolean mSucceeded;
+
+    /**
+     * @param transport   simple name of the transport class
+     * @param bufferSize  copy buffer size
+     * @param connections maximum number of parallel connections
+     */
+    void start(String transport, int bufferSize, int connections) {
+        mTransport = transport;
+        mBufferSize = bufferSize;
+        mConnections = connections;
+        mStartMillis = System.currentTimeMillis();
+        mEndMillis = 0;
+        mStartCpuMillis = Process.getElapsedCpuTime();
+        mSucceeded = false;
+    }
+
+    void finish(boolean succeeded) {
+        mEndMillis = System.currentTimeMillis();
+        mEndCpuMillis = Process.getElapsedCpuTime();
+        mSucceeded = succeeded;
+    }
+
+    void addBytes(long count) {
+        if (count > 0) {
+            mFirstByteMillis.compareAndSet(-1, System.currentTimeMillis() - mStartMillis);
+        }
+        mBytes.addAndGet(count);
+    }
+
+    void addRetry() {
+        mRetries.incrementAndGet();
+    }
+
+    void addStall() {
+        mStalls.incrementAndGet();
+    }
+
+    /** @return bytes received from the network, not counting bytes resumed from disk */
+    public long getBytesDownloaded() {
+        return mBytes.get();
+    }
+
+    /** @return number of times a request was retried after an error */
+    public int getRetries() {
+        return mRetries.get();
+    }
+
+    /** @return number of times no data arrived within the stall timeout */
+    public int getStalls() {
+        return mStalls.get();
+    }
+
+    /** @return duration of the download, or time since it started if it's still running */
+    public long getDurationMillis() {
+        long end = mEndMillis != 0 ? mEndMillis : System.currentTimeMillis();
+        return mStartMillis == 0 ? 0 : end - mStartMillis;
+    }
+
+    /** @return time from the start until the first byte was received, or -1 if none was */
+    public long getTimeToFirstByteMillis() {
+        return mFirstByteMillis.get();
+    }
+
+    /**
+     * @return CPU time used by the app while the download ran, in milliseconds. This is
+     *         the whole process, so it's only meaningful when nothing else is busy.
+     */
+    public long getCpuMillis() {
+        long end = mEndMillis != 0 ? mEndCpuMillis : Process.getElapsedCpuTime();
+        return end - mStartCpuMillis;
+    }
+
+    /** @return average throughput in bytes per second */
+    public long getBytesPerSecond() {
+        return getBytesDownloaded() * 1000 / Math.max(1, getDurationMillis());
+    }
+
+    /** @return the metrics and the settings of the download, as JSON */
+    public JSONObject toJson() {
+        JSONObject o = new JSONObject();
+        try {
+            double mb = getBytesDownloaded() / 1024.0 / 1024.0;
+            o.put("time", mStartMillis);
+            o.put("transport", mTransport);
+            o.put("bufferSize", mBufferSize);
+            o.put("connections", mConnections);
+            o.put("succeeded", mSucceeded);
+            o.put("bytes", getBytesDownloaded());
+            o.put("durationMs", getDurationMillis());
+            o.put("bytesPerSecond", getBytesPerSecond());
+            o.put("timeToFirstByteMs", getTimeToFirstByteMillis());
+            o.put("cpuMs", getCpuMillis());
+            o.put("cpuMsPerMb", mb > 0 ? getCpuMillis() / mb : 0);
+            o.put("retries", getRetries());
+            o.put("stalls", getStalls());
+        } catch (JSONException e) {
+            Log.w(TAG, "Failed to serialize download metrics", e);
+        }
+        return o;
+    }
+
+    /**
+     * Appends {@link #toJson} as one line to {@code report}. Failures are only logged,
+     * the report must never break a download.
+     */
+    public void appendTo(File report) {
+        boolean append = report.length() < MAX_REPORT_SIZE;
+        try (FileOutputStream out = new FileOutputStream(report, append)) {
+            out.write((toJson().toString() + "\n").getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write download metrics to " + report, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "bytes=" + getBytesDownloaded()
+                + " durationMs=" + getDurationMillis()
+                + " ttfbMs=" + getTimeToFirstByteMillis()
+                + " cpuMs=" + getCpuMillis()
+                + " retries=" + getRetries()
+                + " stalls=" + getStalls();
+    }
+}
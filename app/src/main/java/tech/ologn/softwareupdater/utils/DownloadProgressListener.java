@@ -0,0 +1,20 @@
+package tech.ologn.softwareupdater.utils;
+
+/**
+ * Receives progress of a {@link FileDownloader} download. Invoked from a download
+ * thread, at most once per the interval given to
+ * {@link FileDownloader#setProgressListener}, and once more when the download completes.
+ */
+public interface DownloadProgressListener {
+
+    /**
+     * @param bytesDone           bytes of the file present so far, including bytes kept
+     *                            from a resumed attempt
+     * @param bytesTotal          size of the file, or -1 if unknown
+     * @param bytesPerSecond      throughput since the previous report
+     * @param avgBytesPerSecond   exponentially weighted moving average of the throughput
+     * @param etaMillis           estimated time left based on the average, or -1 if unknown
+     */
+    void onProgress(long bytesDone, long bytesTotal, long bytesPerSecond,
+            long avgBytesPerSecond, long etaMillis);
+}
@@ -0,0 +1,126 @@
+package tech.ologn.softwareupdater.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+
+/**
+ * Reads byte ranges of a file identified by a url. {@link FileDownloader} uses it for
+ * every request, so the way bytes are fetched is chosen by the url scheme:
+ * {@link HttpTransport} for http(s), {@link LocalFileTransport} for {@code file://}.
+ */
+public interface DownloadTransport {
+
+    /**
+     * @return the transport for the scheme of {@code url}
+     * @throws IOException if the scheme isn't supported or the file url is invalid
+     */
+    static DownloadTransport forUrl(String url) throws IOException {
+        if (isLocal(url)) {
+            // Decodes escapes such as %20, and accepts both file:///path and file:/path.
+            try {
+                return new LocalFileTransport(new File(URI.create(url)));
+            } catch (IllegalArgumentException e) {
+                throw new NonRetryableException("Invalid file url " + url, e);
+            }
+        }
+        if (url.startsWith("http://") || url.startsWith("https://")) {
+            return new HttpTransport(url);
+        }
+        throw new NonRetryableException("Unsupported url " + url);
+    }
+
+    /** @return true if {@code url} points to a file on the device, e.g. on USB or sdcard */
+    static boolean isLocal(String url) {
+        return url.startsWith("file:");
+    }
+
+    /**
+     * Sets how long a read may wait for data before it fails with
+     * {@link java.net.SocketTimeoutException}. Ignored by transports that can't stall.
+     */
+    void setStallTimeout(int stallTimeoutMillis);
+
+    /**
+     * Learns the length and validator of the file, starting at {@code offset}.
+     *
+     * @return null if the source can't serve byte ranges
+     */
+    Stat probe(long offset) throws IOException;
+
+    /**
+     * Opens the bytes {@code [offset, offset + size)} of the file, or up to its end if
+     * {@code size} is -1. The returned stream starts at {@code offset}.
+     *
+     * @param validator     value from {@link Stat#getValidator}; if the file has changed
+     *                      since, the request fails instead of returning other content
+     * @param rangeRequired fail instead of skipping to {@code offset} when the source
+     *                      sends the whole file
+     */
+    Body open(long offset, long size, String validator, boolean rangeRequired)
+            throws IOException;
+
+    /**
+     * Opens the last {@code size} bytes of the file, or the whole file if it's shorter.
+     * Also learns the length and validator of the file, see {@link Body#getStat}, so
+     * reading the tail of a file takes a single request.
+     */
+    Body openTail(long size) throws IOException;
+
+    /** Length and validator of the bytes to download, as reported by the source. */
+    final class Stat {
+        private final long mLength;
+        private final String mValidator;
+
+        Stat(long length, String validator) {
+            this.mLength = length;
+            this.mValidator = validator;
+        }
+
+        /** @return number of bytes from the probed offset to the end of the file */
+        public long getLength() {
+            return mLength;
+        }
+
+        /** @return ETag, Last-Modified or similar; null if the source has none */
+        public String getValidator() {
+            return mValidator;
+        }
+    }
+
+    /** An open range of the file. */
+    final class Body {
+        private final InputStream mInput;
+        private final long mLength;
+        private final Stat mStat;
+
+        Body(InputStream input, long length) {
+            this(input, length, null);
+        }
+
+        Body(InputStream input, long length, Stat stat) {
+            this.mInput = input;
+            this.mLength = length;
+            this.mStat = stat;
+        }
+
+        /** @return the content, starting at the requested offset; must be closed */
+        public InputStream getInput() {
+            return mInput;
+        }
+
+        /** @return number of bytes {@link #getInput} will return, or -1 if unknown */
+        public long getLength() {
+            return mLength;
+        }
+
+        /**
+         * @return length of the whole file and its validator; only set by
+         *         {@link #openTail}
+         */
+        public Stat getStat() {
+            return mStat;
+        }
+    }
+}
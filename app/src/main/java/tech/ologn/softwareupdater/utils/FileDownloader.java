@@ -1,28 +1,136 @@
 package tech.ologn.softwareupdater.utils;
 
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import android.util.Log;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.URL;
-import java.net.URLConnection;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Downloads chunk of a file from given url using {@code offset} and {@code size},
  * and saves to a given location.
  *
- * In a real-life application this helper class should download from HTTP Server,
- * but in this sample app it will only download from a local file.
+ * <p>Bytes are read through a {@link DownloadTransport} chosen by the url scheme.
+ * For http(s) urls only the requested byte range is fetched, using a
+ * {@code Range} request. Servers that ignore the header and answer with the
+ * whole file are still supported: the bytes before {@code offset} are skipped.
+ * {@code file://} sources are copied by the kernel or through a memory mapping.
+ *
+ * <p>When {@link #setSegmentCount} is greater than 1 and the server supports ranges,
+ * the file is split into that many byte ranges which are fetched in parallel and
+ * written at their offsets in a preallocated destination file.
+ *
+ * <p>Whenever the size is known up front the destination is preallocated, and writes to
+ * it are done on a separate thread so that reading the network never waits for storage.
+ *
+ * <p>When {@link #setResumable} is enabled, progress is recorded in a
+ * {@link DownloadJournal} beside the destination file. The next attempt for the same
+ * url continues from the bytes already written, as long as the server validator
+ * (ETag or Last-Modified) is unchanged.
+ *
+ * <p>{@link #trackDigest} computes SHA-256 of parts of the file while it's written,
+ * so the content can be verified without reading the file again. A digest needs the
+ * bytes in file order, so a download in several segments that tracks digests is split
+ * into small chunks handed out to the connections in file order; a chunk that completes
+ * before the ones preceding it is held in memory until they're hashed.
+ *
+ * <p>Connections that receive nothing for {@link #setStallTimeout} are dropped. Failed
+ * requests are retried with exponential backoff, continuing from the last byte written,
+ * until {@link #setMaxDuration} is reached. {@link #getMetrics} counts retries and stalls.
+ *
+ * <p>A {@link DownloadControl} cancels or pauses the download from another thread.
  */
 public final class FileDownloader {
 
+    private static final String TAG = "FileDownloader";
+
+    /** Upper bound for {@link #setSegmentCount}, to keep the thread pool small. */
+    public static final int MAX_SEGMENTS = 8;
+
+    /** Segments smaller than this are not worth a separate connection. */
+    private static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+
+    /**
+     * Parts passed to {@link #downloadAll} that are at most this far apart are fetched with
+     * one range request; the bytes in between are read and dropped.
+     */
+    private static final long MAX_COALESCE_GAP = 64 * 1024;
+
+    /** Default size of the copy buffer, see {@link #setBufferSize}. */
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Size of the chunks of a download in several segments that tracks digests, see
+     * {@link InOrderHasher}. At most two chunks per connection are held in memory.
+     */
+    private static final int HASHED_CHUNK_SIZE = 2 * 1024 * 1024;
+
+    /** How many bytes a range worker writes between two journal updates. */
+    private static final long JOURNAL_SAVE_INTERVAL = 4 * 1024 * 1024;
+
+    /** Default for {@link #setStallTimeout}. */
+    public static final int DEFAULT_STALL_TIMEOUT = 30000; // 30 seconds
+
+    /** Default for {@link #setMaxDuration}. */
+    public static final long DEFAULT_MAX_DURATION = 60 * 60 * 1000; // 1 hour
+
+    /** Consecutive failed attempts without any progress before giving up. */
+    private static final int MAX_RETRIES = 6;
+
+    private static final long RETRY_BASE_DELAY = 1000;
+    private static final long RETRY_MAX_DELAY = 60000;
+
     private String mUrl;
     private long mOffset;
     private long mSize;
     private File mDestination;
+    private int mSegmentCount = 1;
+    private boolean mResumable = false;
+    private int mBufferSize = DEFAULT_BUFFER_SIZE;
+    private DownloadJournal mJournal;
+    private final List<RangeDigest> mDigests = new ArrayList<>();
+    /** False while segments are hashed by an {@link InOrderHasher}, see {@link #copy}. */
+    private boolean mHashWhileWriting = true;
+    private ThroughputMeter mMeter;
+    private int mStallTimeout = DEFAULT_STALL_TIMEOUT;
+    private long mMaxDuration = DEFAULT_MAX_DURATION;
+    private long mDeadline;
+    private final DownloadMetrics mMetrics = new DownloadMetrics();
+    private DownloadControl mControl = new DownloadControl();
+    private DownloadTransport mTransport;
+    /** Validator of the downloaded content, see {@link #getValidator}. */
+    private String mValidator;
+    /**
+     * Writers of finished copies, reused by the next copies of the download so that
+     * segments and retries don't each start a thread and allocate buffers. Guarded by
+     * itself; emptied when the download ends.
+     */
+    private final ArrayDeque<WriteBehindWriter> mWriters = new ArrayDeque<>();
+    private boolean mWritersClosed;
 
     public FileDownloader(String url, long offset, long size, File destination) {
         this.mUrl = url;
@@ -31,85 +139,1019 @@ public final class FileDownloader {
         this.mDestination = destination;
     }
 
+    /**
+     * Downloads several parts of the same file, each one to its own destination.
+     *
+     * <p>Parts are sorted by offset, and parts that are adjacent or close to each other
+     * are merged into a single range request. Requests are made one after another and
+     * their responses are fully read, so {@link HttpTransport} keeps the connection
+     * alive and reuses it for the next request instead of paying TCP and TLS setup again.</p>
+     *
+     * @param control cancels or pauses the downloads, may be null
+     */
+    public static void downloadAll(String url, List<Part> parts, DownloadControl control)
+            throws IOException {
+        List<Part> sorted = new ArrayList<>(parts);
+        sorted.sort((a, b) -> Long.compare(a.mOffset, b.mOffset));
+
+        int first = 0;
+        while (first < sorted.size()) {
+            long start = sorted.get(first).mOffset;
+            long end = start + sorted.get(first).mSize;
+            int last = first;
+            while (last + 1 < sorted.size()) {
+                Part next = sorted.get(last + 1);
+                if (next.mOffset < end || next.mOffset - end > MAX_COALESCE_GAP) {
+                    break;
+                }
+                end = next.mOffset + next.mSize;
+                last++;
+            }
+            Log.d(TAG, "Fetching " + (last - first + 1) + " parts of " + url
+                    + " with range " + start + "-" + (end - 1));
+            FileDownloader downloader = new FileDownloader(url, start, end - start, null);
+            if (control != null) {
+                downloader.setControl(control);
+            }
+            List<Part> group = sorted.subList(first, last + 1);
+            downloader.mDeadline = System.currentTimeMillis() + DEFAULT_MAX_DURATION;
+            // The parts are small, a failed request is simply repeated.
+            try {
+                downloader.withRetries("range " + start + "-" + (end - 1), new long[] {0},
+                        () -> downloader.downloadParts(group));
+            } finally {
+                downloader.closeWriters();
+            }
+            first = last + 1;
+        }
+    }
+
+    /**
+     * Sets number of parallel connections used to download the file. Only http(s)
+     * servers that honour range requests are downloaded in segments, otherwise
+     * the file is downloaded over a single connection.
+     *
+     * @param segmentCount number of segments, from 1 to {@link #MAX_SEGMENTS}
+     */
+    public void setSegmentCount(int segmentCount) {
+        if (segmentCount < 1 || segmentCount > MAX_SEGMENTS) {
+            throw new IllegalArgumentException("segmentCount must be in [1, "
+                    + MAX_SEGMENTS + "], got " + segmentCount);
+        }
+        this.mSegmentCount = segmentCount;
+    }
+
+    /**
+     * Sets size of the buffer used to copy data from the network to the file. Every
+     * write to the file moves up to this many bytes.
+     */
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize < 4096) {
+            throw new IllegalArgumentException("bufferSize must be at least 4096, got "
+                    + bufferSize);
+        }
+        this.mBufferSize = bufferSize;
+    }
+
+    /**
+     * Sets how long a connection may go without receiving any data. A stalled connection
+     * is dropped and the request is retried from the last byte written.
+     */
+    public void setStallTimeout(int stallTimeoutMillis) {
+        this.mStallTimeout = stallTimeoutMillis;
+    }
+
+    /**
+     * Sets the total time after which a download that keeps failing is abandoned, instead
+     * of being retried again.
+     */
+    public void setMaxDuration(long maxDurationMillis) {
+        this.mMaxDuration = maxDurationMillis;
+    }
+
+    /**
+     * Sets the control used to cancel, pause or resume this download from another thread.
+     */
+    public void setControl(DownloadControl control) {
+        this.mControl = control;
+    }
+
+    /**
+     * Sets the transport used to read {@code mUrl}. By default it's chosen by the url
+     * scheme, see {@link DownloadTransport#forUrl}.
+     */
+    public void setTransport(DownloadTransport transport) {
+        this.mTransport = transport;
+    }
+
+    private DownloadTransport getTransport() throws IOException {
+        if (mTransport == null) {
+            mTransport = DownloadTransport.forUrl(mUrl);
+        }
+        return mTransport;
+    }
+
+    /**
+     * @return ETag or similar the last {@link #download} was pinned to, null if the source
+     *         has none or doesn't serve ranges
+     */
+    public String getValidator() {
+        return mValidator;
+    }
+
+    /** @return counters of the current or last {@link #download} */
+    public DownloadMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Sets a listener for download progress and throughput.
+     *
+     * @param listener       invoked from a download thread
+     * @param intervalMillis minimum time between two reports
+     */
+    public void setProgressListener(DownloadProgressListener listener, long intervalMillis) {
+        this.mMeter = listener == null ? null : new ThroughputMeter(listener, intervalMillis);
+    }
+
+    /**
+     * Computes SHA-256 of the bytes {@code [offset, offset + length)} of the destination
+     * file while it's downloaded. The result is available from the returned digest once
+     * {@link #download} completes.
+     */
+    public RangeDigest trackDigest(long offset, long length) {
+        RangeDigest digest = new RangeDigest(offset, length);
+        mDigests.add(digest);
+        return digest;
+    }
+
+    /**
+     * Enables persisting progress in a {@link DownloadJournal}, so that an interrupted
+     * download continues from where it stopped. Only works with servers that honour
+     * range requests and return an ETag or Last-Modified header.
+     */
+    public void setResumable(boolean resumable) {
+        this.mResumable = resumable;
+    }
+
+    /**
+     * @return number of bytes that were already present when the download started,
+     *         as recorded by the journal of a previous attempt; 0 if not resumable
+     */
+    public static long getResumeOffset(String url, File destination) {
+        DownloadJournal journal = DownloadJournal.load(destination);
+        if (journal == null || !journal.getUrl().equals(url) || !destination.isFile()) {
+            return 0;
+        }
+        return journal.getCompletedBytes();
+    }
+
     /**
      * Downloads the file with given offset and size.
      * If size is -1, downloads the entire file from offset to end.
      * @throws IOException when can't download the file
      */
     public void download() throws IOException {
-        Log.d("FileDownloader", "downloading " + mDestination.getName()
+        Log.d(TAG, "downloading " + mDestination.getName()
                 + " from " + mUrl
                 + " to " + mDestination.getAbsolutePath()
                 + " offset=" + mOffset
-                + " size=" + (mSize == -1 ? "unlimited" : mSize));
-
-        URL url = new URL(mUrl);
-        URLConnection connection = url.openConnection();
-        connection.connect();
-
-        // download the file
-        try (InputStream input = connection.getInputStream()) {
-            try (OutputStream output = new FileOutputStream(mDestination)) {
-                long skipped = input.skip(mOffset);
-                if (skipped != mOffset) {
-                    throw new IOException("Can't download file "
-                            + mUrl
-                            + " with given offset "
-                            + mOffset);
-                }
-
-                byte[] data = new byte[4096];
-                long total = 0;
-                long lastLogTime = System.currentTimeMillis();
-                final long LOG_INTERVAL = 3000; // Log every 3 seconds
-
-                if (mSize == -1) {
-                    int count;
-                    while ((count = input.read(data)) != -1) {
-                        output.write(data, 0, count);
-                        total += count;
-
-                        long currentTime = System.currentTimeMillis();
-                        if (currentTime - lastLogTime >= LOG_INTERVAL) {
-                            double mbDownloaded = total / 1024.0 / 1024.0;
-                            Log.d("FileDownloader", "Download progress: " + String.format("%.2f", mbDownloaded) + " MB downloaded");
-                            lastLogTime = currentTime;
-                        }
+                + " size=" + (mSize == -1 ? "unlimited" : mSize)
+                + " segments=" + mSegmentCount);
+
+        mDeadline = System.currentTimeMillis() + mMaxDuration;
+        mMetrics.start(getTransport().getClass().getSimpleName(), mBufferSize, mSegmentCount);
+        synchronized (mWriters) {
+            mWritersClosed = false;
+        }
+        boolean succeeded = false;
+        try {
+            downloadWithRetries();
+            succeeded = true;
+        } finally {
+            closeWriters();
+            mMetrics.finish(succeeded);
+            Log.d(TAG, "Download metrics for " + mDestination.getName() + ": " + mMetrics);
+        }
+    }
+
+    private void downloadWithRetries() throws IOException {
+        mValidator = null;
+        DownloadTransport transport = getTransport();
+        transport.setStallTimeout(mStallTimeout);
+        if (transport instanceof LocalFileTransport) {
+            // Segments and journals don't make a local copy any faster.
+            downloadLocal((LocalFileTransport) transport);
+            return;
+        }
+
+        if (mSegmentCount > 1 || mResumable) {
+            DownloadTransport.Stat[] stat = {null};
+            withRetries("probe", new long[] {0}, () -> stat[0] = transport.probe(mOffset));
+            if (stat[0] != null) {
+                long available = stat[0].getLength();
+                if (mSize != -1 && available < mSize) {
+                    throw new NonRetryableException("Can't download file " + mUrl
+                            + " with given size " + mSize + ", only " + available
+                            + " available");
+                }
+                mValidator = stat[0].getValidator();
+                downloadRanges(mSize == -1 ? available : mSize, mValidator);
+                return;
+            }
+            Log.i(TAG, "Server doesn't support ranges, using a single connection");
+            DownloadJournal.delete(mDestination);
+        }
+
+        try (FileOutputStream stream = new FileOutputStream(mDestination);
+             FileChannel output = stream.getChannel()) {
+            // {bytes written, expected size or -1}
+            long[] done = {0, mSize};
+            withRetries(mDestination.getName(), done,
+                    () -> downloadFrom(stream, output, done));
+
+            double totalMb = done[0] / 1024.0 / 1024.0;
+            Log.d(TAG, "Download completed: with total size " + String.format("%.2f", totalMb) + " MB");
+
+            if (output.size() > done[0]) {
+                // The server sent less than its Content-Length announced.
+                output.truncate(done[0]);
+            }
+        }
+    }
+
+    /**
+     * One attempt of a single-connection download. Continues from {@code done[0]} bytes
+     * already written to {@code output}: only the rest is requested.
+     */
+    private void downloadFrom(FileOutputStream stream, FileChannel output, long[] done)
+            throws IOException {
+        long position = done[0];
+        long remaining = mSize == -1 ? -1 : mSize - position;
+        DownloadTransport.Body body =
+                getTransport().open(mOffset + position, remaining, null, false);
+
+        try (InputStream input = body.getInput()) {
+            if (position == 0) {
+                long expected = mSize != -1 ? mSize : body.getLength();
+                if (expected > 0) {
+                    preallocate(stream.getFD(), output, expected);
+                }
+                done[1] = expected;
+                startMeter(0, expected);
+            }
+
+            final long LOG_INTERVAL = 3000; // Log every 3 seconds
+            long[] lastLogTime = {System.currentTimeMillis()};
+            copy(input, output, position, remaining, written -> {
+                done[0] = position + written;
+                long currentTime = System.currentTimeMillis();
+                if (currentTime - lastLogTime[0] >= LOG_INTERVAL) {
+                    logProgress(done[0], mSize);
+                    lastLogTime[0] = currentTime;
+                }
+            });
+        }
+        if (done[1] != -1 && done[0] != done[1]) {
+            throw new IOException("Can't download file "
+                    + mUrl
+                    + " with given size "
+                    + done[1] + ", connection ended after " + done[0] + " bytes");
+        }
+        finishMeter();
+    }
+
+    /**
+     * Runs {@code attempt} until it succeeds. Failures that can't be fixed by trying again
+     * are thrown right away, others are retried after an exponential backoff with jitter.
+     * {@code done[0]} is the number of bytes the attempts have written so far: as long as
+     * an attempt makes progress the failure count starts over, so a flaky but working link
+     * isn't abandoned. Gives up after {@link #MAX_RETRIES} failures in a row or when the
+     * {@link #setMaxDuration} deadline would be passed; time spent paused doesn't count.
+     */
+    private void withRetries(String what, long[] done, Attempt attempt) throws IOException {
+        int failures = 0;
+        while (true) {
+            long before = done[0];
+            try {
+                attempt.run();
+                return;
+            } catch (IOException e) {
+                if (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException)) {
+                    throw e;
+                }
+                // A pause closes the connections, which makes the attempt fail. That's not
+                // an error: continue from the last byte written once resumed.
+                if (mControl.awaitResumed()) {
+                    Log.i(TAG, "Continuing " + what + " of " + mUrl + " from byte " + done[0]);
+                    failures = 0;
+                    continue;
+                }
+                if (e instanceof SocketTimeoutException) {
+                    mMetrics.addStall();
+                } else if (e instanceof NonRetryableException) {
+                    throw e;
+                }
+                failures = done[0] > before ? 1 : failures + 1;
+                if (failures > MAX_RETRIES) {
+                    throw e;
+                }
+                long delay = backoffDelay(failures);
+                if (System.currentTimeMillis() + delay > mDeadline + mControl.getPausedMillis()) {
+                    throw new IOException("Giving up on " + what + " of " + mUrl
+                            + ", download is taking too long", e);
+                }
+                Log.w(TAG, "Retrying " + what + " from byte " + done[0] + " in " + delay
+                        + " ms, attempt " + (failures + 1), e);
+                mMetrics.addRetry();
+                mControl.sleep(delay);
+            }
+        }
+    }
+
+    /**
+     * @return delay before retry number {@code failures}: doubles from
+     *         {@link #RETRY_BASE_DELAY} up to {@link #RETRY_MAX_DELAY}, randomized to the
+     *         upper half, so that many devices failing together don't retry in lockstep
+     */
+    private static long backoffDelay(int failures) {
+        long delay = Math.min(RETRY_MAX_DELAY, RETRY_BASE_DELAY << Math.min(failures - 1, 16));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * Downloads {@code [mOffset, mOffset + mSize)} with one request and splits the
+     * response into {@code parts}, which must be sorted, non-overlapping and inside the range.
+     */
+    private void downloadParts(List<Part> parts) throws IOException {
+        DownloadTransport.Body body = getTransport().open(mOffset, mSize, null, false);
+        try (InputStream input = body.getInput()) {
+            long position = mOffset;
+            for (Part part : parts) {
+                skipFully(input, part.mOffset - position);
+                try (FileChannel output = new FileOutputStream(part.mDestination).getChannel()) {
+                    long total = copy(input, output, 0, part.mSize, written -> { });
+                    if (total != part.mSize) {
+                        throw new IOException("Can't download file " + mUrl
+                                + " part " + part.mDestination.getName()
+                                + " with given size " + part.mSize);
+                    }
+                }
+                position = part.mOffset + part.mSize;
+            }
+        }
+    }
+
+    /**
+     * Copies a {@code file://} source. Without digests the copy is done with
+     * {@link FileChannel#transferTo}, which lets the kernel move the data. With digests
+     * the source is mapped into memory in windows, which are hashed and written without
+     * being copied into a Java buffer first.
+     */
+    private void downloadLocal(LocalFileTransport source) throws IOException {
+        long size = mSize == -1 ? source.length() - mOffset : mSize;
+        if (size < 0 || mOffset + size > source.length()) {
+            throw new NonRetryableException("Can't download file " + mUrl
+                    + " with given offset " + mOffset + " and size " + mSize);
+        }
+        try (FileOutputStream stream = new FileOutputStream(mDestination);
+             FileChannel output = stream.getChannel()) {
+            if (size > 0) {
+                preallocate(stream.getFD(), output, size);
+            }
+            startMeter(0, size);
+            // Copy in steps, so progress can be reported and the copy can be paused
+            // or cancelled.
+            long step = mBufferSize * 64L;
+            long total = 0;
+            while (total < size) {
+                mControl.awaitResumed();
+                long count = Math.min(step, size - total);
+                if (mDigests.isEmpty()) {
+                    count = source.transferTo(mOffset + total, count, output, total);
+                    if (count <= 0) {
+                        throw new IOException("Can't download file " + mUrl
+                                + " with given size " + mSize);
                     }
-                    double totalMb = total / 1024.0 / 1024.0;
-                    Log.d("FileDownloader", "Downloaded entire file: " + String.format("%.2f", totalMb) + " MB");
                 } else {
-                    while (total < mSize) {
-                        int needToRead = (int) Math.min(4096, mSize - total);
-                        int count = input.read(data, 0, needToRead);
-                        if (count <= 0) {
-                            break;
+                    MappedByteBuffer mapped = source.map(mOffset + total, count);
+                    updateDigests(mapped, total);
+                    while (mapped.hasRemaining()) {
+                        output.write(mapped, total + mapped.position());
+                    }
+                }
+                total += count;
+                mMetrics.addBytes(count);
+                if (mMeter != null) {
+                    mMeter.add(count);
+                }
+            }
+            finishMeter();
+            Log.d(TAG, "Copied local file: " + String.format("%.2f", total / 1024.0 / 1024.0)
+                    + " MB");
+        }
+    }
+
+    /**
+     * Copies {@code limit} bytes, or everything until end of stream if {@code limit} is -1,
+     * from {@code input} to {@code output} starting at {@code position}.
+     *
+     * <p>The buffer is filled completely before it's written, so each write system call
+     * moves up to {@code mBufferSize} bytes instead of whatever a single socket read
+     * returned. Writes are done by a {@link WriteBehindWriter} with two buffers, so a slow
+     * write to storage doesn't stop the socket from being read. The writer is taken from
+     * {@link #mWriters} and given back when the copy succeeds.</p>
+     *
+     * @param listener invoked with the number of bytes actually written to {@code output},
+     *                 a last time when the copy ends, whether it succeeded or not
+     * @return number of bytes copied
+     */
+    private long copy(InputStream input, FileChannel output, long position, long limit,
+            WriteListener listener) throws IOException {
+        if (limit == 0) {
+            return 0;
+        }
+        mControl.register(input);
+        WriteBehindWriter writer = obtainWriter();
+        long base = writer.getWritten();
+        boolean flushed = false;
+        try {
+            long total = 0;
+            boolean eof = false;
+            while (!eof && (limit == -1 || total < limit)) {
+                byte[] buffer = writer.take();
+                int wanted = limit == -1
+                        ? buffer.length
+                        : (int) Math.min(buffer.length, limit - total);
+                int filled = 0;
+                while (filled < wanted) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new InterruptedIOException("Download was interrupted");
+                    }
+                    mControl.checkpoint();
+                    int count = input.read(buffer, filled, wanted - filled);
+                    if (count < 0) {
+                        eof = true;
+                        break;
+                    }
+                    filled += count;
+                }
+                // Digests are updated before the buffer is handed over; it isn't reused
+                // until the writer is done with it.
+                if (mHashWhileWriting) {
+                    updateDigests(buffer, filled, position + total);
+                }
+                writer.submit(output, buffer, filled, position + total);
+                total += filled;
+                mMetrics.addBytes(filled);
+                if (mMeter != null) {
+                    mMeter.add(filled);
+                }
+                if (filled > 0) {
+                    listener.onWritten(writer.getWritten() - base);
+                }
+            }
+            writer.flush();
+            flushed = true;
+            return total;
+        } finally {
+            mControl.unregister(input);
+            if (!flushed) {
+                // A failed copy may still hold a buffer it didn't submit, or the writer
+                // failed: it's closed rather than reused.
+                writer.close();
+            }
+            // Also after a failure, so the caller knows exactly where to resume.
+            long written = writer.getWritten() - base;
+            if (flushed) {
+                recycleWriter(writer);
+            }
+            listener.onWritten(written);
+        }
+    }
+
+    /** @return a writer of {@link #mWriters}, or a new one if none is free */
+    private WriteBehindWriter obtainWriter() {
+        synchronized (mWriters) {
+            WriteBehindWriter writer = mWriters.poll();
+            if (writer != null) {
+                return writer;
+            }
+        }
+        // The whole range fits in a smaller buffer, e.g. the parts of downloadAll().
+        int bufferSize = mSize == -1
+                ? mBufferSize
+                : (int) Math.max(1, Math.min(mBufferSize, mSize));
+        return new WriteBehindWriter(bufferSize, 2);
+    }
+
+    /** Gives back a writer whose copy succeeded, or closes it if the download ended. */
+    private void recycleWriter(WriteBehindWriter writer) {
+        synchronized (mWriters) {
+            if (!mWritersClosed) {
+                mWriters.push(writer);
+                return;
+            }
+        }
+        // A worker that outlived the download.
+        writer.close();
+    }
+
+    /** Stops the threads of the free writers; later copies close their own. */
+    private void closeWriters() {
+        List<WriteBehindWriter> writers;
+        synchronized (mWriters) {
+            mWritersClosed = true;
+            writers = new ArrayList<>(mWriters);
+            mWriters.clear();
+        }
+        for (WriteBehindWriter writer : writers) {
+            writer.close();
+        }
+    }
+
+    /**
+     * Reserves {@code length} bytes for the file behind {@code fd}, so that it doesn't grow
+     * one write at a time and the download can't run out of space half way.
+     * {@code posix_fallocate} allocates all the blocks at once, which also keeps the file
+     * less fragmented. If the file system doesn't support it, the file is only extended.
+     *
+     * @throws IOException if there isn't enough free space
+     */
+    private static void preallocate(FileDescriptor fd, FileChannel channel, long length)
+            throws IOException {
+        if (channel.size() > length) {
+            channel.truncate(length);
+        }
+        try {
+            Os.posix_fallocate(fd, 0, length);
+            return;
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.ENOSPC) {
+                throw new NonRetryableException("Not enough space to download " + length + " bytes", e);
+            }
+            Log.w(TAG, "posix_fallocate failed, extending the file instead", e);
+        }
+        if (channel.size() < length) {
+            // Writing the last byte extends the file; the bytes before it read as zeros.
+            channel.write(ByteBuffer.wrap(new byte[1]), length - 1);
+        }
+    }
+
+    private void startMeter(long done, long total) {
+        if (mMeter != null) {
+            mMeter.start(done, total);
+        }
+    }
+
+    private void finishMeter() {
+        if (mMeter != null) {
+            mMeter.finish();
+        }
+    }
+
+    private void updateDigests(byte[] buffer, int count, long filePosition) {
+        for (int i = 0; i < mDigests.size(); i++) {
+            mDigests.get(i).update(buffer, 0, count, filePosition);
+        }
+    }
+
+    /** Same as {@link #updateDigests(byte[], int, long)}, the buffer position is kept. */
+    private void updateDigests(ByteBuffer buffer, long filePosition) {
+        for (int i = 0; i < mDigests.size(); i++) {
+            mDigests.get(i).update(buffer.duplicate(), filePosition);
+        }
+    }
+
+    /**
+     * Feeds the digests with bytes that are already in the file, up to {@code position}.
+     * Used when a resumed download skips ranges written by a previous attempt.
+     */
+    private void catchUpDigests(FileChannel channel, long position) throws IOException {
+        long from = position;
+        for (RangeDigest digest : mDigests) {
+            if (!digest.isComplete()) {
+                from = Math.min(from, digest.getPosition());
+            }
+        }
+        if (from >= position) {
+            return;
+        }
+        byte[] buffer = new byte[mBufferSize];
+        ByteBuffer wrapper = ByteBuffer.wrap(buffer);
+        while (from < position) {
+            wrapper.clear().limit((int) Math.min(buffer.length, position - from));
+            int count = channel.read(wrapper, from);
+            if (count <= 0) {
+                throw new IOException("Can't read " + mDestination + " at " + from);
+            }
+            updateDigests(buffer, count, from);
+            from += count;
+        }
+    }
+
+    private static void logProgress(long written, long size) {
+        double downloadedMb = written / 1024.0 / 1024.0;
+        if (size == -1) {
+            Log.d(TAG, "Download progress: " + String.format("%.2f", downloadedMb) + " MB downloaded");
+        } else {
+            int progressPercent = (int) ((written * 100) / size);
+            double totalMb = size / 1024.0 / 1024.0;
+            Log.d(TAG, "Download progress: " + progressPercent + "% (" + String.format("%.2f", downloadedMb) + " MB / " + String.format("%.2f", totalMb) + " MB)");
+        }
+    }
+
+    /**
+     * Downloads the missing parts of {@code [mOffset, mOffset + length)} using range
+     * requests. Parts already recorded in the journal are kept. Every part is split into
+     * at most {@code mSegmentCount} segments which are downloaded in parallel, each one
+     * written at its position in the destination. With digests to compute, the parts are
+     * split into chunks of {@link #HASHED_CHUNK_SIZE} instead, see {@link InOrderHasher}.
+     */
+    private void downloadRanges(long length, String validator) throws IOException {
+        mJournal = null;
+        if (mResumable) {
+            DownloadJournal journal = DownloadJournal.load(mDestination);
+            if (journal != null && mDestination.isFile()
+                    && journal.matches(mUrl, validator, length)) {
+                mJournal = journal;
+                Log.i(TAG, "Resuming " + mDestination.getName() + " from "
+                        + journal.getCompletedBytes() + " of " + length + " bytes");
+            } else {
+                mJournal = DownloadJournal.create(mDestination, mUrl, validator, length);
+            }
+        }
+
+        List<long[]> missing;
+        if (mJournal != null) {
+            missing = mJournal.getMissingRanges();
+        } else {
+            missing = new ArrayList<>();
+            missing.add(new long[] {0, length});
+        }
+        long remaining = 0;
+        for (long[] r : missing) {
+            remaining += r[1] - r[0];
+        }
+        startMeter(length - remaining, length);
+        if (remaining == 0) {
+            Log.i(TAG, mDestination.getName() + " is already downloaded");
+            finishMeter();
+            if (!mDigests.isEmpty()) {
+                try (FileChannel channel = new RandomAccessFile(mDestination, "r").getChannel()) {
+                    catchUpDigests(channel, length);
+                }
+            }
+            return;
+        }
+
+        int segments = (int) Math.max(1,
+                Math.min(mSegmentCount, remaining / MIN_SEGMENT_SIZE));
+        // Digests need the bytes in file order. A single segment is hashed while it's
+        // written; several segments are cut into chunks that are hashed in order.
+        mHashWhileWriting = segments == 1;
+        boolean chunked = !mDigests.isEmpty() && segments > 1;
+        long segmentSize = chunked
+                ? HASHED_CHUNK_SIZE
+                : (remaining + segments - 1) / segments;
+        long startTime = System.currentTimeMillis();
+
+        List<Future<Void>> futures = new ArrayList<>();
+        try (RandomAccessFile file = new RandomAccessFile(mDestination, "rw")) {
+            if (file.length() != length) {
+                preallocate(file.getFD(), file.getChannel(), length);
+            }
+            FileChannel channel = file.getChannel();
+            ExecutorService executor = Executors.newFixedThreadPool(segments);
+            try {
+                InOrderHasher hasher = chunked
+                        ? new InOrderHasher(channel, missing, length, 2 * segments)
+                        : null;
+
+                for (long[] range : missing) {
+                    for (long start = range[0]; start < range[1]; start += segmentSize) {
+                        final long position = start;
+                        final long size = Math.min(segmentSize, range[1] - start);
+                        // Chunks get their buffer in file order, so the next chunk to hash
+                        // always has one and the held ones are eventually released.
+                        final byte[] buffer = hasher != null ? hasher.take(futures) : null;
+                        futures.add(executor.submit(() -> {
+                            if (hasher != null) {
+                                downloadChunk(position, buffer, (int) size, validator);
+                                hasher.add(position, buffer, (int) size);
+                                return null;
+                            }
+                            if (mHashWhileWriting) {
+                                catchUpDigests(channel, position);
+                            }
+                            downloadSegment(channel, position, size, validator);
+                            return null;
+                        }));
+                    }
+                }
+                for (Future<Void> future : futures) {
+                    future.get();
+                }
+                // Only reads what a previous attempt wrote after the last missing range, the
+                // bytes downloaded now are already hashed.
+                catchUpDigests(channel, length);
+                finishMeter();
+            } finally {
+                // Workers record what they wrote before the journal is saved, and don't
+                // write to the channel once it's closed.
+                shutdown(executor);
+                saveJournal();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Download of " + mUrl + " was interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Can't download file " + mUrl, cause);
+        } finally {
+            mHashWhileWriting = true;
+        }
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+        Log.d(TAG, "Ranged download completed: " + futures.size() + " segments, "
+                + String.format("%.2f", remaining / 1024.0 / 1024.0) + " MB in " + elapsed
+                + " ms (" + String.format("%.2f", remaining * 1000.0 / elapsed / 1024.0 / 1024.0)
+                + " MB/s)");
+    }
+
+    /**
+     * Downloads {@code size} bytes starting at {@code mOffset + position} and writes them to
+     * {@code channel} at {@code position}. Positional writes don't share the channel position,
+     * so segments can be written concurrently.
+     */
+    private void downloadSegment(FileChannel channel, long position, long size, String validator)
+            throws IOException {
+        long[] done = {0};
+        withRetries("segment at " + (mOffset + position), done,
+                () -> downloadSegmentFrom(channel, position, size, validator, done));
+    }
+
+    /**
+     * One attempt of {@link #downloadSegment}, continuing after the {@code done[0]} bytes
+     * of the segment that previous attempts wrote.
+     */
+    private void downloadSegmentFrom(FileChannel channel, long position, long size,
+            String validator, long[] done) throws IOException {
+        long start = position + done[0];
+        long remaining = size - done[0];
+        long remoteOffset = mOffset + start;
+        // The probe showed that ranges are supported, so a full response means the file
+        // has changed since.
+        DownloadTransport.Body body = getTransport().open(remoteOffset, remaining, validator, true);
+        try (InputStream input = body.getInput()) {
+            // bytes of this attempt recorded in the journal
+            long[] recorded = {0};
+            long total = copy(input, channel, start, remaining, written -> {
+                done[0] = start - position + written;
+                if (written - recorded[0] >= JOURNAL_SAVE_INTERVAL) {
+                    recordCompleted(start + recorded[0], start + written, true);
+                    recorded[0] = written;
+                }
+            });
+            if (total != remaining) {
+                throw new IOException("Can't download file " + mUrl
+                        + " segment at " + remoteOffset + " with given size " + remaining);
+            }
+        } finally {
+            // copy() reports the final count also when it fails, so this records
+            // everything this attempt wrote.
+            recordCompleted(start, position + done[0], false);
+        }
+    }
+
+    /**
+     * Downloads {@code size} bytes starting at {@code mOffset + position} into
+     * {@code buffer}, then writes them to the destination at {@code position}. Used for the
+     * chunks of an {@link InOrderHasher}, which need the bytes in memory until they're hashed.
+     */
+    private void downloadChunk(long position, byte[] buffer, int size, String validator)
+            throws IOException {
+        long[] done = {0};
+        withRetries("chunk at " + (mOffset + position), done, () -> {
+            DownloadTransport.Body body = getTransport().open(
+                    mOffset + position + done[0], size - done[0], validator, true);
+            try (InputStream input = body.getInput()) {
+                mControl.register(input);
+                try {
+                    while (done[0] < size) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            throw new InterruptedIOException("Download was interrupted");
+                        }
+                        mControl.checkpoint();
+                        int count = input.read(buffer, (int) done[0], size - (int) done[0]);
+                        if (count < 0) {
+                            throw new IOException("Can't download file " + mUrl + " chunk at "
+                                    + (mOffset + position) + " with given size " + size);
                         }
-                        output.write(data, 0, count);
-                        total += count;
-
-                        long currentTime = System.currentTimeMillis();
-                        if (currentTime - lastLogTime >= LOG_INTERVAL) {
-                            int progressPercent = (int) ((total * 100) / mSize);
-                            double downloadedMb = total / 1024.0 / 1024.0;
-                            double totalMb = mSize / 1024.0 / 1024.0;
-                            Log.d("FileDownloader", "Download progress: " + progressPercent + "% (" + String.format("%.2f", downloadedMb) + " MB / " + String.format("%.2f", totalMb) + " MB)");
-                            lastLogTime = currentTime;
+                        done[0] += count;
+                        mMetrics.addBytes(count);
+                        if (mMeter != null) {
+                            mMeter.add(count);
                         }
                     }
+                } finally {
+                    mControl.unregister(input);
+                }
+            }
+        });
+        // Written through a channel of its own: this worker is interrupted when the download
+        // stops, and an interrupt during a write closes the channel the others share.
+        try (FileChannel output = FileChannel.open(mDestination.toPath(),
+                StandardOpenOption.WRITE)) {
+            ByteBuffer wrapper = ByteBuffer.wrap(buffer, 0, size);
+            while (wrapper.hasRemaining()) {
+                output.write(wrapper, position + wrapper.position());
+            }
+        }
+        // Saved each time a chunk crosses a multiple of the interval.
+        recordCompleted(position, position + size,
+                (position + size) / JOURNAL_SAVE_INTERVAL != position / JOURNAL_SAVE_INTERVAL);
+    }
+
+    /**
+     * Stops the remaining workers and waits a little for them to record their progress,
+     * so the journal saved afterwards is as complete as possible.
+     */
+    private static void shutdown(ExecutorService executor) {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void recordCompleted(long start, long end, boolean save) {
+        if (mJournal == null) {
+            return;
+        }
+        mJournal.addCompleted(start, end);
+        if (save) {
+            saveJournal();
+        }
+    }
+
+    /**
+     * Saves the journal. The data of the destination is forced to storage first: otherwise
+     * a power loss could keep the journal but lose the data, and the download would resume
+     * past ranges that were never stored.
+     */
+    private void saveJournal() {
+        if (mJournal == null) {
+            return;
+        }
+        // Forced through a channel of its own: an interrupt during force() closes the
+        // channel, and the one the segments write to must stay open. fsync() flushes the
+        // whole file whatever descriptor it's called on.
+        try (FileChannel channel = FileChannel.open(mDestination.toPath(),
+                StandardOpenOption.WRITE)) {
+            channel.force(false);
+            mJournal.save();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to save download journal of " + mDestination, e);
+        }
+    }
 
-                    double totalMb = total / 1024.0 / 1024.0;
-                    Log.d("FileDownloader", "Download completed: with total size " + String.format("%.2f", totalMb) + " MB");
+    /** {@link InputStream#skip} may skip less than asked, so loop until done. */
+    static void skipFully(InputStream input, long count) throws IOException {
+        long remaining = count;
+        while (remaining > 0) {
+            long skipped = input.skip(remaining);
+            if (skipped <= 0) {
+                // skip() can return 0 before EOF, fall back to read() to make progress.
+                if (input.read() == -1) {
+                    throw new IOException("Unexpected end of stream, "
+                            + remaining + " bytes were still to skip");
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
 
-                    if (total != mSize) {
-                        throw new IOException("Can't download file "
-                                + mUrl
-                                + " with given size "
-                                + mSize);
+    /**
+     * Feeds the digests with the chunks of a download in several segments. Chunks are
+     * handed out in file order but complete in any order: each one is hashed as soon as
+     * all the bytes before it are, and kept in memory until then. Ranges that a previous
+     * attempt wrote are read from the file when the digests reach them.
+     *
+     * <p>Chunk buffers come from a fixed pool, which bounds the memory used and keeps the
+     * connections from running too far ahead of the first unfinished chunk.</p>
+     */
+    private final class InOrderHasher {
+
+        private final FileChannel mChannel;
+        private final List<long[]> mMissing;
+        private final long mLength;
+        private final BlockingQueue<byte[]> mFree = new LinkedBlockingQueue<>();
+        private final int mMaxBuffers;
+        private int mBuffers;
+        /** Downloaded chunks that can't be hashed yet, by position. */
+        private final TreeMap<Long, ByteBuffer> mHeld = new TreeMap<>();
+        /** Position of the first byte that isn't hashed yet. */
+        private long mNext;
+
+        InOrderHasher(FileChannel channel, List<long[]> missing, long length, int maxBuffers)
+                throws IOException {
+            this.mChannel = channel;
+            this.mMissing = missing;
+            this.mLength = length;
+            this.mMaxBuffers = maxBuffers;
+            advance();
+        }
+
+        /**
+         * @return a free chunk buffer, waiting for one if they're all in use
+         * @throws ExecutionException if one of {@code futures} failed meanwhile, as nothing
+         *                            would release the buffers it holds
+         */
+        byte[] take(List<Future<Void>> futures)
+                throws InterruptedException, ExecutionException {
+            if (mBuffers < mMaxBuffers && mFree.isEmpty()) {
+                mBuffers++;
+                return new byte[HASHED_CHUNK_SIZE];
+            }
+            while (true) {
+                byte[] buffer = mFree.poll(1, TimeUnit.SECONDS);
+                if (buffer != null) {
+                    return buffer;
+                }
+                for (Future<Void> future : futures) {
+                    if (future.isDone()) {
+                        future.get();
                     }
                 }
             }
         }
+
+        /** Hands over a downloaded chunk; it's hashed now or once the ones before it are. */
+        synchronized void add(long position, byte[] buffer, int size) throws IOException {
+            mHeld.put(position, ByteBuffer.wrap(buffer, 0, size));
+            advance();
+        }
+
+        private void advance() throws IOException {
+            while (mNext < mLength) {
+                ByteBuffer chunk = mHeld.remove(mNext);
+                if (chunk != null) {
+                    updateDigests(chunk, mNext);
+                    mNext += chunk.remaining();
+                    mFree.add(chunk.array());
+                    continue;
+                }
+                long end = presentUntil(mNext);
+                if (end == mNext) {
+                    return;
+                }
+                catchUpDigests(mChannel, end);
+                mNext = end;
+            }
+        }
+
+        /**
+         * @return end of the range written by a previous attempt that starts at
+         *         {@code position}, or {@code position} if it's to be downloaded
+         */
+        private long presentUntil(long position) {
+            for (long[] range : mMissing) {
+                if (range[1] > position) {
+                    return Math.max(position, range[0]);
+                }
+            }
+            return mLength;
+        }
     }
 
+    /** A byte range of the remote file and where to save it, see {@link #downloadAll}. */
+    public static final class Part {
+        final long mOffset;
+        final long mSize;
+        final File mDestination;
+
+        public Part(long offset, long size, File destination) {
+            this.mOffset = offset;
+            this.mSize = size;
+            this.mDestination = destination;
+        }
+    }
+
+    /** One try of an operation repeated by {@link #withRetries}. */
+    private interface Attempt {
+        void run() throws IOException;
+    }
+
+    /** Invoked by {@link #copy} after each write with the total number of bytes written. */
+    private interface WriteListener {
+        void onWritten(long total) throws IOException;
+    }
+
+
 }
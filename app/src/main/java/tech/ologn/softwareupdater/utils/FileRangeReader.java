@@ -0,0 +1,44 @@
+package tech.ologn.softwareupdater.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** {@link RangeReader} for a local file, using positional {@link FileChannel} reads. */
+public final class FileRangeReader implements RangeReader {
+
+    private final File mFile;
+    private final FileChannel mChannel;
+
+    public FileRangeReader(File file) throws IOException {
+        this.mFile = file;
+        this.mChannel = new RandomAccessFile(file, "r").getChannel();
+    }
+
+    @Override
+    public long length() throws IOException {
+        return mChannel.size();
+    }
+
+    @Override
+    public void readFully(long position, byte[] buffer, int offset, int count)
+            throws IOException {
+        if (position < 0 || position + count > mChannel.size()) {
+            throw new IOException("Range " + position + "+" + count + " is outside of "
+                    + mFile + " of length " + mChannel.size());
+        }
+        ByteBuffer wrapper = ByteBuffer.wrap(buffer, offset, count);
+        while (wrapper.hasRemaining()) {
+            if (mChannel.read(wrapper, position + wrapper.position() - offset) < 0) {
+                throw new IOException("Unexpected end of " + mFile);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+}
@@ -0,0 +1,240 @@
+package tech.ologn.softwareupdater.utils;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * {@link DownloadTransport} for http(s) urls, using {@link HttpURLConnection}.
+ *
+ * <p>Only the requested byte range is fetched, using a {@code Range} request. Servers that
+ * ignore the header and answer with the whole file are still supported: the bytes before
+ * the offset are skipped. Responses are read to their end before being closed, so
+ * {@link HttpURLConnection} keeps the connection alive and reuses it for the next request
+ * to the same host.</p>
+ */
+public final class HttpTransport implements DownloadTransport {
+
+    private static final String TAG = "HttpTransport";
+
+    /** Matches {@code Content-Range: bytes first-last/total}, total may be {@code *}. */
+    private static final Pattern CONTENT_RANGE =
+            Pattern.compile("bytes\\s+(\\d+)-(\\d+)/(\\d+|\\*)");
+
+    private static final int CONNECT_TIMEOUT = 15000; // 15 seconds
+
+    private final String mUrl;
+    private int mStallTimeout = FileDownloader.DEFAULT_STALL_TIMEOUT;
+
+    public HttpTransport(String url) {
+        this.mUrl = url;
+    }
+
+    @Override
+    public void setStallTimeout(int stallTimeoutMillis) {
+        this.mStallTimeout = stallTimeoutMillis;
+    }
+
+    /** Sends a one-byte range request to learn the length and validator of the file. */
+    @Override
+    public Stat probe(long offset) throws IOException {
+        HttpURLConnection http = openConnection(offset, 1, null);
+        try {
+            if (http.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                checkStatus(http.getResponseCode());
+                return null;
+            }
+            String contentRange = http.getHeaderField("Content-Range");
+            Matcher m = contentRange == null ? null : CONTENT_RANGE.matcher(contentRange);
+            if (m == null || !m.matches() || "*".equals(m.group(3))) {
+                return null;
+            }
+            return new Stat(Long.parseLong(m.group(3)) - offset, validatorOf(http));
+        } finally {
+            http.disconnect();
+        }
+    }
+
+    @Override
+    public Body open(long offset, long size, String validator, boolean rangeRequired)
+            throws IOException {
+        HttpURLConnection http = openConnection(offset, size, validator);
+        // The connection is only kept when its body is handed over.
+        boolean opened = false;
+        try {
+            int code = http.getResponseCode();
+            if (code == HttpURLConnection.HTTP_OK && (rangeRequired || validator != null)) {
+                // With If-Range, a full response means the file has changed.
+                throw new NonRetryableException("Server stopped honouring range requests for "
+                        + mUrl + ", or the file has changed");
+            }
+            long toSkip = offset - startOfBody(http, offset, size);
+            InputStream input = http.getInputStream();
+            if (toSkip > 0) {
+                Log.w(TAG, "Server ignored range request, skipping "
+                        + toSkip + " bytes of " + mUrl);
+                try {
+                    FileDownloader.skipFully(input, toSkip);
+                } catch (IOException e) {
+                    input.close();
+                    throw e;
+                }
+            }
+            long length = http.getContentLengthLong();
+            opened = true;
+            return new Body(input, length < 0 ? -1 : length - toSkip);
+        } finally {
+            if (!opened) {
+                http.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Sends a suffix range request, {@code Range: bytes=-size}. The response tells the
+     * total length of the file, so no separate probe is needed.
+     */
+    @Override
+    public Body openTail(long size) throws IOException {
+        HttpURLConnection http = openConnection("bytes=-" + size, null);
+        // The connection is only kept when its body is handed over.
+        boolean opened = false;
+        try {
+            int code = http.getResponseCode();
+            checkStatus(code);
+            String validator = validatorOf(http);
+            if (code == HttpURLConnection.HTTP_OK) {
+                long total = http.getContentLengthLong();
+                if (total < 0) {
+                    throw new IOException("Can't read the end of " + mUrl
+                            + ", the server sends neither ranges nor a length");
+                }
+                InputStream input = http.getInputStream();
+                long toSkip = Math.max(0, total - size);
+                if (toSkip > 0) {
+                    Log.w(TAG, "Server ignored range request, skipping "
+                            + toSkip + " bytes of " + mUrl);
+                    try {
+                        FileDownloader.skipFully(input, toSkip);
+                    } catch (IOException e) {
+                        input.close();
+                        throw e;
+                    }
+                }
+                opened = true;
+                return new Body(input, total - toSkip, new Stat(total, validator));
+            }
+            String contentRange = http.getHeaderField("Content-Range");
+            Matcher m = contentRange == null ? null : CONTENT_RANGE.matcher(contentRange);
+            if (m == null || !m.matches() || "*".equals(m.group(3))) {
+                throw new IOException("Can't read the end of " + mUrl
+                        + ", invalid Content-Range: " + contentRange);
+            }
+            long first = Long.parseLong(m.group(1));
+            long last = Long.parseLong(m.group(2));
+            long total = Long.parseLong(m.group(3));
+            if (last != total - 1) {
+                throw new IOException("Can't read the end of " + mUrl
+                        + ", got range " + contentRange);
+            }
+            Body body = new Body(http.getInputStream(), last - first + 1,
+                    new Stat(total, validator));
+            opened = true;
+            return body;
+        } finally {
+            if (!opened) {
+                http.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Opens a connection to {@code mUrl}. A {@code Range} header covering
+     * {@code [offset, offset + size)} is sent, so that only these bytes go over the wire.
+     * If {@code validator} is given it's sent as {@code If-Range}, so the server returns
+     * the whole file instead of the range when the file has changed.
+     */
+    private HttpURLConnection openConnection(long offset, long size, String validator)
+            throws IOException {
+        String range = offset > 0 || size > 0
+                ? "bytes=" + offset + "-" + (size == -1 ? "" : offset + size - 1)
+                : null;
+        return openConnection(range, validator);
+    }
+
+    private HttpURLConnection openConnection(String range, String validator)
+            throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(mUrl).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        // A read blocked for this long means the connection has stalled; it fails with
+        // SocketTimeoutException and the request is retried.
+        connection.setReadTimeout(mStallTimeout);
+        if (range != null) {
+            connection.setRequestProperty("Range", range);
+            if (validator != null) {
+                connection.setRequestProperty("If-Range", validator);
+            }
+        }
+        connection.connect();
+        return connection;
+    }
+
+    /**
+     * Returns offset in the remote file of the first byte of the response body.
+     *
+     * @throws IOException if the server responded with an error or with a range that
+     *                     doesn't start at {@code offset}
+     */
+    private long startOfBody(HttpURLConnection http, long offset, long size)
+            throws IOException {
+        int code = http.getResponseCode();
+        if (code == HttpURLConnection.HTTP_OK) {
+            return 0;
+        }
+        checkStatus(code);
+        String contentRange = http.getHeaderField("Content-Range");
+        Matcher m = contentRange == null ? null : CONTENT_RANGE.matcher(contentRange);
+        if (m == null || !m.matches()) {
+            throw new IOException("Can't download file " + mUrl
+                    + ", invalid Content-Range: " + contentRange);
+        }
+        long first = Long.parseLong(m.group(1));
+        long last = Long.parseLong(m.group(2));
+        if (first != offset || (size != -1 && last - first + 1 < size)) {
+            throw new NonRetryableException("Can't download file " + mUrl
+                    + ", requested offset " + offset + " size " + size
+                    + " but got range " + contentRange);
+        }
+        return first;
+    }
+
+    /** Throws if {@code code} is an error, as a retryable failure only if it may go away. */
+    private void checkStatus(int code) throws IOException {
+        if (code == HttpURLConnection.HTTP_OK || code == HttpURLConnection.HTTP_PARTIAL) {
+            return;
+        }
+        String message = "Can't download file " + mUrl + ", HTTP error: " + code;
+        // Server errors, timeouts and rate limiting may go away, other errors won't.
+        if (code >= 500 || code == HttpURLConnection.HTTP_CLIENT_TIMEOUT || code == 429) {
+            throw new IOException(message);
+        }
+        throw new NonRetryableException(message);
+    }
+
+    /**
+     * Returns a validator usable in {@code If-Range}: a strong ETag, or else Last-Modified.
+     * Weak ETags are not allowed in {@code If-Range}.
+     */
+    private static String validatorOf(HttpURLConnection http) {
+        String etag = http.getHeaderField("ETag");
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return http.getHeaderField("Last-Modified");
+    }
+}
@@ -0,0 +1,117 @@
+package tech.ologn.softwareupdater.utils;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link DownloadTransport} for {@code file://} urls, e.g. packages on USB storage or the
+ * sdcard. Reads go straight through a {@link FileChannel}, and {@link #transferTo} and
+ * {@link #map} let {@link FileDownloader} copy without moving the bytes through the
+ * Java heap.
+ */
+public final class LocalFileTransport implements DownloadTransport {
+
+    private final File mFile;
+
+    public LocalFileTransport(File file) {
+        this.mFile = file;
+    }
+
+    /** Local reads can't stall, the timeout is ignored. */
+    @Override
+    public void setStallTimeout(int stallTimeoutMillis) {
+    }
+
+    /** The validator is made of length and modification time, like a weak ETag. */
+    @Override
+    public Stat probe(long offset) throws IOException {
+        if (!mFile.isFile()) {
+            throw new NonRetryableException("File not found: " + mFile);
+        }
+        long length = mFile.length();
+        return new Stat(length - offset, length + "-" + mFile.lastModified());
+    }
+
+    @Override
+    public Body open(long offset, long size, String validator, boolean rangeRequired)
+            throws IOException {
+        if (validator != null && !validator.equals(probe(0).getValidator())) {
+            throw new NonRetryableException(mFile + " has changed");
+        }
+        FileChannel channel = openChannel(offset, size);
+        channel.position(offset);
+        long available = channel.size() - offset;
+        long length = size == -1 ? available : Math.min(size, available);
+        // Ends at the end of the range, like the body of an http range request.
+        return new Body(ByteStreams.limit(Channels.newInputStream(channel), length), length);
+    }
+
+    @Override
+    public Body openTail(long size) throws IOException {
+        Stat stat = probe(0);
+        long start = Math.max(0, stat.getLength() - size);
+        FileChannel channel = openChannel(start, -1);
+        channel.position(start);
+        return new Body(Channels.newInputStream(channel), stat.getLength() - start, stat);
+    }
+
+    /**
+     * Copies {@code count} bytes at {@code offset} to {@code target} at
+     * {@code targetPosition} with {@link FileChannel#transferTo}, which lets the kernel
+     * move the data between the files.
+     *
+     * @return number of bytes copied
+     */
+    public long transferTo(long offset, long count, FileChannel target, long targetPosition)
+            throws IOException {
+        try (FileChannel channel = openChannel(offset, count)) {
+            long total = 0;
+            while (total < count) {
+                long copied = channel.transferTo(offset + total, count - total,
+                        target.position(targetPosition + total));
+                if (copied <= 0) {
+                    break;
+                }
+                total += copied;
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Maps {@code [offset, offset + size)} of the file into memory, read-only. The pages
+     * are read by the kernel on first access, without a copy into a Java buffer.
+     */
+    public MappedByteBuffer map(long offset, long size) throws IOException {
+        try (FileChannel channel = openChannel(offset, size)) {
+            // The mapping stays valid after the channel is closed.
+            return channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+        }
+    }
+
+    /** @return length of the file */
+    public long length() {
+        return mFile.length();
+    }
+
+    private FileChannel openChannel(long offset, long size) throws IOException {
+        if (!mFile.isFile()) {
+            throw new NonRetryableException("File not found: " + mFile);
+        }
+        FileChannel channel = new RandomAccessFile(mFile, "r").getChannel();
+        if (offset < 0 || offset > channel.size()
+                || (size != -1 && offset + size > channel.size())) {
+            long length = channel.size();
+            channel.close();
+            throw new NonRetryableException("Range " + offset + "+" + size
+                    + " is outside of " + mFile + " of length " + length);
+        }
+        return channel;
+    }
+}
@@ -0,0 +1,18 @@
+package tech.ologn.softwareupdater.utils;
+
+import java.io.IOException;
+
+/**
+ * A download failure that would happen again if the request was retried, e.g. an HTTP 404
+ * or a file that changed on the server. {@link FileDownloader} doesn't retry these.
+ */
+final class NonRetryableException extends IOException {
+
+    NonRetryableException(String message) {
+        super(message);
+    }
+
+    NonRetryableException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
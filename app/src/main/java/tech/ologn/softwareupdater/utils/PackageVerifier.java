@@ -0,0 +1,190 @@
+package tech.ologn.softwareupdater.utils;
+
+import android.util.Base64;
+import android.util.Log;
+
+import tech.ologn.softwareupdater.PayloadProperties;
+import tech.ologn.softwareupdater.UpdateConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Verifies a downloaded non-streaming update package against the hashes published
+ * for it, using digests computed by {@link FileDownloader} while the package was written.
+ *
+ * <p>Checks, when the information is available:</p>
+ * <ul>
+ *   <li>SHA-256 of the whole package, from {@code sha256} in the update config JSON.</li>
+ *   <li>FILE_SIZE and FILE_HASH of {@code payload.bin}, and METADATA_HASH of its first
+ *   METADATA_SIZE bytes, from {@code payload_properties.txt}. Both files are found with
+ *   the central directory of the downloaded package.</li>
+ * </ul>
+ */
+public final class PackageVerifier {
+
+    private static final String TAG = "PackageVerifier";
+
+    private final UpdateConfig mConfig;
+    private final Map<String, UpdateConfig.PackageFile> mPackageFiles;
+    private RangeDigest mPackageDigest;
+    private RangeDigest mPayloadDigest;
+
+    /**
+     * @param packageFiles files of the remote package by name, e.g. read from its central
+     *                     directory with {@link PayloadSpecs#getRemotePackageFiles}; only
+     *                     used to know where payload.bin is before the download starts.
+     *                     Null if unknown, then only the whole package is verified.
+     */
+    public PackageVerifier(UpdateConfig config,
+            Map<String, UpdateConfig.PackageFile> packageFiles) {
+        this.mConfig = config;
+        this.mPackageFiles = packageFiles;
+    }
+
+    /**
+     * Registers the digests needed for verification on {@code downloader}. Must be called
+     * before {@link FileDownloader#download}, the downloader must start at offset 0.
+     */
+    public void attach(FileDownloader downloader) {
+        if (mConfig.getSha256().isPresent()) {
+            mPackageDigest = downloader.trackDigest(0, -1);
+        }
+        UpdateConfig.PackageFile payload = mPackageFiles == null
+                ? null
+                : mPackageFiles.get(PackageFiles.PAYLOAD_BINARY_FILE_NAME);
+        if (payload != null) {
+            mPayloadDigest = downloader.trackDigest(payload.getOffset(), payload.getSize());
+        }
+    }
+
+    /**
+     * Verifies {@code packageFile}, downloaded with the digests registered by {@link #attach}.
+     *
+     * @throws IOException if the package doesn't match the published hashes
+     */
+    public void verify(File packageFile) throws IOException {
+        if (mPackageDigest != null) {
+            byte[] expected = fromHex(mConfig.getSha256().get());
+            byte[] actual = mPackageDigest.getHashedLength() == packageFile.length()
+                    ? mPackageDigest.get()
+                    : null;
+            if (actual == null || !MessageDigest.isEqual(expected, actual)) {
+                throw new IOException("Update package SHA-256 mismatch, expected "
+                        + mConfig.getSha256().get() + " got "
+                        + (actual == null ? "incomplete digest" : toHex(actual)));
+            }
+            Log.i(TAG, "Update package SHA-256 verified");
+        }
+
+        if (mPayloadDigest == null) {
+            Log.i(TAG, "Location of payload.bin is unknown, skipping payload verification");
+            return;
+        }
+
+        try (FileRangeReader reader = new FileRangeReader(packageFile);
+             RandomAccessFile file = new RandomAccessFile(packageFile, "r")) {
+            ZipCentralDirectory zip = ZipCentralDirectory.read(reader);
+            Optional<ZipCentralDirectory.Entry> payload =
+                    zip.getEntry(PackageFiles.PAYLOAD_BINARY_FILE_NAME);
+            Optional<ZipCentralDirectory.Entry> propertiesFile =
+                    zip.getEntry(PackageFiles.PAYLOAD_PROPERTIES_FILE_NAME);
+            if (!payload.isPresent() || !propertiesFile.isPresent()) {
+                throw new IOException("Update package doesn't contain "
+                        + PackageFiles.PAYLOAD_BINARY_FILE_NAME + " and "
+                        + PackageFiles.PAYLOAD_PROPERTIES_FILE_NAME);
+            }
+            // The digest was placed with the offsets known before the download.
+            if (zip.getDataOffset(payload.get()) != mPayloadDigest.getOffset()
+                    || payload.get().getCompressedSize() != mPayloadDigest.getLength()) {
+                throw new IOException("payload.bin is at " + zip.getDataOffset(payload.get())
+                        + " size " + payload.get().getCompressedSize()
+                        + " in the package, expected at " + mPayloadDigest.getOffset()
+                        + " size " + mPayloadDigest.getLength());
+            }
+            PayloadProperties properties = PayloadProperties.parse(new String(
+                    zip.readContent(propertiesFile.get()), StandardCharsets.UTF_8));
+            String fileHash = properties.getFileHash();
+            long fileSize = properties.getFileSize();
+            String metadataHash = properties.getMetadataHash();
+            long metadataSize = properties.getMetadataSize();
+
+            if (fileSize != -1 && fileSize != mPayloadDigest.getLength()) {
+                throw new IOException("payload.bin size mismatch, expected " + fileSize
+                        + " got " + mPayloadDigest.getLength());
+            }
+            if (!mPayloadDigest.isComplete()) {
+                throw new IOException("payload.bin is outside of the downloaded package");
+            }
+            if (fileHash != null && !MessageDigest.isEqual(
+                    Base64.decode(fileHash, Base64.DEFAULT), mPayloadDigest.get())) {
+                throw new IOException("payload.bin FILE_HASH mismatch");
+            }
+            if (metadataHash != null && metadataSize != -1) {
+                if (metadataSize > Math.min(mPayloadDigest.getLength(), Integer.MAX_VALUE)) {
+                    throw new IOException("Invalid " + PackageFiles.PAYLOAD_PROPERTIES_FILE_NAME
+                            + ", METADATA_SIZE " + metadataSize + " is larger than payload.bin");
+                }
+                // Metadata is the small header at the start of payload.bin, reading it
+                // again is cheap compared to the whole package.
+                byte[] metadata = read(file, mPayloadDigest.getOffset(), (int) metadataSize);
+                if (!MessageDigest.isEqual(Base64.decode(metadataHash, Base64.DEFAULT),
+                        sha256(metadata))) {
+                    throw new IOException("payload.bin METADATA_HASH mismatch");
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            // Thrown by Base64.decode for a hash that isn't base64.
+            throw new IOException("Invalid " + PackageFiles.PAYLOAD_PROPERTIES_FILE_NAME, e);
+        }
+        Log.i(TAG, "payload.bin verified against " + PackageFiles.PAYLOAD_PROPERTIES_FILE_NAME);
+    }
+
+    private static byte[] read(RandomAccessFile file, long offset, int size) throws IOException {
+        if (offset < 0 || size < 0 || offset + size > file.length()) {
+            throw new IOException("Range " + offset + "+" + size + " is outside of the package");
+        }
+        byte[] data = new byte[size];
+        file.seek(offset);
+        file.readFully(data);
+        return data;
+    }
+
+    private static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static byte[] fromHex(String hex) throws IOException {
+        if (hex.length() % 2 != 0) {
+            throw new IOException("Invalid sha256 in update config: " + hex);
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int hi = Character.digit(hex.charAt(2 * i), 16);
+            int lo = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0) {
+                throw new IOException("Invalid sha256 in update config: " + hex);
+            }
+            bytes[i] = (byte) ((hi << 4) | lo);
+        }
+        return bytes;
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
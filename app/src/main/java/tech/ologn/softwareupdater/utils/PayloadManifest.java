@@ -0,0 +1,442 @@
+package tech.ologn.softwareupdater.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Header and manifest of a payload.bin, read without update_engine: the partitions the
+ * payload updates, their number of install operations and their size once updated. Lets
+ * the app estimate the work and space an update needs before calling
+ * {@code UpdateEngine#applyPayload}.
+ *
+ * <p>Only the header and the manifest are read, never the operation data. For a staged
+ * file they are memory-mapped and parsed in place; any {@link RangeReader}, e.g. over
+ * range requests, works too.</p>
+ *
+ * <p>The manifest is a {@code DeltaArchiveManifest} protobuf, see update_metadata.proto
+ * in AOSP system/update_engine. Only the fields used here are decoded, the others are
+ * skipped.</p>
+ */
+public final class PayloadManifest {
+
+    /** "CrAU", first bytes of payload.bin. */
+    private static final int MAGIC = 0x43724155;
+    private static final int HEADER_SIZE_V1 = 20;
+    private static final int HEADER_SIZE_V2 = 24;
+
+    /** Manifests are a few hundred KB even for full OTAs; refuse anything absurd. */
+    private static final long MAX_MANIFEST_SIZE = 64 * 1024 * 1024;
+
+    // DeltaArchiveManifest
+    private static final int MANIFEST_BLOCK_SIZE = 3;
+    private static final int MANIFEST_MINOR_VERSION = 12;
+    private static final int MANIFEST_PARTITIONS = 13;
+    private static final int MANIFEST_PARTIAL_UPDATE = 16;
+    // PartitionUpdate
+    private static final int PARTITION_NAME = 1;
+    private static final int PARTITION_OLD_INFO = 6;
+    private static final int PARTITION_NEW_INFO = 7;
+    private static final int PARTITION_OPERATIONS = 8;
+    // PartitionInfo
+    private static final int INFO_SIZE = 1;
+    // InstallOperation
+    private static final int OPERATION_DATA_LENGTH = 3;
+
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_FIXED64 = 1;
+    private static final int WIRE_LENGTH_DELIMITED = 2;
+    private static final int WIRE_FIXED32 = 5;
+
+    private final Header mHeader;
+    private final int mBlockSize;
+    private final long mMinorVersion;
+    private final boolean mPartialUpdate;
+    private final List<Partition> mPartitions;
+
+    private PayloadManifest(Header header, int blockSize, long minorVersion,
+            boolean partialUpdate, List<Partition> partitions) {
+        this.mHeader = header;
+        this.mBlockSize = blockSize;
+        this.mMinorVersion = minorVersion;
+        this.mPartialUpdate = partialUpdate;
+        this.mPartitions = partitions;
+    }
+
+    /**
+     * Reads the payload header at {@code payloadOffset}.
+     *
+     * @throws IOException if it can't be read or isn't a payload header
+     */
+    public static Header readHeader(RangeReader reader, long payloadOffset) throws IOException {
+        byte[] header = new byte[HEADER_SIZE_V2];
+        int count = (int) Math.min(header.length, reader.length() - payloadOffset);
+        if (count < HEADER_SIZE_V1) {
+            throw new IOException("No payload header at " + payloadOffset);
+        }
+        reader.readFully(payloadOffset, header, 0, count);
+        return Header.parse(ByteBuffer.wrap(header, 0, count));
+    }
+
+    /**
+     * Reads the manifest of the payload at {@code payloadOffset} of a local file, which may
+     * be payload.bin itself or the package containing it. The header and manifest are
+     * memory-mapped, nothing is copied to the heap but the decoded values.
+     */
+    public static PayloadManifest read(File file, long payloadOffset) throws IOException {
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            long available = channel.size() - payloadOffset;
+            if (available < HEADER_SIZE_V1) {
+                throw new IOException("No payload header at " + payloadOffset + " of " + file);
+            }
+            ByteBuffer headerBuffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                    payloadOffset, Math.min(HEADER_SIZE_V2, available));
+            Header header = Header.parse(headerBuffer);
+            checkManifest(header, available);
+            // The mapping stays valid after the channel is closed.
+            ByteBuffer manifest = channel.map(FileChannel.MapMode.READ_ONLY,
+                    payloadOffset + header.getSize(), header.getManifestSize());
+            return parse(header, manifest);
+        }
+    }
+
+    /**
+     * Reads the manifest of the payload at {@code payloadOffset} of the file behind
+     * {@code reader}: one read for the header, one for the manifest.
+     */
+    public static PayloadManifest read(RangeReader reader, long payloadOffset)
+            throws IOException {
+        Header header = readHeader(reader, payloadOffset);
+        checkManifest(header, reader.length() - payloadOffset);
+        byte[] manifest = new byte[(int) header.getManifestSize()];
+        reader.readFully(payloadOffset + header.getSize(), manifest, 0, manifest.length);
+        return parse(header, ByteBuffer.wrap(manifest));
+    }
+
+    /**
+     * Reads the manifest of the payload at {@code payloadOffset} of the file at
+     * {@code url} with range requests, see {@link DownloadTransport}.
+     */
+    public static PayloadManifest readRemote(String url, long payloadOffset)
+            throws IOException {
+        try (TransportRangeReader reader =
+                     new TransportRangeReader(DownloadTransport.forUrl(url))) {
+            return read(reader, payloadOffset);
+        }
+    }
+
+    private static void checkManifest(Header header, long available) throws IOException {
+        if (header.getManifestSize() > MAX_MANIFEST_SIZE
+                || header.getSize() + header.getManifestSize() > available) {
+            throw new IOException("Invalid payload manifest size "
+                    + header.getManifestSize());
+        }
+    }
+
+    private static PayloadManifest parse(Header header, ByteBuffer manifest)
+            throws IOException {
+        int blockSize = 4096;
+        long minorVersion = 0;
+        boolean partialUpdate = false;
+        List<Partition> partitions = new ArrayList<>();
+        while (manifest.hasRemaining()) {
+            long key = readVarint(manifest);
+            int field = (int) (key >>> 3);
+            int wireType = (int) (key & 7);
+            if (field == MANIFEST_BLOCK_SIZE && wireType == WIRE_VARINT) {
+                blockSize = (int) readVarint(manifest);
+            } else if (field == MANIFEST_MINOR_VERSION && wireType == WIRE_VARINT) {
+                minorVersion = readVarint(manifest);
+            } else if (field == MANIFEST_PARTIAL_UPDATE && wireType == WIRE_VARINT) {
+                partialUpdate = readVarint(manifest) != 0;
+            } else if (field == MANIFEST_PARTITIONS && wireType == WIRE_LENGTH_DELIMITED) {
+                partitions.add(parsePartition(readMessage(manifest)));
+            } else {
+                skipField(manifest, wireType);
+            }
+        }
+        return new PayloadManifest(header, blockSize, minorVersion, partialUpdate,
+                Collections.unmodifiableList(partitions));
+    }
+
+    private static Partition parsePartition(ByteBuffer b) throws IOException {
+        String name = null;
+        long oldSize = -1;
+        long newSize = -1;
+        int operationCount = 0;
+        long dataLength = 0;
+        while (b.hasRemaining()) {
+            long key = readVarint(b);
+            int field = (int) (key >>> 3);
+            int wireType = (int) (key & 7);
+            if (wireType != WIRE_LENGTH_DELIMITED) {
+                skipField(b, wireType);
+            } else if (field == PARTITION_NAME) {
+                ByteBuffer value = readMessage(b);
+                byte[] bytes = new byte[value.remaining()];
+                value.get(bytes);
+                name = new String(bytes, StandardCharsets.UTF_8);
+            } else if (field == PARTITION_OLD_INFO) {
+                oldSize = parseInfoSize(readMessage(b));
+            } else if (field == PARTITION_NEW_INFO) {
+                newSize = parseInfoSize(readMessage(b));
+            } else if (field == PARTITION_OPERATIONS) {
+                operationCount++;
+                dataLength += parseOperationDataLength(readMessage(b));
+            } else {
+                skipField(b, wireType);
+            }
+        }
+        if (name == null) {
+            throw new IOException("Payload manifest has a partition without name");
+        }
+        return new Partition(name, oldSize, newSize, operationCount, dataLength);
+    }
+
+    private static long parseInfoSize(ByteBuffer b) throws IOException {
+        long size = -1;
+        while (b.hasRemaining()) {
+            long key = readVarint(b);
+            if ((key >>> 3) == INFO_SIZE && (key & 7) == WIRE_VARINT) {
+                size = readVarint(b);
+            } else {
+                skipField(b, (int) (key & 7));
+            }
+        }
+        return size;
+    }
+
+    private static long parseOperationDataLength(ByteBuffer b) throws IOException {
+        long dataLength = 0;
+        while (b.hasRemaining()) {
+            long key = readVarint(b);
+            if ((key >>> 3) == OPERATION_DATA_LENGTH && (key & 7) == WIRE_VARINT) {
+                dataLength = readVarint(b);
+            } else {
+                skipField(b, (int) (key & 7));
+            }
+        }
+        return dataLength;
+    }
+
+    private static long readVarint(ByteBuffer b) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!b.hasRemaining()) {
+                throw new IOException("Truncated payload manifest");
+            }
+            byte next = b.get();
+            value |= (long) (next & 0x7f) << shift;
+            if (next >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Invalid varint in payload manifest");
+    }
+
+    /** @return a view of the next length-delimited field, {@code b} is moved past it */
+    private static ByteBuffer readMessage(ByteBuffer b) throws IOException {
+        long length = readVarint(b);
+        if (length < 0 || length > b.remaining()) {
+            throw new IOException("Truncated payload manifest");
+        }
+        ByteBuffer message = b.slice();
+        message.limit((int) length);
+        b.position(b.position() + (int) length);
+        return message;
+    }
+
+    private static void skipField(ByteBuffer b, int wireType) throws IOException {
+        switch (wireType) {
+            case WIRE_VARINT:
+                readVarint(b);
+                break;
+            case WIRE_FIXED64:
+                skip(b, 8);
+                break;
+            case WIRE_LENGTH_DELIMITED:
+                readMessage(b);
+                break;
+            case WIRE_FIXED32:
+                skip(b, 4);
+                break;
+            default:
+                throw new IOException("Unsupported wire type " + wireType
+                        + " in payload manifest");
+        }
+    }
+
+    private static void skip(ByteBuffer b, int count) throws IOException {
+        if (count > b.remaining()) {
+            throw new IOException("Truncated payload manifest");
+        }
+        b.position(b.position() + count);
+    }
+
+    public Header getHeader() {
+        return mHeader;
+    }
+
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+    public long getMinorVersion() {
+        return mMinorVersion;
+    }
+
+    /** @return true if partitions not in {@link #getPartitions} are left as they are */
+    public boolean isPartialUpdate() {
+        return mPartialUpdate;
+    }
+
+    /** @return partitions in manifest order, which is the order they're written in */
+    public List<Partition> getPartitions() {
+        return mPartitions;
+    }
+
+    /** @return install operations over all partitions */
+    public long getOperationCount() {
+        long count = 0;
+        for (Partition partition : mPartitions) {
+            count += partition.getOperationCount();
+        }
+        return count;
+    }
+
+    /** @return size of all partitions once updated, in bytes */
+    public long getNewSize() {
+        long size = 0;
+        for (Partition partition : mPartitions) {
+            size += Math.max(0, partition.getNewSize());
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder("PayloadManifest<version=")
+                .append(mHeader.getVersion())
+                .append(", minorVersion=").append(mMinorVersion)
+                .append(", blockSize=").append(mBlockSize)
+                .append(", partial=").append(mPartialUpdate)
+                .append(", operations=").append(getOperationCount())
+                .append(", newSize=").append(getNewSize());
+        for (Partition partition : mPartitions) {
+            s.append(", ").append(partition);
+        }
+        return s.append(">").toString();
+    }
+
+    /**
+     * Fixed-size header at the start of payload.bin: magic "CrAU", u64 version, u64
+     * manifest size and, from version 2, u32 metadata signature size. All big-endian.
+     */
+    public static final class Header {
+        private final long mVersion;
+        private final long mManifestSize;
+        private final long mMetadataSignatureSize;
+
+        private Header(long version, long manifestSize, long metadataSignatureSize) {
+            this.mVersion = version;
+            this.mManifestSize = manifestSize;
+            this.mMetadataSignatureSize = metadataSignatureSize;
+        }
+
+        private static Header parse(ByteBuffer b) throws IOException {
+            b.order(ByteOrder.BIG_ENDIAN);
+            int start = b.position();
+            if (b.remaining() < HEADER_SIZE_V1 || b.getInt(start) != MAGIC) {
+                throw new IOException("Not a payload, bad magic");
+            }
+            long version = b.getLong(start + 4);
+            long manifestSize = b.getLong(start + 12);
+            if (version == 1) {
+                return new Header(version, manifestSize, 0);
+            }
+            if (version != 2 || b.remaining() < HEADER_SIZE_V2) {
+                throw new IOException("Unsupported payload version " + version);
+            }
+            return new Header(version, manifestSize, b.getInt(start + 20) & 0xffffffffL);
+        }
+
+        public long getVersion() {
+            return mVersion;
+        }
+
+        /** @return size of this header in bytes; the manifest follows it */
+        public int getSize() {
+            return mVersion == 1 ? HEADER_SIZE_V1 : HEADER_SIZE_V2;
+        }
+
+        public long getManifestSize() {
+            return mManifestSize;
+        }
+
+        public long getMetadataSignatureSize() {
+            return mMetadataSignatureSize;
+        }
+
+        /**
+         * @return size of header, manifest and metadata signature, which is what
+         *         payload_metadata.bin contains
+         */
+        public long getMetadataSize() {
+            return getSize() + mManifestSize + mMetadataSignatureSize;
+        }
+    }
+
+    /** A partition updated by the payload. */
+    public static final class Partition {
+        private final String mName;
+        private final long mOldSize;
+        private final long mNewSize;
+        private final int mOperationCount;
+        private final long mDataLength;
+
+        private Partition(String name, long oldSize, long newSize, int operationCount,
+                long dataLength) {
+            this.mName = name;
+            this.mOldSize = oldSize;
+            this.mNewSize = newSize;
+            this.mOperationCount = operationCount;
+            this.mDataLength = dataLength;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /** @return size of the source partition, or -1 for a full update */
+        public long getOldSize() {
+            return mOldSize;
+        }
+
+        /** @return size of the partition once updated, or -1 if the manifest lacks it */
+        public long getNewSize() {
+            return mNewSize;
+        }
+
+        public int getOperationCount() {
+            return mOperationCount;
+        }
+
+        /** @return bytes of payload data the operations read */
+        public long getDataLength() {
+            return mDataLength;
+        }
+
+        @Override
+        public String toString() {
+            return mName + "<newSize=" + mNewSize + ", operations=" + mOperationCount
+                    + ", data=" + mDataLength + ">";
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package tech.ologn.softwareupdater.utils;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import tech.ologn.softwareupdater.PayloadSpec;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Persisted {@link PayloadSpec}s of local update packages, so that resuming or applying
+ * the same package again doesn't parse it again.
+ *
+ * <p>An entry is identified by the absolute path, length and modification time of the
+ * package, like {@link LocalFileTransport} validators: if any of them changed, the entry
+ * is stale and ignored. It also records where the package came from, so a package
+ * downloaded from another url isn't mistaken for the wanted one, and for a downloaded
+ * package the version of its content on the server, e.g. its published SHA-256 or the
+ * ETag it was downloaded with: a package republished at the same url doesn't match.</p>
+ *
+ * <p>Entries are stored as JSON in a single file, most recently used last, and only the
+ * last {@link #MAX_ENTRIES} are kept.</p>
+ */
+public final class PayloadSpecCache {
+
+    private static final String TAG = "PayloadSpecCache";
+    private static final int MAX_ENTRIES = 8;
+
+    private final File mFile;
+    /** By absolute path of the package, in access order; loaded on first use. */
+    private LinkedHashMap<String, JSONObject> mEntries;
+
+    public PayloadSpecCache(File file) {
+        this.mFile = file;
+    }
+
+    /**
+     * @param source  url the package was downloaded from, or null if it's the package
+     *                itself
+     * @param version version of the content at {@code source}; a downloaded package
+     *                without one is never found
+     * @return the spec stored for {@code packageFile}, {@code source} and {@code version},
+     *         or null if there is none or the package has changed since
+     */
+    public synchronized PayloadSpec get(File packageFile, String source, String version) {
+        String path = packageFile.getAbsolutePath();
+        JSONObject entry = getEntries().get(path);
+        if (entry == null || (source != null && version == null)) {
+            return null;
+        }
+        if (!matches(entry, packageFile, source)
+                || !Objects.equals(version, entry.has("version")
+                        ? entry.optString("version") : null)) {
+            Log.d(TAG, "Cached payload spec of " + path + " is stale");
+            return null;
+        }
+        try {
+            return PayloadSpec.fromJson(entry.getJSONObject("spec"));
+        } catch (JSONException e) {
+            Log.w(TAG, "Ignoring unreadable payload spec of " + path, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return true if a spec is stored for the current state of {@code packageFile}
+     *         downloaded from {@code source}, whatever its version. Costs no request, so
+     *         callers can skip learning the version when nothing could match it.
+     */
+    public synchronized boolean contains(File packageFile, String source) {
+        JSONObject entry = getEntries().get(packageFile.getAbsolutePath());
+        return entry != null && matches(entry, packageFile, source);
+    }
+
+    private static boolean matches(JSONObject entry, File packageFile, String source) {
+        return entry.optLong("length") == packageFile.length()
+                && entry.optLong("lastModified") == packageFile.lastModified()
+                && Objects.equals(source, entry.has("source")
+                        ? entry.optString("source") : null);
+    }
+
+    /** Stores {@code spec} for the current state of {@code packageFile}. */
+    public synchronized void put(File packageFile, String source, String version,
+            PayloadSpec spec) {
+        String path = packageFile.getAbsolutePath();
+        try {
+            JSONObject entry = new JSONObject();
+            entry.put("length", packageFile.length());
+            entry.put("lastModified", packageFile.lastModified());
+            if (source != null) {
+                entry.put("source", source);
+            }
+            if (version != null) {
+                entry.put("version", version);
+            }
+            entry.put("spec", spec.toJson());
+            LinkedHashMap<String, JSONObject> entries = getEntries();
+            entries.put(path, entry);
+            Iterator<String> eldest = entries.keySet().iterator();
+            while (entries.size() > MAX_ENTRIES) {
+                eldest.next();
+                eldest.remove();
+            }
+        } catch (JSONException e) {
+            Log.w(TAG, "Failed to serialize payload spec of " + path, e);
+            return;
+        }
+        save();
+    }
+
+    /** Forgets {@code packageFile}, e.g. because it was found corrupt. */
+    public synchronized void remove(File packageFile) {
+        if (getEntries().remove(packageFile.getAbsolutePath()) != null) {
+            save();
+        }
+    }
+
+    private LinkedHashMap<String, JSONObject> getEntries() {
+        if (mEntries == null) {
+            mEntries = new LinkedHashMap<>(16, 0.75f, true);
+            if (mFile.isFile()) {
+                try {
+                    JSONArray entries = new JSONArray(new String(
+                            Files.readAllBytes(mFile.toPath()), StandardCharsets.UTF_8));
+                    for (int i = 0; i < entries.length(); i++) {
+                        JSONObject entry = entries.getJSONObject(i);
+                        mEntries.put(entry.getString("path"), entry);
+                    }
+                } catch (IOException | JSONException e) {
+                    Log.w(TAG, "Ignoring unreadable payload spec cache " + mFile, e);
+                    mEntries.clear();
+                }
+            }
+        }
+        return mEntries;
+    }
+
+    /**
+     * Writes the entries to a temporary file, then renames it, so a crash never leaves a
+     * truncated cache behind. Failures are only logged, the cache is an optimization.
+     */
+    private void save() {
+        File tmp = new File(mFile.getParentFile(), mFile.getName() + ".tmp");
+        try {
+            JSONArray entries = new JSONArray();
+            for (Map.Entry<String, JSONObject> entry : mEntries.entrySet()) {
+                entries.put(entry.getValue().put("path", entry.getKey()));
+            }
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                out.write(entries.toString().getBytes(StandardCharsets.UTF_8));
+                out.getFD().sync();
+            }
+            if (!tmp.renameTo(mFile)) {
+                throw new IOException("Can't rename " + tmp + " to " + mFile);
+            }
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Failed to write payload spec cache " + mFile, e);
+        }
+    }
+}
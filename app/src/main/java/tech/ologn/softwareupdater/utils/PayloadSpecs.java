@@ -1,84 +1,212 @@
 package tech.ologn.softwareupdater.utils;
 
+import android.util.Log;
+
+import tech.ologn.softwareupdater.PayloadProperties;
 import tech.ologn.softwareupdater.PayloadSpec;
+import tech.ologn.softwareupdater.UpdateConfig;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Enumeration;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 /** The helper class that creates {@link PayloadSpec}. */
 public class PayloadSpecs {
 
+    private static final String TAG = "PayloadSpecs";
+
+    /**
+     * Files resolved by {@link #getRemotePackageFiles}: {name in property_files, zip entry}.
+     * payload_metadata.bin is resolved from the payload header.
+     */
+    private static final String[][] REMOTE_PACKAGE_FILES = {
+            {PackageFiles.PAYLOAD_BINARY_FILE_NAME, PackageFiles.PAYLOAD_BINARY_FILE_NAME},
+            {PackageFiles.PAYLOAD_PROPERTIES_FILE_NAME, PackageFiles.PAYLOAD_PROPERTIES_FILE_NAME},
+            {PackageFiles.CARE_MAP_FILE_NAME, PackageFiles.CARE_MAP_FILE_NAME},
+            {PackageFiles.COMPATIBILITY_ZIP_FILE_NAME, PackageFiles.COMPATIBILITY_ZIP_FILE_NAME},
+            {PackageFiles.METADATA_FILE_NAME, "META-INF/com/android/metadata"},
+    };
+
+    /** Packages resolved by {@link #getRemotePackageFiles}, by url. */
+    private final Map<String, RemotePackage> mRemotePackages = new HashMap<>();
+
+    /** Specs of local packages, see {@link #setCache}; null if not cached. */
+    private PayloadSpecCache mCache;
+
     public PayloadSpecs() {}
 
+    /**
+     * Makes {@link #forNonStreaming} remember the specs it creates in {@code cache}, and
+     * return them without reading the package again as long as it's unchanged.
+     */
+    public void setCache(PayloadSpecCache cache) {
+        this.mCache = cache;
+    }
+
     /**
      * The payload PAYLOAD_ENTRY is stored in the zip package to comply with the Android OTA package
      * format. We want to find out the offset of the entry, so that we can pass it over to the A/B
      * updater without making an extra copy of the payload.
      *
-     * <p>According to Android docs, the entries are listed in the order in which they appear in the
-     * zip file. So we enumerate the entries to identify the offset of the payload file.
-     * http://developer.android.com/reference/java/util/zip/ZipFile.html#entries()
+     * <p>The offset is taken from the zip central directory and the local header of the entry,
+     * see {@link ZipCentralDirectory}. This takes a few small reads whatever the number of
+     * entries, and works for packages larger than 4 GB.</p>
      */
     public PayloadSpec forNonStreaming(File packageFile) throws IOException {
-        boolean payloadFound = false;
-        long payloadOffset = 0;
-        long payloadSize = 0;
-
-        List<String> properties = new ArrayList<>();
-        try (ZipFile zip = new ZipFile(packageFile)) {
-            Enumeration<? extends ZipEntry> entries = zip.entries();
-            long offset = 0;
-            while (entries.hasMoreElements()) {
-                ZipEntry entry = entries.nextElement();
-                String name = entry.getName();
-                // Zip local file header has 30 bytes + filename + sizeof extra field.
-                // https://en.wikipedia.org/wiki/Zip_(file_format)
-                long extraSize = entry.getExtra() == null ? 0 : entry.getExtra().length;
-                offset += 30 + name.length() + extraSize;
-
-                if (entry.isDirectory()) {
-                    continue;
-                }
+        return forNonStreaming(packageFile, null, null);
+    }
+
+    /**
+     * Like {@link #forNonStreaming(File)}, for a package downloaded from {@code source}.
+     * The spec is cached for this source and version only, see {@link #getCached}.
+     */
+    public PayloadSpec forNonStreaming(File packageFile, String source, String version)
+            throws IOException {
+        PayloadSpec cached = getCached(packageFile, source, version);
+        if (cached != null) {
+            Log.d(TAG, "Using cached payload spec of " + packageFile);
+            return cached;
+        }
+        PayloadSpec spec;
+        try (RangeReader reader = new FileRangeReader(packageFile)) {
+            spec = forPackage(ZipCentralDirectory.read(reader),
+                    "file://" + packageFile.getAbsolutePath());
+        }
+        if (mCache != null) {
+            mCache.put(packageFile, source, version, spec);
+        }
+        return spec;
+    }
+
+    /**
+     * @param version version of the content at {@code source}, see {@link PayloadSpecCache}
+     * @return the spec cached for {@code packageFile} downloaded from {@code source} at
+     *         {@code version} if the package hasn't changed since, otherwise null
+     */
+    public PayloadSpec getCached(File packageFile, String source, String version) {
+        return mCache == null ? null : mCache.get(packageFile, source, version);
+    }
+
+    /**
+     * @return true if a spec of {@code packageFile} downloaded from {@code source} is cached
+     *         for some version, see {@link PayloadSpecCache#contains}
+     */
+    public boolean hasCached(File packageFile, String source) {
+        return mCache != null && mCache.contains(packageFile, source);
+    }
+
+    /** Forgets the cached spec of {@code packageFile}, e.g. because it was found corrupt. */
+    public void forget(File packageFile) {
+        if (mCache != null) {
+            mCache.remove(packageFile);
+        }
+    }
+
+    /**
+     * Returns offsets and sizes in the package at {@code url} of the files listed in
+     * {@link #REMOTE_PACKAGE_FILES} that it contains, named as in {@code property_files}.
+     * Only stored entries are returned: the bytes of a compressed one are useless to
+     * update_engine.
+     *
+     * <p>The end of the package and its central directory are fetched with range requests,
+     * usually a single one, then the local headers of the needed entries and
+     * payload_properties.txt, which are next to each other. The result is cached by url and
+     * ETag: when the package hasn't changed, only the first request is sent.</p>
+     */
+    public List<UpdateConfig.PackageFile> getRemotePackageFiles(String url) throws IOException {
+        return resolveRemote(url).mFiles;
+    }
 
-                long length = entry.getCompressedSize();
-                if (PackageFiles.PAYLOAD_BINARY_FILE_NAME.equals(name)) {
-                    if (entry.getMethod() != ZipEntry.STORED) {
-                        throw new IOException("Invalid compression method.");
-                    }
-                    payloadFound = true;
-                    payloadOffset = offset;
-                    payloadSize = length;
-                } else if (PackageFiles.PAYLOAD_PROPERTIES_FILE_NAME.equals(name)) {
-                    InputStream inputStream = zip.getInputStream(entry);
-                    if (inputStream != null) {
-                        BufferedReader br = new BufferedReader(new InputStreamReader(inputStream));
-                        String line;
-                        while ((line = br.readLine()) != null) {
-                            properties.add(line);
-                        }
-                    }
+    private synchronized RemotePackage resolveRemote(String url) throws IOException {
+        try (TransportRangeReader reader =
+                     new TransportRangeReader(DownloadTransport.forUrl(url))) {
+            String validator = reader.getValidator();
+            RemotePackage cached = mRemotePackages.get(url);
+            if (cached != null && validator != null && validator.equals(cached.mValidator)) {
+                Log.d(TAG, "Package " + url + " is unchanged, using cached entries");
+                return cached;
+            }
+
+            ZipCentralDirectory zip = ZipCentralDirectory.read(reader);
+            PayloadSpec spec = forPackage(zip, url);
+            List<UpdateConfig.PackageFile> files = new ArrayList<>();
+            for (String[] file : REMOTE_PACKAGE_FILES) {
+                Optional<ZipCentralDirectory.Entry> entry = zip.getEntry(file[1]);
+                if (entry.isPresent() && entry.get().getMethod() != ZipEntry.STORED) {
+                    Log.w(TAG, "Skipping compressed entry " + file[1] + " of " + url);
+                } else if (entry.isPresent()) {
+                    files.add(new UpdateConfig.PackageFile(file[0],
+                            zip.getDataOffset(entry.get()), entry.get().getCompressedSize()));
                 }
-                offset += length;
             }
+            long metadataSize = readPayloadMetadataSize(reader, spec.getOffset());
+            if (metadataSize > 0) {
+                files.add(new UpdateConfig.PackageFile(PackageFiles.PAYLOAD_METADATA_FILE_NAME,
+                        spec.getOffset(), metadataSize));
+            }
+            Log.i(TAG, "Resolved " + files.size() + " files of " + url + " with "
+                    + reader.getRequestCount() + " range requests");
+
+            RemotePackage resolved =
+                    new RemotePackage(validator, Collections.unmodifiableList(files));
+            if (validator != null) {
+                mRemotePackages.put(url, resolved);
+            } else {
+                mRemotePackages.remove(url);
+            }
+            return resolved;
         }
+    }
 
-        if (!payloadFound) {
+    /**
+     * payload_metadata.bin isn't a zip entry: it's the beginning of payload.bin, up to the end
+     * of the metadata signature. Its size is read from the payload header.
+     *
+     * @return size of the payload metadata, or -1 if the payload header isn't recognized
+     */
+    private static long readPayloadMetadataSize(RangeReader reader, long payloadOffset) {
+        try {
+            return PayloadManifest.readHeader(reader, payloadOffset).getMetadataSize();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read the payload header", e);
+            return -1;
+        }
+    }
+
+    /**
+     * Creates a {@link PayloadSpec} for the package described by {@code zip}, which is
+     * available to update_engine at {@code url}.
+     */
+    private PayloadSpec forPackage(ZipCentralDirectory zip, String url) throws IOException {
+        Optional<ZipCentralDirectory.Entry> payload =
+                zip.getEntry(PackageFiles.PAYLOAD_BINARY_FILE_NAME);
+        if (!payload.isPresent()) {
             throw new IOException("Failed to find payload entry in the given package.");
         }
+        if (payload.get().getMethod() != ZipEntry.STORED) {
+            throw new IOException("Invalid compression method.");
+        }
+
+        PayloadProperties properties = PayloadProperties.empty();
+        Optional<ZipCentralDirectory.Entry> propertiesEntry =
+                zip.getEntry(PackageFiles.PAYLOAD_PROPERTIES_FILE_NAME);
+        if (propertiesEntry.isPresent()) {
+            properties = PayloadProperties.parse(new String(
+                    zip.readContent(propertiesEntry.get()), StandardCharsets.UTF_8));
+        }
+
         return PayloadSpec.newBuilder()
-                        .url("file://" + packageFile.getAbsolutePath())
-                        .offset(payloadOffset)
-                        .size(payloadSize)
+                        .url(url)
+                        .offset(zip.getDataOffset(payload.get()))
+                        .size(payload.get().getCompressedSize())
                         .properties(properties)
                         .build();
     }
@@ -105,9 +233,19 @@ public class PayloadSpecs {
         return "<PayloadSpec url=" + payloadSpec.getUrl()
                 + ", offset=" + payloadSpec.getOffset()
                 + ", size=" + payloadSpec.getSize()
-                + ", properties=" + Arrays.toString(
-                        payloadSpec.getProperties().toArray(new String[0]))
+                + ", properties=" + payloadSpec.getPayloadProperties()
                 + ">";
     }
 
+    /** What {@link #resolveRemote} found in a remote package. */
+    private static final class RemotePackage {
+        final String mValidator;
+        final List<UpdateConfig.PackageFile> mFiles;
+
+        RemotePackage(String validator, List<UpdateConfig.PackageFile> files) {
+            this.mValidator = validator;
+            this.mFiles = files;
+        }
+    }
+
 }
@@ -0,0 +1,71 @@
+package tech.ologn.softwareupdater.utils;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Coalesces progress percentages before they reach a {@link Sink}, which usually updates a
+ * notification and sends a broadcast, i.e. makes IPCs. A value is passed on only if it
+ * differs from the last one and the minimum interval has elapsed since; values arriving
+ * sooner are held back, and {@link #flush} delivers the last of them.
+ */
+public final class ProgressPublisher {
+
+    /** Receives the coalesced progress. */
+    public interface Sink {
+        void onProgress(int percent);
+    }
+
+    private final Sink mSink;
+    private final long mMinIntervalNanos;
+    private final LongSupplier mNanoClock;
+
+    private int mLastPublished = -1;
+    private long mLastPublishedNanos;
+    private int mPending = -1;
+    private int mPublishCount;
+
+    public ProgressPublisher(long minIntervalMillis, Sink sink) {
+        this(minIntervalMillis, sink, System::nanoTime);
+    }
+
+    /** @param nanoClock source of {@link System#nanoTime}-like timestamps, for tests */
+    ProgressPublisher(long minIntervalMillis, Sink sink, LongSupplier nanoClock) {
+        this.mSink = sink;
+        this.mMinIntervalNanos = minIntervalMillis * 1_000_000L;
+        this.mNanoClock = nanoClock;
+    }
+
+    /** Records {@code percent}, and passes it on if it changed and the interval elapsed. */
+    public synchronized void publish(int percent) {
+        if (percent == mLastPublished) {
+            mPending = -1;
+            return;
+        }
+        long now = mNanoClock.getAsLong();
+        if (mLastPublished >= 0 && now - mLastPublishedNanos < mMinIntervalNanos) {
+            mPending = percent;
+            return;
+        }
+        send(percent, now);
+    }
+
+    /** Passes on the last value held back by {@link #publish}, if any. */
+    public synchronized void flush() {
+        if (mPending >= 0) {
+            send(mPending, mNanoClock.getAsLong());
+        }
+    }
+
+    /** @return number of values passed on to the sink */
+    public synchronized int getPublishCount() {
+        return mPublishCount;
+    }
+
+    private void send(int percent, long now) {
+        mLastPublished = percent;
+        mLastPublishedNanos = now;
+        mPending = -1;
+        mPublishCount++;
+        mSink.onProgress(percent);
+    }
+}
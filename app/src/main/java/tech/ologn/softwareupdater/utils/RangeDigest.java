@@ -0,0 +1,112 @@
+package tech.ologn.softwareupdater.utils;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 of the bytes {@code [offset, offset + length)} of a file, computed while the
+ * file is being written. Length -1 means up to the end of the file. Bytes must be fed
+ * in file order; see {@link FileDownloader#trackDigest}.
+ */
+public final class RangeDigest {
+
+    private final long mStart;
+    private final long mLength;
+    private final long mEnd;
+    private final MessageDigest mDigest;
+    private long mPosition;
+    private byte[] mResult;
+
+    RangeDigest(long offset, long length) {
+        this.mStart = offset;
+        this.mLength = length;
+        this.mEnd = length == -1 ? Long.MAX_VALUE : offset + length;
+        this.mPosition = offset;
+        try {
+            this.mDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    public long getOffset() {
+        return mStart;
+    }
+
+    /** @return length of the range, or -1 if it extends to the end of the file */
+    public long getLength() {
+        return mLength;
+    }
+
+    /** @return number of bytes hashed so far */
+    public long getHashedLength() {
+        return mPosition - mStart;
+    }
+
+    /**
+     * Feeds {@code count} bytes of {@code buffer} that are stored at {@code filePosition}
+     * in the file. Only the part that overlaps the tracked range is hashed.
+     */
+    void update(byte[] buffer, int offset, int count, long filePosition) {
+        long from = Math.max(filePosition, mPosition);
+        long to = Math.min(filePosition + count, mEnd);
+        if (from >= to) {
+            return;
+        }
+        if (from != mPosition) {
+            throw new IllegalStateException("Bytes must be hashed in order, expected position "
+                    + mPosition + " but got " + from);
+        }
+        mDigest.update(buffer, offset + (int) (from - filePosition), (int) (to - from));
+        mPosition = to;
+    }
+
+    /**
+     * Same as {@link #update(byte[], int, int, long)} for the remaining bytes of
+     * {@code buffer}. Moves the position of {@code buffer}.
+     */
+    void update(ByteBuffer buffer, long filePosition) {
+        long from = Math.max(filePosition, mPosition);
+        long to = Math.min(filePosition + buffer.remaining(), mEnd);
+        if (from >= to) {
+            return;
+        }
+        if (from != mPosition) {
+            throw new IllegalStateException("Bytes must be hashed in order, expected position "
+                    + mPosition + " but got " + from);
+        }
+        buffer.position(buffer.position() + (int) (from - filePosition));
+        buffer.limit(buffer.position() + (int) (to - from));
+        mDigest.update(buffer);
+        mPosition = to;
+    }
+
+    /** @return position in the file of the next byte this digest expects */
+    long getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * @return true if every byte of the range has been hashed; never true for a range
+     *         that extends to the end of the file, check {@link #getHashedLength} instead
+     */
+    public boolean isComplete() {
+        return mPosition == mEnd;
+    }
+
+    /**
+     * @return SHA-256 of the range
+     * @throws IllegalStateException if not all the bytes of a bounded range were hashed
+     */
+    public byte[] get() {
+        if (mResult == null) {
+            if (mLength != -1 && !isComplete()) {
+                throw new IllegalStateException("Only " + getHashedLength() + " of "
+                        + mLength + " bytes were hashed");
+            }
+            mResult = mDigest.digest();
+        }
+        return mResult.clone();
+    }
+}
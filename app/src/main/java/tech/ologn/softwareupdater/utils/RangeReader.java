@@ -0,0 +1,21 @@
+package tech.ologn.softwareupdater.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Positioned reads from a file that may be local or remote. Used to parse the parts of an
+ * update package that are needed, without reading or downloading the whole package.
+ */
+public interface RangeReader extends Closeable {
+
+    /** @return length of the file in bytes */
+    long length() throws IOException;
+
+    /**
+     * Reads exactly {@code count} bytes at {@code position} into {@code buffer}.
+     *
+     * @throws IOException if the range is outside of the file or can't be read
+     */
+    void readFully(long position, byte[] buffer, int offset, int count) throws IOException;
+}
@@ -0,0 +1,70 @@
+package tech.ologn.softwareupdater.utils;
+
+/**
+ * Counts bytes written by concurrent download workers and reports throughput to a
+ * {@link DownloadProgressListener} at a fixed rate. Only primitive fields are updated,
+ * so {@link #add} doesn't allocate in the copy loop.
+ */
+final class ThroughputMeter {
+
+    /** Time constant of the moving average, about the last 5 seconds dominate it. */
+    private static final double EWMA_TAU_NANOS = 5e9;
+
+    private final DownloadProgressListener mListener;
+    private final long mIntervalNanos;
+
+    private long mTotal;
+    private long mDone;
+    private long mLastReportNanos;
+    private long mLastReportDone;
+    private double mAverage = -1;
+
+    ThroughputMeter(DownloadProgressListener listener, long intervalMillis) {
+        this.mListener = listener;
+        this.mIntervalNanos = intervalMillis * 1_000_000L;
+    }
+
+    /**
+     * Starts measuring.
+     *
+     * @param done  bytes already present before the download started
+     * @param total expected size, or -1 if unknown
+     */
+    synchronized void start(long done, long total) {
+        mDone = done;
+        mTotal = total;
+        mLastReportDone = done;
+        mLastReportNanos = System.nanoTime();
+    }
+
+    /** Records {@code count} written bytes and reports if the interval has elapsed. */
+    synchronized void add(long count) {
+        mDone += count;
+        long now = System.nanoTime();
+        if (now - mLastReportNanos >= mIntervalNanos) {
+            report(now);
+        }
+    }
+
+    /** Reports the final state regardless of the interval. */
+    synchronized void finish() {
+        report(System.nanoTime());
+    }
+
+    private void report(long now) {
+        long elapsed = Math.max(1, now - mLastReportNanos);
+        double instant = (mDone - mLastReportDone) * 1e9 / elapsed;
+        if (mAverage < 0) {
+            mAverage = instant;
+        } else {
+            mAverage += (1 - Math.exp(-elapsed / EWMA_TAU_NANOS)) * (instant - mAverage);
+        }
+        long eta = -1;
+        if (mTotal >= 0 && mAverage > 0) {
+            eta = (long) ((mTotal - mDone) * 1000 / mAverage);
+        }
+        mLastReportNanos = now;
+        mLastReportDone = mDone;
+        mListener.onProgress(mDone, mTotal, (long) instant, (long) mAverage, eta);
+    }
+}
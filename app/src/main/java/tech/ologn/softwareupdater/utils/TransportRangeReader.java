@@ -0,0 +1,124 @@
+package tech.ologn.softwareupdater.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link RangeReader} over a {@link DownloadTransport}, for parsing a remote package.
+ *
+ * <p>Every request fetches at least {@link #WINDOW_SIZE} bytes, and the last few windows
+ * are kept. The parts of an OTA package that are parsed are small and close to each
+ * other, so most reads are served without a request: the first window, read from the
+ * end of the file, usually holds the whole central directory.</p>
+ *
+ * <p>All reads after the first one are pinned to the validator it returned, so the
+ * parsed data can't mix two versions of the file.</p>
+ */
+final class TransportRangeReader implements RangeReader {
+
+    private static final int WINDOW_SIZE = 64 * 1024;
+    private static final int MAX_WINDOWS = 4;
+
+    private final DownloadTransport mTransport;
+    private final long mLength;
+    private final String mValidator;
+    /** Cached windows, most recently used last. */
+    private final List<Window> mWindows = new ArrayList<>();
+    private int mRequestCount;
+
+    /** Reads the last window of the file, which also tells its length and validator. */
+    TransportRangeReader(DownloadTransport transport) throws IOException {
+        this.mTransport = transport;
+        DownloadTransport.Body body = transport.openTail(WINDOW_SIZE);
+        mRequestCount++;
+        DownloadTransport.Stat stat = body.getStat();
+        this.mLength = stat.getLength();
+        this.mValidator = stat.getValidator();
+        mWindows.add(new Window(mLength - body.getLength(), readBody(body)));
+    }
+
+    /** @return ETag or similar of the file, or null if the source has none */
+    String getValidator() {
+        return mValidator;
+    }
+
+    /** @return number of requests sent so far */
+    int getRequestCount() {
+        return mRequestCount;
+    }
+
+    @Override
+    public long length() {
+        return mLength;
+    }
+
+    @Override
+    public void readFully(long position, byte[] buffer, int offset, int count)
+            throws IOException {
+        if (position < 0 || position + count > mLength) {
+            throw new IOException("Range " + position + "+" + count
+                    + " is outside of the file of length " + mLength);
+        }
+        Window window = null;
+        for (int i = mWindows.size() - 1; i >= 0; i--) {
+            Window w = mWindows.get(i);
+            if (position >= w.mOffset && position + count <= w.mOffset + w.mData.length) {
+                window = mWindows.remove(i);
+                mWindows.add(window);
+                break;
+            }
+        }
+        if (window == null) {
+            long size = Math.min(Math.max(count, WINDOW_SIZE), mLength - position);
+            DownloadTransport.Body body = mTransport.open(position, size, mValidator, true);
+            mRequestCount++;
+            window = new Window(position, readBody(body));
+            if (window.mData.length < count) {
+                throw new IOException("Got " + window.mData.length + " bytes at " + position
+                        + ", expected " + count);
+            }
+            mWindows.add(window);
+            if (mWindows.size() > MAX_WINDOWS) {
+                mWindows.remove(0);
+            }
+        }
+        System.arraycopy(window.mData, (int) (position - window.mOffset), buffer, offset, count);
+    }
+
+    private static byte[] readBody(DownloadTransport.Body body) throws IOException {
+        if (body.getLength() < 0 || body.getLength() > Integer.MAX_VALUE) {
+            body.getInput().close();
+            throw new IOException("Unexpected response length " + body.getLength());
+        }
+        byte[] data = new byte[(int) body.getLength()];
+        try (InputStream input = body.getInput()) {
+            int filled = 0;
+            while (filled < data.length) {
+                int count = input.read(data, filled, data.length - filled);
+                if (count < 0) {
+                    throw new IOException("Response ended after " + filled + " of "
+                            + data.length + " bytes");
+                }
+                filled += count;
+            }
+        }
+        return data;
+    }
+
+    @Override
+    public void close() {
+        mWindows.clear();
+    }
+
+    private static final class Window {
+        final long mOffset;
+        final byte[] mData;
+
+        Window(long offset, byte[] data) {
+            this.mOffset = offset;
+            this.mData = data;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package tech.ologn.softwareupdater.utils;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import tech.ologn.softwareupdater.UpdateConfig;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The update configs in {@link UpdateConfigs#getConfigsRoot}, parsed once and kept in
+ * memory. Each file is identified by its name, modification time and size: listing the
+ * configs again only parses the files that changed since.
+ *
+ * <p>A file that can't be read or parsed is logged and skipped, the other configs are
+ * still listed. It isn't parsed again until it changes.</p>
+ */
+public final class UpdateConfigCatalog {
+
+    private static final String TAG = "UpdateConfigCatalog";
+
+    private static UpdateConfigCatalog sInstance;
+
+    /** Receives the configs listed by {@link #load}, on the main thread. */
+    public interface Callback {
+        void onConfigsLoaded(List<UpdateConfig> configs);
+    }
+
+    private final File mRoot;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    /** By file name; guarded by this. */
+    private final HashMap<String, Entry> mEntries = new HashMap<>();
+
+    private UpdateConfigCatalog(File root) {
+        this.mRoot = root;
+    }
+
+    /** @return the catalog of the configs directory of the app */
+    public static synchronized UpdateConfigCatalog getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new UpdateConfigCatalog(new File(UpdateConfigs.getConfigsRoot(
+                    context.getApplicationContext())));
+        }
+        return sInstance;
+    }
+
+    /** Lists the configs on a background thread, then passes them to {@code callback}. */
+    public void load(Callback callback) {
+        mExecutor.execute(() -> {
+            List<UpdateConfig> configs = getConfigs();
+            mMainHandler.post(() -> callback.onConfigsLoaded(configs));
+        });
+    }
+
+    /**
+     * Lists the configs, parsing the files that changed since the last call. Blocks on
+     * file I/O, use {@link #load} on the main thread.
+     *
+     * @return configs ordered by file name, without the ones that can't be parsed
+     */
+    public synchronized List<UpdateConfig> getConfigs() {
+        List<UpdateConfig> configs = new ArrayList<>();
+        File[] files = mRoot.listFiles();
+        if (files == null) {
+            mEntries.clear();
+            return configs;
+        }
+        Arrays.sort(files, Comparator.comparing(File::getName));
+
+        Set<String> names = new HashSet<>();
+        int parsed = 0;
+        for (File file : files) {
+            if (file.isDirectory() || !file.getName().endsWith(".json")) {
+                continue;
+            }
+            String name = file.getName();
+            names.add(name);
+            // Read before the file, so a change while it's read is seen by the next call.
+            long length = file.length();
+            long modified = file.lastModified();
+            Entry entry = mEntries.get(name);
+            if (entry == null || entry.mLength != length || entry.mModified != modified) {
+                entry = new Entry(length, modified, parse(file));
+                mEntries.put(name, entry);
+                parsed++;
+            }
+            if (entry.mConfig != null) {
+                configs.add(entry.mConfig);
+            }
+        }
+        mEntries.keySet().retainAll(names);
+        Log.d(TAG, "Listed " + configs.size() + " configs, parsed " + parsed + " files");
+        return configs;
+    }
+
+    /** @return the config in {@code file}, or null if it can't be read or parsed */
+    private static UpdateConfig parse(File file) {
+        try {
+            String json = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+            return UpdateConfig.fromJson(json);
+        } catch (Exception e) {
+            Log.e(TAG, "Can't read/parse config file " + file.getName() + ", skipping it", e);
+            return null;
+        }
+    }
+
+    private static final class Entry {
+        final long mLength;
+        final long mModified;
+        /** Null if the file can't be parsed. */
+        final UpdateConfig mConfig;
+
+        Entry(long length, long modified, UpdateConfig config) {
+            this.mLength = length;
+            this.mModified = modified;
+            this.mConfig = config;
+        }
+    }
+}
@@ -1,15 +1,10 @@
 package tech.ologn.softwareupdater.utils;
 
 import android.content.Context;
-import android.util.Log;
 
 import tech.ologn.softwareupdater.UpdateConfig;
 
-import java.io.File;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
@@ -41,28 +36,11 @@ public final class UpdateConfigs {
 
     /**
      * @param context application context
-     * @return list of configs from directory {@link UpdateConfigs#getConfigsRoot}
+     * @return list of configs from directory {@link UpdateConfigs#getConfigsRoot}, without
+     *         the ones that can't be parsed; see {@link UpdateConfigCatalog}
      */
     public static List<UpdateConfig> getUpdateConfigs(Context context) {
-        File root = new File(getConfigsRoot(context));
-        ArrayList<UpdateConfig> configs = new ArrayList<>();
-        if (!root.exists()) {
-            return configs;
-        }
-        for (final File f : root.listFiles()) {
-            if (!f.isDirectory() && f.getName().endsWith(".json")) {
-                try {
-                    String json = new String(Files.readAllBytes(f.toPath()),
-                            StandardCharsets.UTF_8);
-                    configs.add(UpdateConfig.fromJson(json));
-                } catch (Exception e) {
-                    Log.e("UpdateConfigs", "Can't read/parse config file " + f.getName(), e);
-                    throw new RuntimeException(
-                            "Can't read/parse config file " + f.getName(), e);
-                }
-            }
-        }
-        return configs;
+        return UpdateConfigCatalog.getInstance(context).getConfigs();
     }
 
     /**
@@ -0,0 +1,174 @@
+package tech.ologn.softwareupdater.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes buffers to {@link FileChannel}s on a background thread, so that reading the next
+ * buffer from the network overlaps with writing the previous one to storage.
+ *
+ * <p>The writer owns a small, fixed set of buffers. {@link #take} hands out a free one and
+ * blocks while all of them are waiting to be written, which bounds memory use and slows
+ * the reader down to the speed of the storage instead of queueing without limit.</p>
+ *
+ * <p>Once {@link #flush} succeeded, the writer can be used for another copy, to the same
+ * or another channel, without starting a thread and allocating buffers again.</p>
+ *
+ * <p>The writer thread never gets interrupted: an interrupt during a {@link FileChannel}
+ * write closes the channel, which is shared by the other segments of a download.</p>
+ */
+final class WriteBehindWriter implements Closeable {
+
+    /** Queued by {@link #close} to stop the writer thread once pending writes are done. */
+    private static final Write STOP = new Write(null, null, 0, 0, null);
+
+    private final BlockingQueue<byte[]> mFree;
+    private final BlockingQueue<Write> mPending = new LinkedBlockingQueue<>();
+    private final AtomicLong mWritten = new AtomicLong();
+    private final Thread mThread;
+    private volatile IOException mError;
+
+    /**
+     * @param bufferCount number of buffers; 2 is enough for the reader to fill one while
+     *                    the other one is written
+     */
+    WriteBehindWriter(int bufferSize, int bufferCount) {
+        this.mFree = new ArrayBlockingQueue<>(bufferCount);
+        for (int i = 0; i < bufferCount; i++) {
+            mFree.add(new byte[bufferSize]);
+        }
+        this.mThread = new Thread(this::run, "WriteBehindWriter");
+        mThread.start();
+    }
+
+    /**
+     * @return a buffer to fill and pass to {@link #submit}; blocks until one is free
+     * @throws IOException if a previous write failed
+     */
+    byte[] take() throws IOException {
+        byte[] buffer;
+        try {
+            buffer = mFree.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Download was interrupted");
+        }
+        checkError();
+        return buffer;
+    }
+
+    /**
+     * Queues {@code count} bytes of {@code buffer} to be written to {@code channel} at
+     * {@code position}. The buffer must not be used after this call.
+     */
+    void submit(FileChannel channel, byte[] buffer, int count, long position)
+            throws IOException {
+        checkError();
+        mPending.add(new Write(channel, buffer, count, position, null));
+    }
+
+    /** @return number of bytes written by this writer so far, over all its copies */
+    long getWritten() {
+        return mWritten.get();
+    }
+
+    /** Waits until all submitted buffers are written. */
+    void flush() throws IOException {
+        CountDownLatch done = new CountDownLatch(1);
+        mPending.add(new Write(null, null, 0, 0, done));
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Download was interrupted");
+        }
+        checkError();
+    }
+
+    /**
+     * Stops the writer thread after the buffers already submitted are written. Waits for
+     * it even when the calling thread is interrupted, so nothing writes to the channels
+     * after this returns.
+     */
+    @Override
+    public void close() {
+        mPending.add(STOP);
+        boolean interrupted = Thread.interrupted();
+        while (mThread.isAlive()) {
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void checkError() throws IOException {
+        if (mError != null) {
+            throw new IOException("Write to file failed", mError);
+        }
+    }
+
+    private void run() {
+        while (true) {
+            Write write;
+            try {
+                write = mPending.take();
+            } catch (InterruptedException e) {
+                // Nobody interrupts this thread, keep draining until STOP.
+                continue;
+            }
+            if (write == STOP) {
+                return;
+            }
+            if (write.mDone != null) {
+                write.mDone.countDown();
+                continue;
+            }
+            // After a failure the remaining buffers are only recycled, so that a reader
+            // blocked in take() wakes up and sees the error.
+            if (mError == null) {
+                try {
+                    ByteBuffer wrapper = ByteBuffer.wrap(write.mBuffer, 0, write.mCount);
+                    long position = write.mPosition;
+                    while (wrapper.hasRemaining()) {
+                        position += write.mChannel.write(wrapper, position);
+                    }
+                    mWritten.addAndGet(write.mCount);
+                } catch (IOException e) {
+                    mError = e;
+                }
+            }
+            mFree.add(write.mBuffer);
+        }
+    }
+
+    /** A buffer waiting to be written, or a flush marker when {@code mDone} is set. */
+    private static final class Write {
+        final FileChannel mChannel;
+        final byte[] mBuffer;
+        final int mCount;
+        final long mPosition;
+        final CountDownLatch mDone;
+
+        Write(FileChannel channel, byte[] buffer, int count, long position,
+                CountDownLatch done) {
+            this.mChannel = channel;
+            this.mBuffer = buffer;
+            this.mCount = count;
+            this.mPosition = position;
+            this.mDone = done;
+        }
+    }
+}
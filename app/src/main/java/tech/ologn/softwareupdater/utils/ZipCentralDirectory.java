@@ -0,0 +1,335 @@
+package tech.ologn.softwareupdater.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * Entries of a ZIP file, read from its central directory with a few positioned reads:
+ * the end of central directory record, the central directory itself, and the local
+ * header of an entry when its data offset is needed. Supports Zip64, so packages larger
+ * than 4 GB work.
+ *
+ * <p>Offsets and sizes come from the central directory, which is authoritative: local
+ * extra fields that differ from the central ones and data descriptors don't matter.</p>
+ *
+ * <p>See the ZIP File Format Specification (APPNOTE.TXT), sections 4.3 and 4.5.3.</p>
+ */
+public final class ZipCentralDirectory {
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int ZIP64_EOCD_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EOCD_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_EOCD_SIZE = 56;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    /** Usual case of a package without comment, the first read of the tail. */
+    private static final int FIRST_TAIL_READ = 1024;
+
+    private static final long ZIP64_MARKER = 0xffffffffL;
+
+    private final RangeReader mReader;
+    private final List<Entry> mEntries;
+
+    private ZipCentralDirectory(RangeReader reader, List<Entry> entries) {
+        this.mReader = reader;
+        this.mEntries = entries;
+    }
+
+    /**
+     * Reads the central directory of the ZIP file behind {@code reader}. The reader must
+     * stay open while the returned object is used.
+     *
+     * @throws IOException if the file can't be read or isn't a valid ZIP file
+     */
+    public static ZipCentralDirectory read(RangeReader reader) throws IOException {
+        long length = reader.length();
+        long eocdOffset = findEndOfCentralDirectory(reader, length);
+        byte[] eocd = new byte[EOCD_SIZE];
+        reader.readFully(eocdOffset, eocd, 0, EOCD_SIZE);
+
+        long entryCount = u16(eocd, 10);
+        long cdSize = u32(eocd, 12);
+        long cdOffset = u32(eocd, 16);
+        if (entryCount == 0xffff || cdSize == ZIP64_MARKER || cdOffset == ZIP64_MARKER) {
+            long[] zip64 = readZip64EndOfCentralDirectory(reader, eocdOffset);
+            entryCount = zip64[0];
+            cdSize = zip64[1];
+            cdOffset = zip64[2];
+        }
+        if (cdOffset + cdSize > length || cdSize > Integer.MAX_VALUE) {
+            throw new IOException("Invalid ZIP central directory at " + cdOffset
+                    + " size " + cdSize);
+        }
+
+        byte[] cd = new byte[(int) cdSize];
+        reader.readFully(cdOffset, cd, 0, cd.length);
+        List<Entry> entries = new ArrayList<>();
+        int p = 0;
+        while (entries.size() < entryCount) {
+            if (p + CENTRAL_HEADER_SIZE > cd.length || (int) u32(cd, p) != CENTRAL_HEADER_SIGNATURE) {
+                throw new IOException("Invalid ZIP central directory entry at " + (cdOffset + p));
+            }
+            int flags = u16(cd, p + 8);
+            int method = u16(cd, p + 10);
+            long compressedSize = u32(cd, p + 20);
+            long size = u32(cd, p + 24);
+            int nameLength = u16(cd, p + 28);
+            int extraLength = u16(cd, p + 30);
+            int commentLength = u16(cd, p + 32);
+            long localHeaderOffset = u32(cd, p + 42);
+            int nameStart = p + CENTRAL_HEADER_SIZE;
+            int extraStart = nameStart + nameLength;
+            int next = extraStart + extraLength + commentLength;
+            if (next > cd.length) {
+                throw new IOException("Truncated ZIP central directory entry at "
+                        + (cdOffset + p));
+            }
+            // Bit 11: the name is UTF-8. Otherwise it's CP437 in theory, but tools writing
+            // OTA packages only use ASCII, which UTF-8 decodes the same.
+            String name = new String(cd, nameStart, nameLength, StandardCharsets.UTF_8);
+
+            // Zip64 extended information holds, in this order, the fields whose 32-bit
+            // value is the 0xffffffff marker.
+            if (size == ZIP64_MARKER || compressedSize == ZIP64_MARKER
+                    || localHeaderOffset == ZIP64_MARKER) {
+                int field = findExtraField(cd, extraStart, extraLength, ZIP64_EXTRA_ID);
+                if (field < 0) {
+                    throw new IOException("Missing Zip64 extra field of " + name);
+                }
+                int fieldEnd = field + 4 + u16(cd, field + 2);
+                int q = field + 4;
+                if (size == ZIP64_MARKER) {
+                    size = u64(cd, q, fieldEnd);
+                    q += 8;
+                }
+                if (compressedSize == ZIP64_MARKER) {
+                    compressedSize = u64(cd, q, fieldEnd);
+                    q += 8;
+                }
+                if (localHeaderOffset == ZIP64_MARKER) {
+                    localHeaderOffset = u64(cd, q, fieldEnd);
+                }
+            }
+            entries.add(new Entry(name, method, (flags & 1) != 0, compressedSize, size,
+                    localHeaderOffset));
+            p = next;
+        }
+        return new ZipCentralDirectory(reader, Collections.unmodifiableList(entries));
+    }
+
+    /** @return entries in central directory order */
+    public List<Entry> getEntries() {
+        return mEntries;
+    }
+
+    public Optional<Entry> getEntry(String name) {
+        for (Entry entry : mEntries) {
+            if (entry.mName.equals(name)) {
+                return Optional.of(entry);
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * @return offset of the first byte of the entry data in the file. Reads the local
+     *         header, because its extra field may differ from the central one.
+     */
+    public long getDataOffset(Entry entry) throws IOException {
+        if (entry.mDataOffset < 0) {
+            byte[] header = new byte[LOCAL_HEADER_SIZE];
+            mReader.readFully(entry.mLocalHeaderOffset, header, 0, LOCAL_HEADER_SIZE);
+            if ((int) u32(header, 0) != LOCAL_HEADER_SIGNATURE) {
+                throw new IOException("Invalid ZIP local header of " + entry.mName
+                        + " at " + entry.mLocalHeaderOffset);
+            }
+            long dataOffset = entry.mLocalHeaderOffset + LOCAL_HEADER_SIZE
+                    + u16(header, 26) + u16(header, 28);
+            if (dataOffset + entry.mCompressedSize > mReader.length()) {
+                throw new IOException("Data of " + entry.mName + " is outside of the file");
+            }
+            entry.mDataOffset = dataOffset;
+        }
+        return entry.mDataOffset;
+    }
+
+    /**
+     * Reads and, if needed, inflates the content of a small entry.
+     *
+     * @throws IOException if the entry is too big, encrypted or uses an unsupported method
+     */
+    public byte[] readContent(Entry entry) throws IOException {
+        if (entry.mEncrypted) {
+            throw new IOException(entry.mName + " is encrypted");
+        }
+        if (entry.mCompressedSize > Integer.MAX_VALUE || entry.mSize > Integer.MAX_VALUE) {
+            throw new IOException(entry.mName + " is too big to be read in memory");
+        }
+        byte[] data = new byte[(int) entry.mCompressedSize];
+        mReader.readFully(getDataOffset(entry), data, 0, data.length);
+        if (entry.mMethod == ZipEntry.STORED) {
+            return data;
+        }
+        if (entry.mMethod != ZipEntry.DEFLATED) {
+            throw new IOException("Unsupported compression method " + entry.mMethod
+                    + " of " + entry.mName);
+        }
+        Inflater inflater = new Inflater(true);
+        try (InputStream in = new InflaterInputStream(
+                new ByteArrayInputStream(data), inflater)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) entry.mSize);
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Finds the end of central directory record. It's at the very end unless the file has
+     * a comment, so a small read of the tail is tried before the largest possible one.
+     */
+    private static long findEndOfCentralDirectory(RangeReader reader, long length)
+            throws IOException {
+        if (length < EOCD_SIZE) {
+            throw new IOException("Not a ZIP file, only " + length + " bytes");
+        }
+        long maxTail = Math.min(length, EOCD_SIZE + MAX_COMMENT_SIZE);
+        for (long tailSize : new long[] {Math.min(maxTail, FIRST_TAIL_READ), maxTail}) {
+            byte[] tail = new byte[(int) tailSize];
+            long tailOffset = length - tailSize;
+            reader.readFully(tailOffset, tail, 0, tail.length);
+            for (int i = tail.length - EOCD_SIZE; i >= 0; i--) {
+                // The comment length must reach exactly the end of the file, otherwise the
+                // signature is just bytes of the comment.
+                if ((int) u32(tail, i) == EOCD_SIGNATURE
+                        && i + EOCD_SIZE + u16(tail, i + 20) == tail.length) {
+                    return tailOffset + i;
+                }
+            }
+            if (tailSize == maxTail) {
+                break;
+            }
+        }
+        throw new IOException("Not a ZIP file, end of central directory not found");
+    }
+
+    /** @return {entry count, central directory size, central directory offset} */
+    private static long[] readZip64EndOfCentralDirectory(RangeReader reader, long eocdOffset)
+            throws IOException {
+        if (eocdOffset < ZIP64_EOCD_LOCATOR_SIZE) {
+            throw new IOException("Missing Zip64 end of central directory locator");
+        }
+        byte[] locator = new byte[ZIP64_EOCD_LOCATOR_SIZE];
+        reader.readFully(eocdOffset - ZIP64_EOCD_LOCATOR_SIZE, locator, 0, locator.length);
+        if ((int) u32(locator, 0) != ZIP64_EOCD_LOCATOR_SIGNATURE) {
+            throw new IOException("Missing Zip64 end of central directory locator");
+        }
+        long zip64EocdOffset = u64(locator, 8, locator.length);
+        byte[] zip64Eocd = new byte[ZIP64_EOCD_SIZE];
+        reader.readFully(zip64EocdOffset, zip64Eocd, 0, zip64Eocd.length);
+        if ((int) u32(zip64Eocd, 0) != ZIP64_EOCD_SIGNATURE) {
+            throw new IOException("Invalid Zip64 end of central directory at "
+                    + zip64EocdOffset);
+        }
+        return new long[] {
+                u64(zip64Eocd, 32, ZIP64_EOCD_SIZE),
+                u64(zip64Eocd, 40, ZIP64_EOCD_SIZE),
+                u64(zip64Eocd, 48, ZIP64_EOCD_SIZE)
+        };
+    }
+
+    /** @return offset of the extra field with {@code id}, or -1 */
+    private static int findExtraField(byte[] b, int start, int length, int id) {
+        int p = start;
+        while (p + 4 <= start + length) {
+            if (u16(b, p) == id) {
+                return p;
+            }
+            p += 4 + u16(b, p + 2);
+        }
+        return -1;
+    }
+
+    private static int u16(byte[] b, int p) {
+        return (b[p] & 0xff) | ((b[p + 1] & 0xff) << 8);
+    }
+
+    private static long u32(byte[] b, int p) {
+        return (u16(b, p) | ((long) u16(b, p + 2) << 16)) & 0xffffffffL;
+    }
+
+    private static long u64(byte[] b, int p, int end) throws IOException {
+        if (p + 8 > end) {
+            throw new IOException("Truncated Zip64 field");
+        }
+        long value = u32(b, p) | (u32(b, p + 4) << 32);
+        if (value < 0) {
+            throw new IOException("Zip64 value out of range");
+        }
+        return value;
+    }
+
+    /** An entry of the central directory. */
+    public static final class Entry {
+        private final String mName;
+        private final int mMethod;
+        private final boolean mEncrypted;
+        private final long mCompressedSize;
+        private final long mSize;
+        private final long mLocalHeaderOffset;
+        private long mDataOffset = -1;
+
+        Entry(String name, int method, boolean encrypted, long compressedSize, long size,
+                long localHeaderOffset) {
+            this.mName = name;
+            this.mMethod = method;
+            this.mEncrypted = encrypted;
+            this.mCompressedSize = compressedSize;
+            this.mSize = size;
+            this.mLocalHeaderOffset = localHeaderOffset;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /** @return {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}, or another method */
+        public int getMethod() {
+            return mMethod;
+        }
+
+        public long getCompressedSize() {
+            return mCompressedSize;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+
+        public long getLocalHeaderOffset() {
+            return mLocalHeaderOffset;
+        }
+    }
+}
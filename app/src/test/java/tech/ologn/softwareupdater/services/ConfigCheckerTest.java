@@ -0,0 +1,128 @@
+package tech.ologn.softwareupdater.services;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import tech.ologn.softwareupdater.utils.RangeHttpServer;
+import tech.ologn.softwareupdater.utils.UpdateConfigs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+public class ConfigCheckerTest {
+
+    private static final byte[] CONFIG = ("{\"name\":\"update\","
+            + "\"url\":\"https://example.com/update.zip\"}").getBytes(StandardCharsets.UTF_8);
+    private static final String ETAG = "\"c1\"";
+    /** Set on the saved config, so that any write to it shows. */
+    private static final long SAVED_TIME = 1_000_000_000_000L;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private RangeHttpServer mServer;
+    private ConfigChecker mChecker;
+    private File mConfigsDir;
+
+    @Before
+    public void setUp() throws IOException {
+        File filesDir = mFolder.newFolder("files");
+        Context context = new ContextWrapper(null) {
+            @Override
+            public File getFilesDir() {
+                return filesDir;
+            }
+
+            @Override
+            public Context getApplicationContext() {
+                return this;
+            }
+        };
+        mChecker = new ConfigChecker(context);
+        mConfigsDir = new File(UpdateConfigs.getConfigsRoot(context));
+        mServer = new RangeHttpServer(CONFIG);
+        mServer.setEtag(ETAG);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.close();
+    }
+
+    @Test
+    public void check_unchangedConfig_isNotModifiedWithoutTouchingConfigs() throws Exception {
+        String url = mServer.getUrl("/update/ota_config.json");
+        // The state a first check leaves. That check is done by hand: ConfigStreamReader
+        // parses with android.util.JsonReader, which is only a stub on the JVM.
+        File bodyFile = mChecker.getBodyFile(url);
+        assertTrue(bodyFile.getParentFile().mkdirs());
+        Files.write(bodyFile.toPath(), get(url));
+        mChecker.getHttpCache().put(url, ETAG, null, bodyFile);
+        assertTrue(mConfigsDir.mkdirs());
+        File saved = new File(mConfigsDir, ConfigChecker.CONFIG_FILENAME);
+        Files.write(saved.toPath(), CONFIG);
+        assertTrue(saved.setLastModified(SAVED_TIME));
+
+        ConfigChecker.Result result = mChecker.check(url, null, null, null);
+
+        assertTrue(result.mNotModified);
+        assertEquals(ETAG, mServer.getRequestHeaders().get(1).getFirst("If-None-Match"));
+        assertEquals(Arrays.asList(200, 304), mServer.getResponseCodes());
+        assertEquals(1, mChecker.getHttpCache().getHits());
+        assertArrayEquals(new String[] {ConfigChecker.CONFIG_FILENAME}, mConfigsDir.list());
+        assertEquals(SAVED_TIME, saved.lastModified());
+        assertArrayEquals(CONFIG, Files.readAllBytes(saved.toPath()));
+        assertArrayEquals(new String[] {bodyFile.getName()}, bodyFile.getParentFile().list());
+    }
+
+    @Test
+    public void check_missingManifest_isNotRequestedAgain() throws Exception {
+        String url = mServer.getUrl("/update/ota_manifest.json");
+        mServer.setStatus(404);
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                mChecker.check(null, null, url, null);
+                fail("Check without config succeeded");
+            } catch (IOException expected) {
+            }
+        }
+
+        assertEquals(1, mServer.getRequestCount());
+        assertTrue(mChecker.getHttpCache().isMissing(url, 60_000));
+    }
+
+    private static byte[] get(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try (InputStream in = connection.getInputStream()) {
+            assertEquals(ETAG, connection.getHeaderField("ETag"));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
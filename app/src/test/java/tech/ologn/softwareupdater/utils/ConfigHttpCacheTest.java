@@ -0,0 +1,141 @@
+package tech.ologn.softwareupdater.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+public class ConfigHttpCacheTest {
+
+    private static final String URL_A = "https://example.com/a.json";
+    private static final String URL_B = "https://example.com/b.json";
+    private static final String ETAG = "\"abc\"";
+    private static final String LAST_MODIFIED = "Wed, 21 Oct 2026 07:28:00 GMT";
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mCacheFile;
+    private File mSavedA;
+    private File mSavedB;
+
+    @Before
+    public void setUp() throws IOException {
+        mCacheFile = new File(mFolder.getRoot(), "cache.json");
+        mSavedA = mFolder.newFile("a.json");
+        mSavedB = mFolder.newFile("b.json");
+    }
+
+    @Test
+    public void addConditionalHeaders_withoutEntry_addsNothing() throws IOException {
+        HttpURLConnection connection = newConnection(URL_A);
+
+        assertFalse(new ConfigHttpCache(mCacheFile)
+                .addConditionalHeaders(connection, URL_A, mSavedA));
+        assertNull(connection.getRequestProperty("If-None-Match"));
+        assertNull(connection.getRequestProperty("If-Modified-Since"));
+    }
+
+    @Test
+    public void put_thenAddConditionalHeaders_sendsValidators() throws IOException {
+        ConfigHttpCache cache = new ConfigHttpCache(mCacheFile);
+        cache.put(URL_A, ETAG, LAST_MODIFIED, mSavedA);
+        HttpURLConnection connection = newConnection(URL_A);
+
+        assertTrue(cache.addConditionalHeaders(connection, URL_A, mSavedA));
+        assertEquals(ETAG, connection.getRequestProperty("If-None-Match"));
+        assertEquals(LAST_MODIFIED, connection.getRequestProperty("If-Modified-Since"));
+    }
+
+    @Test
+    public void put_persistsValidatorsAndCounters() throws IOException {
+        ConfigHttpCache cache = new ConfigHttpCache(mCacheFile);
+        cache.put(URL_A, ETAG, null, mSavedA);
+        cache.recordHit();
+        cache.recordMiss();
+        cache.recordMiss();
+
+        ConfigHttpCache reloaded = new ConfigHttpCache(mCacheFile);
+        HttpURLConnection connection = newConnection(URL_A);
+
+        assertTrue(reloaded.addConditionalHeaders(connection, URL_A, mSavedA));
+        assertEquals(ETAG, connection.getRequestProperty("If-None-Match"));
+        assertNull(connection.getRequestProperty("If-Modified-Since"));
+        assertEquals(1, reloaded.getHits());
+        assertEquals(2, reloaded.getMisses());
+    }
+
+    @Test
+    public void addConditionalHeaders_savedFileMissing_addsNothing() throws IOException {
+        ConfigHttpCache cache = new ConfigHttpCache(mCacheFile);
+        cache.put(URL_A, ETAG, LAST_MODIFIED, mSavedA);
+        assertTrue(mSavedA.delete());
+
+        assertFalse(cache.addConditionalHeaders(newConnection(URL_A), URL_A, mSavedA));
+    }
+
+    @Test
+    public void addConditionalHeaders_otherSavedFile_addsNothing() throws IOException {
+        ConfigHttpCache cache = new ConfigHttpCache(mCacheFile);
+        cache.put(URL_A, ETAG, LAST_MODIFIED, mSavedA);
+
+        assertFalse(cache.addConditionalHeaders(newConnection(URL_A), URL_A, mSavedB));
+    }
+
+    @Test
+    public void put_withoutValidators_removesEntry() throws IOException {
+        ConfigHttpCache cache = new ConfigHttpCache(mCacheFile);
+        cache.put(URL_A, ETAG, LAST_MODIFIED, mSavedA);
+        cache.put(URL_A, null, null, mSavedA);
+
+        assertFalse(cache.addConditionalHeaders(newConnection(URL_A), URL_A, mSavedA));
+    }
+
+    @Test
+    public void put_keepsEntriesOfUrlsSavedToOtherFiles() throws IOException {
+        ConfigHttpCache cache = new ConfigHttpCache(mCacheFile);
+        cache.put(URL_A, ETAG, null, mSavedA);
+        cache.put(URL_B, "\"def\"", null, mSavedB);
+
+        assertTrue(cache.addConditionalHeaders(newConnection(URL_A), URL_A, mSavedA));
+        assertTrue(cache.addConditionalHeaders(newConnection(URL_B), URL_B, mSavedB));
+    }
+
+    @Test
+    public void put_dropsEntriesOfUrlsSavedToSameFile() throws IOException {
+        ConfigHttpCache cache = new ConfigHttpCache(mCacheFile);
+        cache.put(URL_A, ETAG, null, mSavedA);
+        cache.put(URL_B, "\"def\"", null, mSavedA);
+
+        assertFalse(cache.addConditionalHeaders(newConnection(URL_A), URL_A, mSavedA));
+        assertTrue(cache.addConditionalHeaders(newConnection(URL_B), URL_B, mSavedA));
+    }
+
+    /** @return a connection that is never connected, only its request headers are used */
+    private static HttpURLConnection newConnection(String url) throws IOException {
+        return new HttpURLConnection(new URL(url)) {
+            @Override
+            public void connect() {
+            }
+
+            @Override
+            public void disconnect() {
+            }
+
+            @Override
+            public boolean usingProxy() {
+                return false;
+            }
+        };
+    }
+}
@@ -0,0 +1,114 @@
+package tech.ologn.softwareupdater.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import org.json.JSONException;
+import org.junit.Test;
+
+public class ConfigManifestTest {
+
+    private static final String MANIFEST_URL = "https://example.com/ota/update/manifest.json";
+
+    @Test
+    public void parse_unsortedEntries_areFound() throws JSONException {
+        ConfigManifest manifest = ConfigManifest.parse("{\"configs\": ["
+                + entry("zeta", null, "zeta/full.json") + ","
+                + entry("cartp", "1.0.3", "cartp/from_1.0.3.json") + ","
+                + entry("alpha", null, "alpha/full.json") + ","
+                + entry("cartp", null, "cartp/full.json") + ","
+                + entry("cartp", "1.0.10", "cartp/from_1.0.10.json")
+                + "]}", MANIFEST_URL);
+
+        assertEquals(5, manifest.size());
+        assertEquals("https://example.com/ota/update/zeta/full.json",
+                manifest.getFullConfigUrl("zeta"));
+        assertEquals("https://example.com/ota/update/alpha/full.json",
+                manifest.getFullConfigUrl("alpha"));
+        assertEquals("https://example.com/ota/update/cartp/full.json",
+                manifest.getFullConfigUrl("cartp"));
+        assertEquals("https://example.com/ota/update/cartp/from_1.0.3.json",
+                manifest.getIncrementalConfigUrl("cartp", "1.0.3"));
+        assertEquals("https://example.com/ota/update/cartp/from_1.0.10.json",
+                manifest.getIncrementalConfigUrl("cartp", "1.0.10"));
+        assertNull(manifest.getIncrementalConfigUrl("cartp", "1.0.4"));
+        assertNull(manifest.getIncrementalConfigUrl("alpha", "1.0.3"));
+        assertNull(manifest.getFullConfigUrl("beta"));
+    }
+
+    @Test
+    public void getIncrementalConfigUrl_emptyVersion_isNotTheFullConfig() throws JSONException {
+        ConfigManifest manifest = ConfigManifest.parse(
+                "{\"configs\": [" + entry("cartp", null, "full.json") + "]}", MANIFEST_URL);
+
+        assertNull(manifest.getIncrementalConfigUrl("cartp", ""));
+    }
+
+    @Test
+    public void parse_resolvesUrlsAgainstManifestUrl() throws JSONException {
+        ConfigManifest manifest = ConfigManifest.parse("{\"configs\": ["
+                + entry("relative", null, "cartp/full.json") + ","
+                + entry("parent", null, "../other/full.json") + ","
+                + entry("rooted", null, "/full.json") + ","
+                + entry("absolute", null, "https://cdn.example.org/full.json")
+                + "]}", MANIFEST_URL);
+
+        assertEquals("https://example.com/ota/update/cartp/full.json",
+                manifest.getFullConfigUrl("relative"));
+        assertEquals("https://example.com/ota/other/full.json",
+                manifest.getFullConfigUrl("parent"));
+        assertEquals("https://example.com/full.json", manifest.getFullConfigUrl("rooted"));
+        assertEquals("https://cdn.example.org/full.json",
+                manifest.getFullConfigUrl("absolute"));
+    }
+
+    @Test
+    public void lookup_ignoresCaseOfModel() throws JSONException {
+        ConfigManifest manifest = ConfigManifest.parse("{\"configs\": ["
+                + entry("CartP", null, "full.json") + ","
+                + entry("CARTP", "1.0.3", "incremental.json")
+                + "]}", MANIFEST_URL);
+
+        assertEquals("https://example.com/ota/update/full.json",
+                manifest.getFullConfigUrl("cartp"));
+        assertEquals("https://example.com/ota/update/full.json",
+                manifest.getFullConfigUrl("CARTP"));
+        assertEquals("https://example.com/ota/update/incremental.json",
+                manifest.getIncrementalConfigUrl("cArTp", "1.0.3"));
+    }
+
+    @Test
+    public void parse_duplicateEntry_fails() {
+        assertInvalid("{\"configs\": [" + entry("cartp", "1.0.3", "a.json") + ","
+                + entry("cartp", "1.0.3", "b.json") + "]}");
+    }
+
+    @Test
+    public void parse_entriesDifferingInCaseOfModel_areDuplicates() {
+        assertInvalid("{\"configs\": [" + entry("cartp", null, "a.json") + ","
+                + entry("CartP", null, "b.json") + "]}");
+    }
+
+    @Test
+    public void parse_invalidManifest_fails() {
+        assertInvalid("{\"config\": []}");
+        assertInvalid("{\"configs\": [{\"model\": \"cartp\"}]}");
+        assertInvalid("{\"configs\": [" + entry("cart\np", null, "a.json") + "]}");
+        assertInvalid("{\"configs\": [" + entry("cartp", null, "unknown:full.json") + "]}");
+    }
+
+    private static void assertInvalid(String json) {
+        try {
+            ConfigManifest.parse(json, MANIFEST_URL);
+            fail("Invalid manifest was accepted: " + json);
+        } catch (JSONException expected) {
+        }
+    }
+
+    private static String entry(String model, String from, String url) {
+        return "{\"model\": \"" + model.replace("\n", "\\n") + "\", "
+                + (from != null ? "\"from\": \"" + from + "\", " : "")
+                + "\"url\": \"" + url + "\"}";
+    }
+}
@@ -0,0 +1,136 @@
+package tech.ologn.softwareupdater.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+public class DownloadJournalTest {
+
+    private static final String URL = "https://example.com/update.zip";
+    private static final String VALIDATOR = "\"v1\"";
+    private static final long LENGTH = 1000;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDestination;
+    private DownloadJournal mJournal;
+
+    @Before
+    public void setUp() {
+        mDestination = new File(mFolder.getRoot(), "update.zip");
+        mJournal = DownloadJournal.create(mDestination, URL, VALIDATOR, LENGTH);
+    }
+
+    @Test
+    public void newJournal_missesWholeFile() {
+        assertRanges(mJournal.getMissingRanges(), 0, LENGTH);
+        assertEquals(0, mJournal.getCompletedBytes());
+        assertFalse(mJournal.isComplete());
+    }
+
+    @Test
+    public void addCompleted_disjointRanges_areKeptApart() {
+        mJournal.addCompleted(600, 700);
+        mJournal.addCompleted(100, 200);
+
+        assertEquals(200, mJournal.getCompletedBytes());
+        assertRanges(mJournal.getMissingRanges(), 0, 100, 200, 600, 700, LENGTH);
+    }
+
+    @Test
+    public void addCompleted_adjacentRanges_areMerged() {
+        mJournal.addCompleted(100, 200);
+        mJournal.addCompleted(200, 300);
+
+        assertEquals(200, mJournal.getCompletedBytes());
+        assertRanges(mJournal.getMissingRanges(), 0, 100, 300, LENGTH);
+    }
+
+    @Test
+    public void addCompleted_overlappingRanges_areMerged() {
+        mJournal.addCompleted(100, 300);
+        mJournal.addCompleted(250, 400);
+        mJournal.addCompleted(50, 150);
+
+        assertEquals(350, mJournal.getCompletedBytes());
+        assertRanges(mJournal.getMissingRanges(), 0, 50, 400, LENGTH);
+    }
+
+    @Test
+    public void addCompleted_rangeSpanningSeveral_mergesThemAll() {
+        mJournal.addCompleted(100, 200);
+        mJournal.addCompleted(300, 400);
+        mJournal.addCompleted(500, 600);
+        mJournal.addCompleted(150, 550);
+
+        assertEquals(500, mJournal.getCompletedBytes());
+        assertRanges(mJournal.getMissingRanges(), 0, 100, 600, LENGTH);
+    }
+
+    @Test
+    public void addCompleted_emptyRange_isIgnored() {
+        mJournal.addCompleted(100, 100);
+
+        assertEquals(0, mJournal.getCompletedBytes());
+    }
+
+    @Test
+    public void addCompleted_wholeFile_isComplete() {
+        mJournal.addCompleted(0, 500);
+        mJournal.addCompleted(500, LENGTH);
+
+        assertTrue(mJournal.isComplete());
+        assertEquals(LENGTH, mJournal.getCompletedBytes());
+    }
+
+    @Test
+    public void save_thenLoad_keepsRangesAndValidator() throws IOException {
+        mJournal.addCompleted(100, 200);
+        mJournal.addCompleted(500, 600);
+        mJournal.save();
+
+        DownloadJournal loaded = DownloadJournal.load(mDestination);
+
+        assertNotNull(loaded);
+        assertTrue(loaded.matches(URL, VALIDATOR, LENGTH));
+        assertFalse(loaded.matches(URL, "\"v2\"", LENGTH));
+        assertFalse(loaded.matches(URL, VALIDATOR, LENGTH + 1));
+        assertRanges(loaded.getMissingRanges(), 0, 100, 200, 500, 600, LENGTH);
+    }
+
+    @Test
+    public void matches_withoutValidator_isFalse() {
+        DownloadJournal journal = DownloadJournal.create(mDestination, URL, null, LENGTH);
+
+        assertFalse(journal.matches(URL, null, LENGTH));
+    }
+
+    @Test
+    public void delete_removesSavedJournal() throws IOException {
+        mJournal.save();
+        DownloadJournal.delete(mDestination);
+
+        assertNull(DownloadJournal.load(mDestination));
+    }
+
+    /** @param bounds start and end of each expected range, in order */
+    private static void assertRanges(List<long[]> ranges, long... bounds) {
+        assertEquals(bounds.length / 2, ranges.size());
+        for (int i = 0; i < ranges.size(); i++) {
+            assertArrayEquals(new long[] {bounds[2 * i], bounds[2 * i + 1]}, ranges.get(i));
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package tech.ologn.softwareupdater.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+public class FileDownloaderTest {
+
+    private static final int LENGTH = 10 * 1024 * 1024 + 123;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private byte[] mContent;
+    private RangeHttpServer mServer;
+    private File mDestination;
+
+    @Before
+    public void setUp() throws IOException {
+        mContent = new byte[LENGTH];
+        new Random(42).nextBytes(mContent);
+        mServer = new RangeHttpServer(mContent);
+        mDestination = new File(mFolder.getRoot(), "update.zip");
+    }
+
+    @After
+    public void tearDown() {
+        mServer.close();
+    }
+
+    @Test
+    public void download_segmentsWithDigests_hashesWhileDownloading() throws Exception {
+        FileDownloader downloader = newDownloader(4);
+        RangeDigest whole = downloader.trackDigest(0, -1);
+        RangeDigest part = downloader.trackDigest(1000, 3 * 1024 * 1024 + 17);
+
+        downloader.download();
+
+        assertArrayEquals(mContent, Files.readAllBytes(mDestination.toPath()));
+        assertArrayEquals(sha256(mContent, 0, LENGTH), whole.get());
+        assertArrayEquals(sha256(mContent, 1000, 3 * 1024 * 1024 + 17), part.get());
+    }
+
+    @Test
+    public void download_resumedWithDigest_hashesRangesOfPreviousAttempt() throws Exception {
+        // A previous attempt wrote two ranges, one of them at the very end.
+        long[][] written = {{3_000_000, 5_500_000}, {9_000_000, LENGTH}};
+        try (RandomAccessFile file = new RandomAccessFile(mDestination, "rw")) {
+            file.setLength(LENGTH);
+            for (long[] range : written) {
+                file.seek(range[0]);
+                file.write(mContent, (int) range[0], (int) (range[1] - range[0]));
+            }
+        }
+        DownloadJournal journal = DownloadJournal.create(
+                mDestination, mServer.getUrl("/update.zip"), "\"v1\"", LENGTH);
+        for (long[] range : written) {
+            journal.addCompleted(range[0], range[1]);
+        }
+        journal.save();
+
+        FileDownloader downloader = newDownloader(4);
+        downloader.setResumable(true);
+        RangeDigest whole = downloader.trackDigest(0, -1);
+
+        downloader.download();
+
+        assertArrayEquals(mContent, Files.readAllBytes(mDestination.toPath()));
+        assertArrayEquals(sha256(mContent, 0, LENGTH), whole.get());
+        assertTrue(DownloadJournal.load(mDestination).isComplete());
+    }
+
+    @Test
+    public void download_singleSegmentWithDigest_hashesWhileDownloading() throws Exception {
+        FileDownloader downloader = newDownloader(1);
+        RangeDigest part = downloader.trackDigest(LENGTH - 5000, 5000);
+
+        downloader.download();
+
+        assertArrayEquals(mContent, Files.readAllBytes(mDestination.toPath()));
+        assertArrayEquals(sha256(mContent, LENGTH - 5000, 5000), part.get());
+    }
+
+    @Test
+    public void download_resumedInManyRanges_leavesNoWriterThreads() throws Exception {
+        // Every other MB is missing: five ranges, more than the segments, that reuse
+        // the writers of the ranges before them.
+        try (RandomAccessFile file = new RandomAccessFile(mDestination, "rw")) {
+            file.setLength(LENGTH);
+        }
+        DownloadJournal journal = DownloadJournal.create(
+                mDestination, mServer.getUrl("/update.zip"), "\"v1\"", LENGTH);
+        try (RandomAccessFile file = new RandomAccessFile(mDestination, "rw")) {
+            for (int start = 0; start < LENGTH; start += 2 * 1024 * 1024) {
+                int end = Math.min(LENGTH, start + 1024 * 1024);
+                file.seek(start);
+                file.write(mContent, start, end - start);
+                journal.addCompleted(start, end);
+            }
+        }
+        journal.save();
+        FileDownloader downloader = newDownloader(2);
+        downloader.setResumable(true);
+
+        downloader.download();
+
+        assertArrayEquals(mContent, Files.readAllBytes(mDestination.toPath()));
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            assertFalse("Writer thread still running",
+                    thread.getName().equals("WriteBehindWriter") && thread.isAlive());
+        }
+    }
+
+    @Test
+    public void download_segments_fasterThanOneThrottledConnection() throws Exception {
+        // Like a CDN that limits each connection, 4 MB/s here.
+        mServer.setThrottle(4 * 1024 * 1024);
+        mServer.setLatency(20);
+
+        long single = timeDownload(1);
+        long segmented = timeDownload(4);
+
+        assertArrayEquals(mContent, Files.readAllBytes(mDestination.toPath()));
+        assertTrue("4 segments took " + segmented + " ms, 1 segment " + single + " ms",
+                segmented < single * 0.6);
+    }
+
+    private long timeDownload(int segments) throws IOException {
+        Files.deleteIfExists(mDestination.toPath());
+        long start = System.nanoTime();
+        newDownloader(segments).download();
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+
+    private FileDownloader newDownloader(int segments) {
+        FileDownloader downloader = new FileDownloader(
+                mServer.getUrl("/update.zip"), 0, -1, mDestination);
+        downloader.setSegmentCount(segments);
+        return downloader;
+    }
+
+    static byte[] sha256(byte[] data, int offset, int length) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(Arrays.copyOfRange(data, offset, offset + length));
+        return digest.digest();
+    }
+}
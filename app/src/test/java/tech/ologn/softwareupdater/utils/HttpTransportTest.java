@@ -0,0 +1,224 @@
+package tech.ologn.softwareupdater.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.sun.net.httpserver.Headers;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+public class HttpTransportTest {
+
+    private static final int LENGTH = 1000;
+    private static final String ETAG = "\"v1\"";
+
+    private byte[] mContent;
+    private RangeHttpServer mServer;
+    private HttpTransport mTransport;
+
+    @Before
+    public void setUp() throws IOException {
+        mContent = new byte[LENGTH];
+        for (int i = 0; i < LENGTH; i++) {
+            mContent[i] = (byte) (i * 31);
+        }
+        mServer = new RangeHttpServer(mContent);
+        mServer.setEtag(ETAG);
+        mTransport = new HttpTransport(mServer.getUrl("/update.zip"));
+    }
+
+    @After
+    public void tearDown() {
+        mServer.close();
+    }
+
+    @Test
+    public void probe_returnsRemainingLengthAndValidator() throws IOException {
+        DownloadTransport.Stat stat = mTransport.probe(100);
+
+        assertEquals(LENGTH - 100, stat.getLength());
+        assertEquals(ETAG, stat.getValidator());
+        assertEquals("bytes=100-100", lastRequest().getFirst("Range"));
+    }
+
+    @Test
+    public void probe_rangesNotSupported_returnsNull() throws IOException {
+        mServer.setRangesSupported(false);
+
+        assertNull(mTransport.probe(0));
+    }
+
+    @Test
+    public void open_range_sendsRangeAndIfRange() throws IOException {
+        DownloadTransport.Body body = mTransport.open(100, 200, ETAG, true);
+
+        assertEquals(200, body.getLength());
+        assertArrayEquals(Arrays.copyOfRange(mContent, 100, 300), read(body, 200));
+        assertEquals("bytes=100-299", lastRequest().getFirst("Range"));
+        assertEquals(ETAG, lastRequest().getFirst("If-Range"));
+    }
+
+    @Test
+    public void open_toEnd_sendsOpenRange() throws IOException {
+        DownloadTransport.Body body = mTransport.open(900, -1, null, true);
+
+        assertArrayEquals(Arrays.copyOfRange(mContent, 900, LENGTH), read(body, 100));
+        assertEquals("bytes=900-", lastRequest().getFirst("Range"));
+        assertNull(lastRequest().getFirst("If-Range"));
+    }
+
+    @Test
+    public void open_changedFile_failsNonRetryable() {
+        // The server answers If-Range with another ETag by sending the whole new file.
+        assertNonRetryable(() -> mTransport.open(100, 200, "\"v0\"", false));
+    }
+
+    @Test
+    public void open_rangeIgnored_skipsToOffset() throws IOException {
+        mServer.setRangesSupported(false);
+
+        DownloadTransport.Body body = mTransport.open(100, -1, null, false);
+
+        assertEquals(LENGTH - 100, body.getLength());
+        assertArrayEquals(Arrays.copyOfRange(mContent, 100, LENGTH), read(body, LENGTH - 100));
+    }
+
+    @Test
+    public void open_rangeIgnoredWhenRequired_failsNonRetryable() {
+        mServer.setRangesSupported(false);
+
+        assertNonRetryable(() -> mTransport.open(100, 200, null, true));
+    }
+
+    @Test
+    public void open_contentRangeAtOtherOffset_failsNonRetryable() {
+        mServer.setContentRange("bytes 0-199/" + LENGTH);
+
+        assertNonRetryable(() -> mTransport.open(100, 200, null, true));
+    }
+
+    @Test
+    public void open_contentRangeShorterThanRequested_failsNonRetryable() {
+        mServer.setContentRange("bytes 100-149/" + LENGTH);
+
+        assertNonRetryable(() -> mTransport.open(100, 200, null, true));
+    }
+
+    @Test
+    public void open_invalidContentRange_failsRetryable() {
+        mServer.setContentRange("bytes oops");
+
+        assertRetryable(() -> mTransport.open(100, 200, null, true));
+    }
+
+    @Test
+    public void open_serverErrors_areRetryable() {
+        for (int status : new int[] {500, 503, 408, 429}) {
+            mServer.setStatus(status);
+            assertRetryable(() -> mTransport.open(0, 10, null, true));
+        }
+    }
+
+    @Test
+    public void open_clientErrors_areNonRetryable() {
+        for (int status : new int[] {403, 404, 410}) {
+            mServer.setStatus(status);
+            assertNonRetryable(() -> mTransport.open(0, 10, null, true));
+        }
+    }
+
+    @Test
+    public void open_failure_disconnectsUnreadBody() throws Exception {
+        // Much larger than the socket buffers: the server can only finish sending it if
+        // the client reads it or closes the connection.
+        mServer.setContent(new byte[32 * 1024 * 1024]);
+        mServer.setRangesSupported(false);
+
+        assertNonRetryable(() -> mTransport.open(100, 200, null, true));
+
+        assertTrue("Response body was left open", mServer.awaitFinished(1, 5000));
+    }
+
+    @Test
+    public void openTail_returnsLastBytesAndStat() throws IOException {
+        DownloadTransport.Body body = mTransport.openTail(300);
+
+        assertEquals("bytes=-300", lastRequest().getFirst("Range"));
+        assertEquals(LENGTH, body.getStat().getLength());
+        assertEquals(ETAG, body.getStat().getValidator());
+        assertArrayEquals(Arrays.copyOfRange(mContent, LENGTH - 300, LENGTH), read(body, 300));
+    }
+
+    @Test
+    public void openTail_rangeIgnored_skipsToTail() throws IOException {
+        mServer.setRangesSupported(false);
+
+        DownloadTransport.Body body = mTransport.openTail(300);
+
+        assertEquals(LENGTH, body.getStat().getLength());
+        assertArrayEquals(Arrays.copyOfRange(mContent, LENGTH - 300, LENGTH), read(body, 300));
+    }
+
+    @Test
+    public void openTail_rangeNotAtEnd_fails() {
+        mServer.setContentRange("bytes 0-299/" + LENGTH);
+
+        try {
+            mTransport.openTail(300);
+            fail("Range that isn't the tail was accepted");
+        } catch (IOException expected) {
+            assertFalse(expected instanceof NonRetryableException);
+        }
+    }
+
+    private Headers lastRequest() {
+        return mServer.getRequestHeaders().get(mServer.getRequestCount() - 1);
+    }
+
+    private static void assertNonRetryable(Request request) {
+        try {
+            request.run();
+            fail("Request succeeded");
+        } catch (IOException expected) {
+            assertTrue(expected.toString(), expected instanceof NonRetryableException);
+        }
+    }
+
+    private static void assertRetryable(Request request) {
+        try {
+            request.run();
+            fail("Request succeeded");
+        } catch (IOException expected) {
+            assertFalse(expected.toString(), expected instanceof NonRetryableException);
+        }
+    }
+
+    /** Reads {@code count} bytes of {@code body}, then checks that it's at its end. */
+    private static byte[] read(DownloadTransport.Body body, int count) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = body.getInput()) {
+            byte[] buffer = new byte[64];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+        }
+        assertEquals(count, out.size());
+        return out.toByteArray();
+    }
+
+    private interface Request {
+        void run() throws IOException;
+    }
+}
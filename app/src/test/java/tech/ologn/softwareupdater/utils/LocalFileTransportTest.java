@@ -0,0 +1,137 @@
+package tech.ologn.softwareupdater.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+public class LocalFileTransportTest {
+
+    private static final int LENGTH = 1000;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private byte[] mContent;
+    private File mFile;
+    private LocalFileTransport mTransport;
+
+    @Before
+    public void setUp() throws IOException {
+        mContent = new byte[LENGTH];
+        for (int i = 0; i < LENGTH; i++) {
+            mContent[i] = (byte) (i * 31);
+        }
+        mFile = mFolder.newFile("update.zip");
+        Files.write(mFile.toPath(), mContent);
+        mTransport = new LocalFileTransport(mFile);
+    }
+
+    @Test
+    public void probe_returnsRemainingLengthAndValidator() throws IOException {
+        DownloadTransport.Stat stat = mTransport.probe(100);
+
+        assertEquals(LENGTH - 100, stat.getLength());
+        assertEquals(LENGTH + "-" + mFile.lastModified(), stat.getValidator());
+    }
+
+    @Test
+    public void open_range_returnsThoseBytes() throws IOException {
+        DownloadTransport.Body body = mTransport.open(100, 200, null, true);
+
+        assertEquals(200, body.getLength());
+        assertArrayEquals(Arrays.copyOfRange(mContent, 100, 300), read(body, 200));
+    }
+
+    @Test
+    public void open_toEnd_returnsRestOfFile() throws IOException {
+        DownloadTransport.Body body = mTransport.open(900, -1, null, true);
+
+        assertEquals(100, body.getLength());
+        assertArrayEquals(Arrays.copyOfRange(mContent, 900, LENGTH), read(body, 100));
+    }
+
+    @Test
+    public void open_rangePastEnd_fails() {
+        try {
+            mTransport.open(900, 200, null, true);
+            fail("Range past the end of the file was opened");
+        } catch (IOException expected) {
+            assertTrue(expected instanceof NonRetryableException);
+        }
+    }
+
+    @Test
+    public void open_changedValidator_fails() throws IOException {
+        String validator = mTransport.probe(0).getValidator();
+        Files.write(mFile.toPath(), new byte[LENGTH / 2]);
+
+        try {
+            mTransport.open(0, 10, validator, true);
+            fail("Changed file was opened with the old validator");
+        } catch (IOException expected) {
+            assertTrue(expected instanceof NonRetryableException);
+        }
+    }
+
+    @Test
+    public void openTail_returnsLastBytesAndStat() throws IOException {
+        DownloadTransport.Body body = mTransport.openTail(300);
+
+        assertEquals(300, body.getLength());
+        assertEquals(LENGTH, body.getStat().getLength());
+        assertArrayEquals(Arrays.copyOfRange(mContent, LENGTH - 300, LENGTH), read(body, 300));
+    }
+
+    @Test
+    public void openTail_largerThanFile_returnsWholeFile() throws IOException {
+        DownloadTransport.Body body = mTransport.openTail(LENGTH * 2);
+
+        assertEquals(LENGTH, body.getLength());
+        assertArrayEquals(mContent, read(body, LENGTH));
+    }
+
+    @Test
+    public void map_returnsRange() throws IOException {
+        byte[] mapped = new byte[50];
+        mTransport.map(500, 50).get(mapped);
+
+        assertArrayEquals(Arrays.copyOfRange(mContent, 500, 550), mapped);
+    }
+
+    @Test
+    public void forUrl_decodesEscapedFileUrl() throws IOException {
+        File file = mFolder.newFile("update package.zip");
+        Files.write(file.toPath(), mContent);
+
+        DownloadTransport transport = DownloadTransport.forUrl(file.toURI().toString());
+
+        assertEquals(LENGTH, transport.probe(0).getLength());
+    }
+
+    /** Reads {@code count} bytes of {@code body}, then checks that it's at its end. */
+    private static byte[] read(DownloadTransport.Body body, int count) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = body.getInput()) {
+            byte[] buffer = new byte[64];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+        }
+        assertEquals(count, out.size());
+        return out.toByteArray();
+    }
+}
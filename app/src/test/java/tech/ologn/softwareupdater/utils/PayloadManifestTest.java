@@ -0,0 +1,265 @@
+package tech.ologn.softwareupdater.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+public class PayloadManifestTest {
+
+    /** Bytes before the payload, like the local header of payload.bin in a package. */
+    private static final int OFFSET = 77;
+    private static final int SIGNATURE_SIZE = 267;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void read_file_decodesManifest() throws IOException {
+        File file = write(payload(2, manifest()));
+
+        assertManifest(PayloadManifest.read(file, OFFSET));
+    }
+
+    @Test
+    public void read_rangeReader_decodesManifest() throws IOException {
+        try (FileRangeReader reader = new FileRangeReader(write(payload(2, manifest())))) {
+            assertManifest(PayloadManifest.read(reader, OFFSET));
+        }
+    }
+
+    @Test
+    public void readHeader_version2_includesSignatureInMetadataSize() throws IOException {
+        byte[] manifest = manifest();
+        try (FileRangeReader reader = new FileRangeReader(write(payload(2, manifest)))) {
+            PayloadManifest.Header header = PayloadManifest.readHeader(reader, OFFSET);
+
+            assertEquals(2, header.getVersion());
+            assertEquals(24, header.getSize());
+            assertEquals(manifest.length, header.getManifestSize());
+            assertEquals(SIGNATURE_SIZE, header.getMetadataSignatureSize());
+            assertEquals(24 + manifest.length + SIGNATURE_SIZE, header.getMetadataSize());
+        }
+    }
+
+    @Test
+    public void read_version1_hasShorterHeader() throws IOException {
+        PayloadManifest manifest = PayloadManifest.read(write(payload(1, manifest())), OFFSET);
+
+        assertEquals(1, manifest.getHeader().getVersion());
+        assertEquals(20, manifest.getHeader().getSize());
+        assertEquals(0, manifest.getHeader().getMetadataSignatureSize());
+        assertEquals(2, manifest.getPartitions().size());
+    }
+
+    @Test
+    public void read_badMagic_fails() throws IOException {
+        byte[] payload = payload(2, manifest());
+        payload[OFFSET] = 'X';
+
+        assertInvalid(payload);
+    }
+
+    @Test
+    public void read_unsupportedVersion_fails() throws IOException {
+        assertInvalid(payload(3, manifest()));
+    }
+
+    @Test
+    public void read_shorterThanHeader_fails() throws IOException {
+        byte[] payload = payload(2, manifest());
+
+        assertInvalid(Arrays.copyOf(payload, OFFSET + 19));
+    }
+
+    @Test
+    public void read_manifestPastEndOfFile_fails() throws IOException {
+        byte[] manifest = manifest();
+        byte[] payload = payload(2, manifest);
+
+        assertInvalid(Arrays.copyOf(payload, OFFSET + 24 + manifest.length - 1));
+    }
+
+    @Test
+    public void read_truncatedField_fails() throws IOException {
+        // A partition that claims more bytes than the manifest has left.
+        Proto manifest = new Proto().bytes(13, new Proto().string(1, "system").bytes());
+        byte[] bytes = manifest.bytes();
+        bytes[1] += 5;
+
+        assertInvalid(payload(2, bytes));
+    }
+
+    @Test
+    public void read_truncatedVarint_fails() throws IOException {
+        assertInvalid(payload(2, new byte[] {3 << 3, (byte) 0x80}));
+    }
+
+    @Test
+    public void read_partitionWithoutName_fails() throws IOException {
+        Proto partition = new Proto().bytes(7, new Proto().varint(1, 4096).bytes());
+
+        assertInvalid(payload(2, new Proto().bytes(13, partition.bytes()).bytes()));
+    }
+
+    @Test
+    public void read_unsupportedWireType_fails() throws IOException {
+        // Wire type 3, a deprecated group, in field 15.
+        assertInvalid(payload(2, new byte[] {15 << 3 | 3, 1, 0}));
+    }
+
+    private void assertInvalid(byte[] payload) throws IOException {
+        File file = write(payload);
+        try {
+            PayloadManifest.read(file, OFFSET);
+            fail("Invalid payload was accepted by read(File)");
+        } catch (IOException expected) {
+        }
+        try (FileRangeReader reader = new FileRangeReader(file)) {
+            PayloadManifest.read(reader, OFFSET);
+            fail("Invalid payload was accepted by read(RangeReader)");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static void assertManifest(PayloadManifest manifest) {
+        assertEquals(4096, manifest.getBlockSize());
+        assertEquals(8, manifest.getMinorVersion());
+        assertTrue(manifest.isPartialUpdate());
+        assertEquals(2, manifest.getPartitions().size());
+
+        PayloadManifest.Partition system = manifest.getPartitions().get(0);
+        assertEquals("system", system.getName());
+        assertEquals(-1, system.getOldSize());
+        assertEquals(3_000_000_000L, system.getNewSize());
+        assertEquals(2, system.getOperationCount());
+        assertEquals(1000 + 2000, system.getDataLength());
+
+        PayloadManifest.Partition vendor = manifest.getPartitions().get(1);
+        assertEquals("vendor", vendor.getName());
+        assertEquals(100_000, vendor.getOldSize());
+        assertEquals(200_000, vendor.getNewSize());
+        assertEquals(1, vendor.getOperationCount());
+        assertEquals(0, vendor.getDataLength());
+
+        assertEquals(3, manifest.getOperationCount());
+        assertEquals(3_000_000_000L + 200_000, manifest.getNewSize());
+    }
+
+    private File write(byte[] content) throws IOException {
+        File file = mFolder.newFile();
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    /**
+     * @return {@link #OFFSET} bytes, then a payload header of {@code version}, the
+     *         manifest, the metadata signature and a little operation data
+     */
+    private static byte[] payload(int version, byte[] manifest) {
+        int headerSize = version == 1 ? 20 : 24;
+        ByteBuffer b = ByteBuffer.allocate(OFFSET + headerSize + manifest.length
+                + SIGNATURE_SIZE + 100);
+        b.position(OFFSET);
+        b.put("CrAU".getBytes(StandardCharsets.US_ASCII)).putLong(version)
+                .putLong(manifest.length);
+        if (version != 1) {
+            b.putInt(SIGNATURE_SIZE);
+        }
+        b.put(manifest);
+        return b.array();
+    }
+
+    /**
+     * @return a DeltaArchiveManifest with a full system partition, a delta vendor
+     *         partition and fields of every wire type that the parser has to skip
+     */
+    private static byte[] manifest() {
+        Proto system = new Proto()
+                .string(1, "system")
+                .fixed32(2, 0x12345678)
+                .bytes(7, new Proto().varint(1, 3_000_000_000L)
+                        .bytes(2, new byte[32]).bytes())
+                .bytes(8, new Proto().varint(1, 0).varint(3, 1000).varint(2, 0).bytes())
+                .bytes(8, new Proto().varint(1, 0).varint(3, 2000).bytes());
+        Proto vendor = new Proto()
+                .string(1, "vendor")
+                .bytes(6, new Proto().varint(1, 100_000).bytes())
+                .bytes(7, new Proto().varint(1, 200_000).bytes())
+                .bytes(8, new Proto().varint(1, 6).bytes());
+        return new Proto()
+                .varint(3, 4096)
+                .fixed64(4, 0x0102030405060708L)
+                .bytes(13, system.bytes())
+                .varint(12, 8)
+                .bytes(13, vendor.bytes())
+                .varint(14, 1_700_000_000L)
+                .varint(16, 1)
+                .bytes();
+    }
+
+    /** Writes protobuf fields. */
+    private static final class Proto {
+        private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+
+        Proto varint(int field, long value) {
+            key(field, 0);
+            writeVarint(value);
+            return this;
+        }
+
+        Proto fixed64(int field, long value) {
+            key(field, 1);
+            for (int i = 0; i < 8; i++) {
+                mOut.write((int) (value >>> (8 * i)));
+            }
+            return this;
+        }
+
+        Proto bytes(int field, byte[] value) {
+            key(field, 2);
+            writeVarint(value.length);
+            mOut.write(value, 0, value.length);
+            return this;
+        }
+
+        Proto string(int field, String value) {
+            return bytes(field, value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        Proto fixed32(int field, int value) {
+            key(field, 5);
+            for (int i = 0; i < 4; i++) {
+                mOut.write(value >>> (8 * i));
+            }
+            return this;
+        }
+
+        byte[] bytes() {
+            return mOut.toByteArray();
+        }
+
+        private void key(int field, int wireType) {
+            writeVarint((long) field << 3 | wireType);
+        }
+
+        private void writeVarint(long value) {
+            while ((value & ~0x7fL) != 0) {
+                mOut.write((int) (value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            mOut.write((int) value);
+        }
+    }
+}
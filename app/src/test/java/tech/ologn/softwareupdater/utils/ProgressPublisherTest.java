@@ -0,0 +1,102 @@
+package tech.ologn.softwareupdater.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ProgressPublisherTest {
+
+    private static final long INTERVAL_MILLIS = 250;
+    private static final long MILLIS = 1_000_000L;
+
+    private final List<Integer> mPublished = new ArrayList<>();
+    private long mNow;
+    private ProgressPublisher mPublisher;
+
+    @Before
+    public void setUp() {
+        mNow = 1_000 * MILLIS;
+        mPublisher = new ProgressPublisher(INTERVAL_MILLIS, mPublished::add, () -> mNow);
+    }
+
+    @Test
+    public void publish_passesOnFirstValue() {
+        mPublisher.publish(0);
+
+        assertEquals(Arrays.asList(0), mPublished);
+        assertEquals(1, mPublisher.getPublishCount());
+    }
+
+    @Test
+    public void publish_holdsBackValuesWithinInterval() {
+        mPublisher.publish(0);
+        for (int percent = 1; percent <= 10; percent++) {
+            mNow += 10 * MILLIS;
+            mPublisher.publish(percent);
+        }
+
+        assertEquals(Arrays.asList(0), mPublished);
+    }
+
+    @Test
+    public void publish_passesOnOneValuePerInterval() {
+        // 100 values over 1 s, one every 10 ms.
+        for (int percent = 0; percent < 100; percent++) {
+            mPublisher.publish(percent);
+            mNow += 10 * MILLIS;
+        }
+
+        // At 0, 250, 500 and 750 ms.
+        assertEquals(Arrays.asList(0, 25, 50, 75), mPublished);
+        assertEquals(4, mPublisher.getPublishCount());
+    }
+
+    @Test
+    public void publish_ignoresUnchangedValue() {
+        mPublisher.publish(5);
+        mNow += INTERVAL_MILLIS * MILLIS;
+        mPublisher.publish(5);
+
+        assertEquals(1, mPublisher.getPublishCount());
+    }
+
+    @Test
+    public void flush_deliversLastHeldBackValue() {
+        mPublisher.publish(0);
+        mNow += 10 * MILLIS;
+        mPublisher.publish(40);
+        mNow += 10 * MILLIS;
+        mPublisher.publish(100);
+
+        mPublisher.flush();
+
+        assertEquals(Arrays.asList(0, 100), mPublished);
+        assertEquals(2, mPublisher.getPublishCount());
+    }
+
+    @Test
+    public void flush_withoutHeldBackValue_doesNothing() {
+        mPublisher.publish(0);
+        mPublisher.flush();
+        mPublisher.flush();
+
+        assertEquals(1, mPublisher.getPublishCount());
+    }
+
+    @Test
+    public void flush_afterValueBackToLastPublished_doesNothing() {
+        mPublisher.publish(10);
+        mNow += 10 * MILLIS;
+        mPublisher.publish(20);
+        mPublisher.publish(10);
+
+        mPublisher.flush();
+
+        assertEquals(Arrays.asList(10), mPublished);
+    }
+}
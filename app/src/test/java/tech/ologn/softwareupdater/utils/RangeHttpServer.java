@@ -0,0 +1,242 @@
+package tech.ologn.softwareupdater.utils;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Stand-in for an OTA server, serving {@code content} on the loopback interface with
+ * {@link HttpServer}. Supports single byte ranges, {@code If-Range} and
+ * {@code If-None-Match} against a strong ETag, and can add latency to every response and
+ * throttle each connection, so that tests and benchmarks behave like a remote server.
+ */
+public final class RangeHttpServer implements Closeable {
+
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+    /** Bytes written between two throttling pauses. */
+    private static final int THROTTLE_STEP = 16 * 1024;
+
+    private final HttpServer mServer;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final AtomicInteger mRequests = new AtomicInteger();
+    private final AtomicInteger mFinished = new AtomicInteger();
+    private final AtomicLong mCpuNanos = new AtomicLong();
+    private final ThreadMXBean mThreads = ManagementFactory.getThreadMXBean();
+    private final List<Headers> mRequestHeaders = new ArrayList<>();
+    private final List<Integer> mResponseCodes = new ArrayList<>();
+    private volatile byte[] mContent;
+    private volatile String mEtag = "\"v1\"";
+    private volatile boolean mRangesSupported = true;
+    private volatile long mLatencyMillis;
+    private volatile long mBytesPerSecond;
+    private volatile String mContentRange;
+    private volatile int mStatus;
+
+    public RangeHttpServer(byte[] content) throws IOException {
+        this.mContent = content;
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/", this::handle);
+        mServer.setExecutor(mExecutor);
+        mServer.start();
+    }
+
+    /** @return url of the served content under {@code path}, any path serves it */
+    public String getUrl(String path) {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + path;
+    }
+
+    public void setContent(byte[] content) {
+        this.mContent = content;
+    }
+
+    /** Sets the ETag of the content, null for none. */
+    public void setEtag(String etag) {
+        this.mEtag = etag;
+    }
+
+    /** When false, {@code Range} is ignored and the whole content is always sent. */
+    public void setRangesSupported(boolean rangesSupported) {
+        this.mRangesSupported = rangesSupported;
+    }
+
+    /** Delays every response by {@code latencyMillis}, like a round trip to a far server. */
+    public void setLatency(long latencyMillis) {
+        this.mLatencyMillis = latencyMillis;
+    }
+
+    /** Limits each response to {@code bytesPerSecond}, 0 for no limit. */
+    public void setThrottle(long bytesPerSecond) {
+        this.mBytesPerSecond = bytesPerSecond;
+    }
+
+    /** Sends {@code contentRange} in every partial response instead of the right one. */
+    public void setContentRange(String contentRange) {
+        this.mContentRange = contentRange;
+    }
+
+    /** Answers every request with {@code status} and an empty body, 0 to serve normally. */
+    public void setStatus(int status) {
+        this.mStatus = status;
+    }
+
+    /** @return number of requests received so far */
+    public int getRequestCount() {
+        return mRequests.get();
+    }
+
+    /**
+     * Waits until {@code count} responses are completely sent or aborted by the client.
+     *
+     * @return false if that didn't happen within {@code timeoutMillis}
+     */
+    public boolean awaitFinished(int count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (mFinished.get() < count) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * @return CPU time spent handling requests so far, so that benchmarks can tell it apart
+     *         from the CPU time of the client in the same process
+     */
+    public long getCpuNanos() {
+        return mCpuNanos.get();
+    }
+
+    /** @return headers of the requests received so far, in order */
+    public synchronized List<Headers> getRequestHeaders() {
+        return new ArrayList<>(mRequestHeaders);
+    }
+
+    /** @return status codes of the responses sent so far, in order */
+    public synchronized List<Integer> getResponseCodes() {
+        return new ArrayList<>(mResponseCodes);
+    }
+
+    @Override
+    public void close() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        long cpuStart = mThreads.getCurrentThreadCpuTime();
+        try (HttpExchange ignored = exchange) {
+            mRequests.incrementAndGet();
+            synchronized (this) {
+                mRequestHeaders.add(exchange.getRequestHeaders());
+            }
+            if (mLatencyMillis > 0) {
+                Thread.sleep(mLatencyMillis);
+            }
+            Headers request = exchange.getRequestHeaders();
+            Headers response = exchange.getResponseHeaders();
+            if (mStatus != 0) {
+                respond(exchange, mStatus, -1);
+                return;
+            }
+            byte[] content = mContent;
+            String etag = mEtag;
+            if (etag != null) {
+                response.set("ETag", etag);
+                if (etag.equals(request.getFirst("If-None-Match"))) {
+                    respond(exchange, 304, -1);
+                    return;
+                }
+            }
+
+            long first = 0;
+            long last = content.length - 1;
+            boolean partial = false;
+            String range = request.getFirst("Range");
+            String ifRange = request.getFirst("If-Range");
+            if (mRangesSupported && range != null
+                    && (ifRange == null || ifRange.equals(etag))) {
+                Matcher m = RANGE.matcher(range);
+                if (!m.matches() || (m.group(1).isEmpty() && m.group(2).isEmpty())) {
+                    respond(exchange, 416, -1);
+                    return;
+                }
+                if (m.group(1).isEmpty()) {
+                    first = Math.max(0, content.length - Long.parseLong(m.group(2)));
+                } else {
+                    first = Long.parseLong(m.group(1));
+                    if (!m.group(2).isEmpty()) {
+                        last = Math.min(last, Long.parseLong(m.group(2)));
+                    }
+                }
+                if (first >= content.length) {
+                    response.set("Content-Range", "bytes */" + content.length);
+                    respond(exchange, 416, -1);
+                    return;
+                }
+                partial = true;
+                response.set("Content-Range", mContentRange != null
+                        ? mContentRange
+                        : "bytes " + first + "-" + last + "/" + content.length);
+            }
+            long length = last - first + 1;
+            respond(exchange, partial ? 206 : 200, length == 0 ? -1 : length);
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                return;
+            }
+            writeBody(exchange.getResponseBody(), content, (int) first, (int) length);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // The client went away, e.g. it cancelled the download.
+        } finally {
+            mCpuNanos.addAndGet(mThreads.getCurrentThreadCpuTime() - cpuStart);
+            mFinished.incrementAndGet();
+        }
+    }
+
+    private void respond(HttpExchange exchange, int code, long length) throws IOException {
+        synchronized (this) {
+            mResponseCodes.add(code);
+        }
+        exchange.sendResponseHeaders(code, length);
+    }
+
+    private void writeBody(OutputStream out, byte[] content, int offset, int length)
+            throws IOException, InterruptedException {
+        long bytesPerSecond = mBytesPerSecond;
+        long start = System.nanoTime();
+        int written = 0;
+        while (written < length) {
+            int count = Math.min(THROTTLE_STEP, length - written);
+            out.write(content, offset + written, count);
+            written += count;
+            if (bytesPerSecond > 0) {
+                long due = written * 1_000_000_000L / bytesPerSecond;
+                long ahead = due - (System.nanoTime() - start);
+                if (ahead > 0) {
+                    Thread.sleep(ahead / 1_000_000, (int) (ahead % 1_000_000));
+                }
+            }
+        }
+        out.flush();
+    }
+}
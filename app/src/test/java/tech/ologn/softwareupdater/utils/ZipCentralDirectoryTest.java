@@ -0,0 +1,248 @@
+package tech.ologn.softwareupdater.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class ZipCentralDirectoryTest {
+
+    private static final byte[] PAYLOAD = random(5000);
+    private static final byte[] PROPERTIES =
+            "FILE_HASH=abc\nFILE_SIZE=5000\n".getBytes(StandardCharsets.UTF_8);
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void read_generatedZip_findsEntriesAndData() throws IOException {
+        byte[] zip = generatedZip(null);
+
+        try (FileRangeReader reader = reader(zip)) {
+            ZipCentralDirectory cd = ZipCentralDirectory.read(reader);
+
+            assertEquals(2, cd.getEntries().size());
+            ZipCentralDirectory.Entry payload = cd.getEntry("payload.bin").get();
+            assertEquals(ZipEntry.STORED, payload.getMethod());
+            assertEquals(PAYLOAD.length, payload.getSize());
+            long offset = cd.getDataOffset(payload);
+            assertArrayEquals(PAYLOAD,
+                    Arrays.copyOfRange(zip, (int) offset, (int) offset + PAYLOAD.length));
+            ZipCentralDirectory.Entry properties = cd.getEntry("payload_properties.txt").get();
+            assertEquals(ZipEntry.DEFLATED, properties.getMethod());
+            assertArrayEquals(PROPERTIES, cd.readContent(properties));
+            assertFalse(cd.getEntry("care_map.pb").isPresent());
+        }
+    }
+
+    @Test
+    public void read_longCommentAfterEocd_findsEndOfCentralDirectory() throws IOException {
+        // Longer than the first read of the tail, and holding what looks like an end of
+        // central directory record whose comment length doesn't reach the end.
+        StringBuilder comment = new StringBuilder("PK\u0005\u0006");
+        while (comment.length() < 3000) {
+            comment.append("signed by nobody ");
+        }
+        byte[] zip = generatedZip(comment.toString());
+
+        try (FileRangeReader reader = reader(zip)) {
+            ZipCentralDirectory cd = ZipCentralDirectory.read(reader);
+
+            assertEquals(2, cd.getEntries().size());
+            assertArrayEquals(PROPERTIES,
+                    cd.readContent(cd.getEntry("payload_properties.txt").get()));
+        }
+    }
+
+    @Test
+    public void read_zip64_usesExtendedFields() throws IOException {
+        byte[] zip = zip64(PAYLOAD, 100);
+
+        try (FileRangeReader reader = reader(zip)) {
+            ZipCentralDirectory cd = ZipCentralDirectory.read(reader);
+
+            ZipCentralDirectory.Entry payload = cd.getEntry("payload.bin").get();
+            assertEquals(1, cd.getEntries().size());
+            assertEquals(PAYLOAD.length, payload.getSize());
+            assertEquals(PAYLOAD.length, payload.getCompressedSize());
+            assertEquals(100, payload.getLocalHeaderOffset());
+            // The local extra field is longer than the central one.
+            assertEquals(100 + 30 + "payload.bin".length() + 12, cd.getDataOffset(payload));
+            assertArrayEquals(PAYLOAD, cd.readContent(payload));
+        }
+    }
+
+    @Test
+    public void read_tooShort_fails() throws IOException {
+        assertInvalid(new byte[10]);
+    }
+
+    @Test
+    public void read_truncatedTail_fails() throws IOException {
+        byte[] zip = generatedZip(null);
+
+        assertInvalid(Arrays.copyOf(zip, zip.length - 5));
+    }
+
+    @Test
+    public void read_centralDirectoryOutsideOfFile_fails() throws IOException {
+        byte[] zip = generatedZip(null);
+        eocd(zip).putInt(16, zip.length);
+
+        assertInvalid(zip);
+    }
+
+    @Test
+    public void read_moreEntriesThanCentralDirectoryHolds_fails() throws IOException {
+        byte[] zip = generatedZip(null);
+        eocd(zip).putShort(8, (short) 3).putShort(10, (short) 3);
+
+        assertInvalid(zip);
+    }
+
+    @Test
+    public void read_zip64MarkerWithoutLocator_fails() throws IOException {
+        byte[] zip = generatedZip(null);
+        eocd(zip).putShort(10, (short) 0xffff);
+
+        assertInvalid(zip);
+    }
+
+    @Test
+    public void read_zip64MarkerWithoutExtraField_fails() throws IOException {
+        byte[] zip = generatedZip(null);
+        int cdOffset = eocd(zip).getInt(16);
+        // Uncompressed size of the first central directory entry.
+        ByteBuffer.wrap(zip).order(ByteOrder.LITTLE_ENDIAN).putInt(cdOffset + 24, -1);
+
+        assertInvalid(zip);
+    }
+
+    @Test
+    public void read_truncatedZip64ExtraField_fails() throws IOException {
+        byte[] zip = zip64(PAYLOAD, 0);
+        // Size of the central Zip64 extra field, 24 bytes for three values.
+        int cdOffset = 30 + "payload.bin".length() + 12 + PAYLOAD.length;
+        int sizeOffset = cdOffset + 46 + "payload.bin".length() + 2;
+        ByteBuffer.wrap(zip).order(ByteOrder.LITTLE_ENDIAN).putShort(sizeOffset, (short) 16);
+
+        assertInvalid(zip);
+    }
+
+    @Test
+    public void getDataOffset_invalidLocalHeader_fails() throws IOException {
+        byte[] zip = generatedZip(null);
+        zip[0] = 0;
+
+        try (FileRangeReader reader = reader(zip)) {
+            ZipCentralDirectory cd = ZipCentralDirectory.read(reader);
+            cd.getDataOffset(cd.getEntries().get(0));
+            fail("Invalid local header was accepted");
+        } catch (IOException expected) {
+        }
+    }
+
+    private void assertInvalid(byte[] zip) throws IOException {
+        try (FileRangeReader reader = reader(zip)) {
+            ZipCentralDirectory.read(reader);
+            fail("Invalid ZIP file was accepted");
+        } catch (IOException expected) {
+        }
+    }
+
+    private FileRangeReader reader(byte[] content) throws IOException {
+        File file = mFolder.newFile();
+        Files.write(file.toPath(), content);
+        return new FileRangeReader(file);
+    }
+
+    /** @return the end of central directory record of a ZIP file without comment */
+    private static ByteBuffer eocd(byte[] zip) {
+        return ByteBuffer.wrap(zip, zip.length - 22, 22).slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /** @return a stored payload.bin and deflated payload_properties.txt */
+    private static byte[] generatedZip(String comment) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            CRC32 crc = new CRC32();
+            crc.update(PAYLOAD);
+            ZipEntry payload = new ZipEntry("payload.bin");
+            payload.setMethod(ZipEntry.STORED);
+            payload.setSize(PAYLOAD.length);
+            payload.setCrc(crc.getValue());
+            zip.putNextEntry(payload);
+            zip.write(PAYLOAD);
+            zip.closeEntry();
+            zip.putNextEntry(new ZipEntry("payload_properties.txt"));
+            zip.write(PROPERTIES);
+            zip.closeEntry();
+            if (comment != null) {
+                zip.setComment(comment);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return a ZIP file with a single stored entry, preceded by {@code offset} bytes,
+     *         whose sizes, local header offset and entry count are only in Zip64 records
+     */
+    private static byte[] zip64(byte[] data, int offset) {
+        byte[] name = "payload.bin".getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        ByteBuffer b = ByteBuffer.allocate(offset + 1024 + data.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        b.position(offset);
+
+        b.putInt(0x04034b50).putShort((short) 45).putShort((short) 0).putShort((short) 0)
+                .putInt(0).putInt((int) crc.getValue()).putInt(-1).putInt(-1)
+                .putShort((short) name.length).putShort((short) 12).put(name);
+        // A Zip64 field with both sizes, then padding: only the central one counts.
+        b.putShort((short) 1).putShort((short) 8).putInt(0).putInt(0);
+        b.put(data);
+
+        int cdOffset = b.position();
+        b.putInt(0x02014b50).putShort((short) 45).putShort((short) 45).putShort((short) 0)
+                .putShort((short) 0).putInt(0).putInt((int) crc.getValue())
+                .putInt(-1).putInt(-1)
+                .putShort((short) name.length).putShort((short) 28).putShort((short) 0)
+                .putShort((short) 0).putShort((short) 0).putInt(0).putInt(-1).put(name);
+        b.putShort((short) 1).putShort((short) 24)
+                .putLong(data.length).putLong(data.length).putLong(offset);
+        int cdSize = b.position() - cdOffset;
+
+        int zip64EocdOffset = b.position();
+        b.putInt(0x06064b50).putLong(44).putShort((short) 45).putShort((short) 45)
+                .putInt(0).putInt(0).putLong(1).putLong(1).putLong(cdSize).putLong(cdOffset);
+        b.putInt(0x07064b50).putInt(0).putLong(zip64EocdOffset).putInt(1);
+        b.putInt(0x06054b50).putShort((short) 0).putShort((short) 0)
+                .putShort((short) 0xffff).putShort((short) 0xffff).putInt(-1).putInt(-1)
+                .putShort((short) 0);
+        return Arrays.copyOf(b.array(), b.position());
+    }
+
+    private static byte[] random(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+}